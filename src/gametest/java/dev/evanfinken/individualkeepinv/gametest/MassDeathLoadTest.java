@@ -0,0 +1,330 @@
+package dev.evanfinken.individualkeepinv.gametest;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.gson.stream.JsonWriter;
+import com.mojang.authlib.GameProfile;
+import com.sun.management.ThreadMXBean;
+import dev.evanfinken.individualkeepinv.IndividualKeepInv;
+import dev.evanfinken.individualkeepinv.config.ConfigState;
+import dev.evanfinken.individualkeepinv.config.KeepInvList;
+import dev.evanfinken.individualkeepinv.config.KeepMask;
+import dev.evanfinken.individualkeepinv.config.PreferenceIndex;
+import net.fabricmc.fabric.api.entity.FakePlayer;
+import net.fabricmc.fabric.api.gametest.v1.FabricGameTest;
+import net.minecraft.SharedConstants;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityType;
+import net.minecraft.entity.ItemEntity;
+import net.minecraft.entity.damage.DamageSource;
+import net.minecraft.item.ItemStack;
+import net.minecraft.item.Items;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+import net.minecraft.test.GameTest;
+import net.minecraft.test.GameTestException;
+import net.minecraft.test.TestContext;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Box;
+import net.minecraft.util.math.Vec3d;
+import net.minecraft.world.GameRules;
+
+/**
+ * Kills hundreds of fake server players in waves, running the whole death and respawn path
+ * through the mod's mixins in <code>dropInventory</code>, <code>getExperienceToDrop</code>, and
+ * <code>copyFrom</code>, which the JMH benchmarks can only measure in isolation.
+ * <p>
+ * The players are split evenly between keeping their inventory, dropping it, following the
+ * gamerule (which drops it), and following the gamerule while keeping their hotbar. Each wave
+ * measures how long the deaths and respawns took, how much the server thread allocated while the
+ * players died, and how many item entities were dropped, and checks that every player kept or
+ * dropped exactly what they should have. The first wave includes warming up the JIT, so runs are
+ * best compared by their later waves. When the test ends, even if it fails, the gamerule, whether
+ * the mod is enabled, and the players' preferences and kept slots are put back the way they were.
+ * <p>
+ * The results are written as JSON to <code>loadtest/mass-death-&lt;time&gt;.json</code> in the
+ * server's directory, or to the path in the <code>individualkeepinv.loadtest.report</code>
+ * system property. The number of players and waves can be changed with the
+ * <code>individualkeepinv.loadtest.players</code> and <code>individualkeepinv.loadtest.waves</code>
+ * system properties.
+ */
+public class MassDeathLoadTest implements FabricGameTest {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    private static final int PLAYERS =
+            Integer.getInteger("individualkeepinv.loadtest.players", 256);
+    private static final int WAVES = Integer.getInteger("individualkeepinv.loadtest.waves", 5);
+    /** How many ticks apart the waves are, so that each wave's tick time can be told apart. */
+    private static final int WAVE_INTERVAL_TICKS = 10;
+    /** How far around the players dropped items are counted. */
+    private static final double ITEM_SEARCH_RADIUS = 16;
+    /** The hotbar slot holding the item kept by the players keeping their hotbar. */
+    private static final int HOTBAR_SLOT = 0;
+    /** The main inventory slot holding an item only kept by the players keeping everything. */
+    private static final int MAIN_SLOT = 20;
+    /** The experience level each player has when they die. */
+    private static final int LEVELS = 5;
+    /** How many failed players are logged per wave. */
+    private static final int LOGGED_FAILURES = 5;
+
+    private static final int GROUPS = 4;
+    private static final int KEEP = 0;
+    private static final int DROP = 1;
+    private static final int DEFAULT = 2;
+    private static final int HOTBAR = 3;
+
+    /**
+     * A fake player that isn't cached like the ones from {@link FakePlayer#get}, so that every
+     * death and respawn uses a fresh entity.
+     */
+    private static final class LoadTestPlayer extends FakePlayer {
+        LoadTestPlayer(ServerWorld world, GameProfile profile) {
+            super(world, profile);
+        }
+    }
+
+    /** What the test changes in the config and the world, so that it can be put back. */
+    private static final class SavedSettings {
+        final boolean keepInventory;
+        final boolean enabled;
+        final GameProfile[] profiles;
+        /** The players' preferences, with players that had none on the default. */
+        final KeepInvList preferences = new KeepInvList();
+        /** The players' own masks, or <code>null</code> for players without one. */
+        final Long[] keptSlots;
+        boolean restored = false;
+
+        SavedSettings(ServerWorld world, GameProfile[] profiles) {
+            this.keepInventory = world.getGameRules().getBoolean(GameRules.KEEP_INVENTORY);
+            ConfigState state = IndividualKeepInv.CONFIG.getState();
+            this.enabled = state.isEnabled();
+            this.profiles = profiles;
+            this.keptSlots = new Long[profiles.length];
+            for (int i = 0; i < profiles.length; i++) {
+                UUID id = profiles[i].getId();
+                preferences.getIndex().put(id, profiles[i].getName(),
+                        state.getKeepInvList().getPreference(profiles[i]));
+                keptSlots[i] = state.hasOwnKeptSlots(id) ? state.getKeptSlots(id) : null;
+            }
+        }
+
+        void restore(ServerWorld world) {
+            if (restored) {
+                return;
+            }
+            restored = true;
+            world.getGameRules().get(GameRules.KEEP_INVENTORY).set(keepInventory,
+                    world.getServer());
+            IndividualKeepInv.CONFIG.applyChanges(preferences);
+            for (int i = 0; i < profiles.length; i++) {
+                IndividualKeepInv.CONFIG.setKeptSlots(profiles[i], keptSlots[i]);
+            }
+            if (!enabled) {
+                IndividualKeepInv.CONFIG.disable();
+            }
+        }
+    }
+
+    /** The measurements of one wave. */
+    private static final class WaveResult {
+        final int wave;
+        long deathNanos;
+        long respawnNanos;
+        long deathAllocatedBytes;
+        int itemEntities;
+        int expectedItemEntities;
+        long averageTickNanos;
+        int failures;
+
+        WaveResult(int wave) {
+            this.wave = wave;
+        }
+    }
+
+    @GameTest(templateName = EMPTY_STRUCTURE, tickLimit = 2400)
+    public void massDeath(TestContext context) {
+        ServerWorld world = context.getWorld();
+        GameProfile[] profiles = createProfiles();
+        var saved = new SavedSettings(world, profiles);
+        world.getGameRules().get(GameRules.KEEP_INVENTORY).set(false, world.getServer());
+        setUpPlayers(profiles);
+        Vec3d position = Vec3d.ofBottomCenter(context.getAbsolutePos(new BlockPos(1, 2, 1)));
+
+        List<WaveResult> results = new ArrayList<>();
+        for (int wave = 0; wave < WAVES; wave++) {
+            int number = wave;
+            context.waitAndRun(1 + wave * WAVE_INTERVAL_TICKS, () -> {
+                try {
+                    results.add(runWave(world, position, profiles, number));
+                } catch (RuntimeException e) {
+                    // the remaining waves won't run
+                    saved.restore(world);
+                    throw e;
+                }
+            });
+        }
+        context.waitAndRun(1 + WAVES * WAVE_INTERVAL_TICKS, () -> {
+            saved.restore(world);
+            writeReport(results);
+            int failures = 0;
+            for (WaveResult result : results) {
+                failures += result.failures;
+            }
+            if (failures > 0) {
+                throw new GameTestException(String.format(
+                        "%d player deaths kept or dropped the wrong items", failures));
+            }
+            context.complete();
+        });
+    }
+
+    private static GameProfile[] createProfiles() {
+        var profiles = new GameProfile[PLAYERS];
+        for (int i = 0; i < PLAYERS; i++) {
+            profiles[i] = new GameProfile(UUID.nameUUIDFromBytes(("loadtest" + i).getBytes()),
+                    "loadtest" + i);
+        }
+        return profiles;
+    }
+
+    /** Sets the players' preferences as one batch and then their kept slots. */
+    private static void setUpPlayers(GameProfile[] profiles) {
+        var changes = new KeepInvList();
+        for (int i = 0; i < PLAYERS; i++) {
+            byte preference = i % GROUPS == KEEP ? PreferenceIndex.KEEP
+                    : i % GROUPS == DROP ? PreferenceIndex.DROP : PreferenceIndex.DEFAULT;
+            changes.getIndex().put(profiles[i].getId(), profiles[i].getName(), preference);
+        }
+        IndividualKeepInv.CONFIG.enable();
+        IndividualKeepInv.CONFIG.applyChanges(changes);
+        for (int i = 0; i < PLAYERS; i++) {
+            if (i % GROUPS == DEFAULT) {
+                IndividualKeepInv.CONFIG.setKeptSlots(profiles[i], KeepMask.NONE);
+            } else if (i % GROUPS == HOTBAR) {
+                IndividualKeepInv.CONFIG.setKeptSlots(profiles[i], KeepMask.HOTBAR);
+            }
+        }
+    }
+
+    private static WaveResult runWave(ServerWorld world, Vec3d position, GameProfile[] profiles,
+            int wave) {
+        Box area = new Box(position, position).expand(ITEM_SEARCH_RADIUS);
+        // the previous wave's items would be counted again
+        for (ItemEntity item : world.getEntitiesByType(EntityType.ITEM, area, Entity::isAlive)) {
+            item.discard();
+        }
+        var players = new ServerPlayerEntity[profiles.length];
+        for (int i = 0; i < profiles.length; i++) {
+            players[i] = spawn(world, profiles[i], position);
+        }
+
+        var result = new WaveResult(wave);
+        var threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        DamageSource source = world.getDamageSources().genericKill();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long startNanos = System.nanoTime();
+        for (ServerPlayerEntity player : players) {
+            player.setHealth(0);
+            player.onDeath(source);
+        }
+        result.deathNanos = System.nanoTime() - startNanos;
+        result.deathAllocatedBytes = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        var respawned = new ServerPlayerEntity[players.length];
+        startNanos = System.nanoTime();
+        for (int i = 0; i < players.length; i++) {
+            respawned[i] = new LoadTestPlayer(world, profiles[i]);
+            respawned[i].copyFrom(players[i], false);
+        }
+        result.respawnNanos = System.nanoTime() - startNanos;
+
+        result.itemEntities =
+                world.getEntitiesByType(EntityType.ITEM, area, Entity::isAlive).size();
+        for (int i = 0; i < respawned.length; i++) {
+            int group = i % GROUPS;
+            result.expectedItemEntities += group == KEEP ? 0 : group == HOTBAR ? 1 : 2;
+            if (!keptCorrectly(respawned[i], group)) {
+                if (result.failures++ < LOGGED_FAILURES) {
+                    LOGGER.warn("{} (group {}) kept or dropped the wrong items in wave {}.",
+                            profiles[i].getName(), group, wave);
+                }
+            }
+        }
+        if (result.itemEntities != result.expectedItemEntities) {
+            result.failures++;
+            LOGGER.warn("Wave {} dropped {} item entities instead of {}.", wave,
+                    result.itemEntities, result.expectedItemEntities);
+        }
+        result.averageTickNanos = world.getServer().getAverageNanosPerTick();
+        LOGGER.info("Wave {}: {} deaths in {} ms, {} respawns in {} ms, {} bytes allocated.", wave,
+                players.length, result.deathNanos / 1_000_000, players.length,
+                result.respawnNanos / 1_000_000, result.deathAllocatedBytes);
+        return result;
+    }
+
+    /** Creates a player at <code>position</code> with an item in each test slot and some levels. */
+    private static ServerPlayerEntity spawn(ServerWorld world, GameProfile profile,
+            Vec3d position) {
+        var player = new LoadTestPlayer(world, profile);
+        player.refreshPositionAndAngles(position.x, position.y, position.z, 0, 0);
+        player.getInventory().setStack(HOTBAR_SLOT, new ItemStack(Items.STONE));
+        player.getInventory().setStack(MAIN_SLOT, new ItemStack(Items.DIRT));
+        player.setExperienceLevel(LEVELS);
+        return player;
+    }
+
+    /** Returns whether the respawned <code>player</code> has exactly what their group keeps. */
+    private static boolean keptCorrectly(ServerPlayerEntity player, int group) {
+        boolean keepsEverything = group == KEEP;
+        boolean keepsHotbar = keepsEverything || group == HOTBAR;
+        return player.getInventory().getStack(HOTBAR_SLOT).isOf(Items.STONE) == keepsHotbar
+                && player.getInventory().getStack(MAIN_SLOT).isOf(Items.DIRT) == keepsEverything
+                && (player.experienceLevel == LEVELS) == keepsEverything;
+    }
+
+    private static void writeReport(List<WaveResult> results) {
+        Path path = Path.of(System.getProperty("individualkeepinv.loadtest.report",
+                "loadtest/mass-death-" + System.currentTimeMillis() + ".json"));
+        try {
+            Files.createDirectories(path.toAbsolutePath().getParent());
+            try (var writer = new JsonWriter(Files.newBufferedWriter(path))) {
+                writer.setIndent("  ");
+                writer.beginObject();
+                writer.name("test").value("massDeath");
+                writer.name("timestamp").value(System.currentTimeMillis());
+                writer.name("minecraftVersion")
+                        .value(SharedConstants.getGameVersion().getName());
+                writer.name("javaVersion").value(System.getProperty("java.version"));
+                writer.name("players").value(PLAYERS);
+                writer.name("waves").beginArray();
+                for (WaveResult result : results) {
+                    writer.beginObject();
+                    writer.name("wave").value(result.wave);
+                    writer.name("deathNanos").value(result.deathNanos);
+                    writer.name("deathNanosPerPlayer").value(result.deathNanos / PLAYERS);
+                    writer.name("respawnNanos").value(result.respawnNanos);
+                    writer.name("deathAllocatedBytes").value(result.deathAllocatedBytes);
+                    writer.name("deathAllocatedBytesPerPlayer")
+                            .value(result.deathAllocatedBytes / PLAYERS);
+                    writer.name("itemEntities").value(result.itemEntities);
+                    writer.name("expectedItemEntities").value(result.expectedItemEntities);
+                    writer.name("averageTickNanos").value(result.averageTickNanos);
+                    writer.name("failures").value(result.failures);
+                    writer.endObject();
+                }
+                writer.endArray();
+                writer.endObject();
+            }
+            LOGGER.info("Wrote the load test report to {}.", path.toAbsolutePath());
+        } catch (IOException e) {
+            LOGGER.warn("Failed to write the load test report.", e);
+        }
+    }
+}
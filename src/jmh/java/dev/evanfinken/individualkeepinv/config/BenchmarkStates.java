@@ -0,0 +1,44 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.util.Random;
+import java.util.UUID;
+import com.mojang.authlib.GameProfile;
+
+/** Builds the config states and stand-in players shared by the benchmarks. */
+final class BenchmarkStates {
+    /** The number of profiles that benchmarks cycle through when looking up preferences. */
+    static final int SAMPLE_SIZE = 1024;
+
+    private BenchmarkStates() {}
+
+    /**
+     * Creates an enabled config state with <code>players</code> entries with random UUIDs and an
+     * even mix of preferences.
+     * <p>
+     * The entries are put straight into the index so that building a million of them doesn't
+     * need a million <code>GameProfile</code>s.
+     *
+     * @param players The number of entries.
+     * @param sample Filled with profiles of players that have an entry.
+     * @return The state.
+     */
+    static ConfigState createState(int players, GameProfile[] sample) {
+        var random = new Random(42);
+        var state = new ConfigState();
+        state.enabled = true;
+        PreferenceIndex index = state.getKeepInvList().getIndex();
+        for (int i = 0; i < players; i++) {
+            var id = new UUID(random.nextLong(), random.nextLong());
+            String name = "player" + i;
+            index.put(id, name, (byte) (i % 3));
+            if (i < sample.length) {
+                sample[i] = new GameProfile(id, name);
+            }
+        }
+        // fill the rest of a sample that is bigger than the index with players without an entry
+        for (int i = players; i < sample.length; i++) {
+            sample[i] = new GameProfile(new UUID(random.nextLong(), random.nextLong()), "absent");
+        }
+        return state;
+    }
+}
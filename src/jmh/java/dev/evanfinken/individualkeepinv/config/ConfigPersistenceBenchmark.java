@@ -0,0 +1,65 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import com.mojang.authlib.GameProfile;
+
+/** Measures saving and loading a config file with many players. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ConfigPersistenceBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int players;
+
+    private Path directory;
+    private Config config;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("individual-keepinv-benchmark");
+        config = new Config(directory.resolve("individualKeepInventory.json"));
+        config.replaceState(
+                BenchmarkStates.createState(players, new GameProfile[BenchmarkStates.SAMPLE_SIZE]));
+        config.save();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        try (var files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        config.save();
+    }
+
+    @Benchmark
+    public ConfigState load() throws IOException {
+        config.load();
+        return config.getState();
+    }
+}
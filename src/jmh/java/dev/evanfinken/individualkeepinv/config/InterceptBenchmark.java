@@ -0,0 +1,105 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.mojang.authlib.GameProfile;
+import dev.evanfinken.individualkeepinv.IndividualKeepInv;
+import dev.evanfinken.individualkeepinv.KeepInvPlayer;
+import dev.evanfinken.individualkeepinv.stats.InterceptSource;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.resource.featuretoggle.FeatureSet;
+import net.minecraft.world.GameRules;
+
+/**
+ * Measures {@link IndividualKeepInv#interceptGetKeepInventory}, which runs up to three times for
+ * every player death.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InterceptBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int players;
+
+    private final GameProfile[] profiles = new GameProfile[BenchmarkStates.SAMPLE_SIZE];
+    private GameRules rules;
+    /** Stands in for a <code>ServerPlayerEntity</code> whose preference has been cached. */
+    private KeepInvPlayer cachedPlayer;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+        rules = new GameRules(FeatureSet.empty());
+        IndividualKeepInv.CONFIG.replaceState(BenchmarkStates.createState(players, profiles));
+        cachedPlayer = new KeepInvPlayer() {
+            private byte preference = KeepInvPlayer.UNRESOLVED;
+
+            @Override
+            public byte individualkeepinv$getCachedPreference() {
+                if (preference == KeepInvPlayer.UNRESOLVED) {
+                    preference = IndividualKeepInv.CONFIG.getPreference(profiles[0]);
+                }
+                return preference;
+            }
+
+            @Override
+            public void individualkeepinv$setCachedPreference(byte preference) {
+                this.preference = preference;
+            }
+
+            @Override
+            public byte individualkeepinv$getDeathRule() {
+                return PreferenceIndex.DEFAULT;
+            }
+
+            @Override
+            public void individualkeepinv$setDeathRule(byte outcome) {}
+
+            @Override
+            public long individualkeepinv$getDeathKeptSlots() {
+                return KeepMask.NONE;
+            }
+
+            @Override
+            public void individualkeepinv$setDeathKeptSlots(long keptSlots) {}
+        };
+    }
+
+    /** A death of a player without a cached preference, which looks it up by profile. */
+    @Benchmark
+    public boolean interceptByProfile() {
+        GameProfile profile = profiles[next++ & (profiles.length - 1)];
+        return IndividualKeepInv.interceptGetKeepInventory(profile, rules,
+                GameRules.KEEP_INVENTORY);
+    }
+
+    /** A death of a server player, which reads the preference cached on the player. */
+    @Benchmark
+    public boolean interceptCached() {
+        return IndividualKeepInv.interceptGetKeepInventory(cachedPlayer, rules,
+                GameRules.KEEP_INVENTORY, InterceptSource.DROP_INVENTORY);
+    }
+
+    /** A request for a gamerule other than "keepInventory", which should pass straight through. */
+    @Benchmark
+    public boolean interceptOtherRule() {
+        return IndividualKeepInv.interceptGetKeepInventory(cachedPlayer, rules,
+                GameRules.DO_IMMEDIATE_RESPAWN, InterceptSource.DROP_INVENTORY);
+    }
+}
@@ -0,0 +1,50 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.mojang.authlib.GameProfile;
+
+/** Measures looking up and changing preferences in a {@link KeepInvList}. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeepInvListBenchmark {
+    @Param({"1000", "100000", "1000000"})
+    public int players;
+
+    private final GameProfile[] profiles = new GameProfile[BenchmarkStates.SAMPLE_SIZE];
+    private KeepInvList keepInvList;
+    private int next = 0;
+
+    @Setup
+    public void setup() {
+        keepInvList = BenchmarkStates.createState(players, profiles).getKeepInvList();
+    }
+
+    @Benchmark
+    public Optional<Boolean> shouldKeepInventory() {
+        return keepInvList.shouldKeepInventory(profiles[next++ & (profiles.length - 1)]);
+    }
+
+    /** Updates existing entries, so the list doesn't grow during the benchmark. */
+    @Benchmark
+    public void setKeepInventory() {
+        int i = next++;
+        keepInvList.setKeepInventory(profiles[i & (profiles.length - 1)],
+                KeepInvList.toOptional((byte) (i % 3)));
+    }
+}
@@ -0,0 +1,78 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import com.mojang.authlib.GameProfile;
+
+/**
+ * Measures the memory it takes to hold many players' preferences in a {@link PreferenceIndex},
+ * compared to the <code>HashMap</code> of profiles that it replaced.
+ * <p>
+ * Each benchmark builds the whole structure, sized up front so that nothing is discarded while it
+ * grows. With the "gc" profiler that the jmh task enables, <code>gc.alloc.rate.norm</code> is then
+ * the size of the structure in bytes. The names are created once in the setup and shared by both,
+ * so they aren't counted.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PreferenceIndexFootprintBenchmark {
+    @Param({"1000", "100000"})
+    public int players;
+
+    private long[] mostSigBits;
+    private long[] leastSigBits;
+    private String[] names;
+
+    @Setup
+    public void setup() {
+        var random = new Random(42);
+        mostSigBits = new long[players];
+        leastSigBits = new long[players];
+        names = new String[players];
+        for (int i = 0; i < players; i++) {
+            mostSigBits[i] = random.nextLong();
+            leastSigBits[i] = random.nextLong();
+            names[i] = "player" + i;
+        }
+    }
+
+    @Benchmark
+    public PreferenceIndex preferenceIndex() {
+        var index = new PreferenceIndex(players);
+        for (int i = 0; i < players; i++) {
+            index.put(mostSigBits[i], leastSigBits[i], names[i],
+                    i % 2 == 0 ? PreferenceIndex.KEEP : PreferenceIndex.DROP);
+        }
+        return index;
+    }
+
+    /** Builds the map that the preferences were kept in before the index. */
+    @Benchmark
+    public Map<GameProfile, Optional<Boolean>> profileMap() {
+        Map<GameProfile, Optional<Boolean>> map = new HashMap<>(players * 4 / 3 + 1);
+        for (int i = 0; i < players; i++) {
+            map.put(new GameProfile(new UUID(mostSigBits[i], leastSigBits[i]), names[i]),
+                    Optional.of(i % 2 == 0));
+        }
+        return map;
+    }
+}
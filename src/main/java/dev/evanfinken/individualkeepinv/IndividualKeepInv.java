@@ -1,12 +1,51 @@
 package dev.evanfinken.individualkeepinv;
 
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.mojang.authlib.GameProfile;
+import dev.evanfinken.individualkeepinv.api.KeepInvApi;
+import dev.evanfinken.individualkeepinv.api.KeepInvApiInitializer;
 import dev.evanfinken.individualkeepinv.command.KeepInvCommand;
 import dev.evanfinken.individualkeepinv.config.Config;
+import dev.evanfinken.individualkeepinv.config.ConfigState;
+import dev.evanfinken.individualkeepinv.config.ConfigWatcher;
+import dev.evanfinken.individualkeepinv.config.KeepInvList;
+import dev.evanfinken.individualkeepinv.config.KeepMask;
+import dev.evanfinken.individualkeepinv.config.PreferenceIndex;
+import dev.evanfinken.individualkeepinv.config.RuleTable;
+import dev.evanfinken.individualkeepinv.stats.InterceptEvent;
+import dev.evanfinken.individualkeepinv.stats.InterceptSource;
+import dev.evanfinken.individualkeepinv.stats.KeepInvStats;
+import dev.evanfinken.individualkeepinv.vault.ItemVault;
 import net.fabricmc.api.ModInitializer;
+import net.fabricmc.loader.api.FabricLoader;
 import net.fabricmc.fabric.api.command.v2.CommandRegistrationCallback;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
+import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
+import net.minecraft.component.EnchantmentEffectComponentTypes;
+import net.minecraft.enchantment.EnchantmentHelper;
+import net.minecraft.entity.damage.DamageSource;
+import net.minecraft.entity.damage.DamageType;
+import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.entity.player.PlayerInventory;
+import net.minecraft.item.ItemStack;
+import net.minecraft.registry.entry.RegistryEntry;
+import net.minecraft.scoreboard.Team;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.WorldSavePath;
 import net.minecraft.world.GameRules;
 
 public class IndividualKeepInv implements ModInitializer {
@@ -15,21 +54,549 @@ public class IndividualKeepInv implements ModInitializer {
 	// That way, it's clear which mod wrote info, warnings, and errors.
 	public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
 	public static final Config CONFIG = new Config();
+	public static final KeepInvStats STATS = new KeepInvStats(CONFIG);
+	/** How long to wait for the config to load before continuing with the default config. */
+	private static final long CONFIG_LOAD_TIMEOUT_SECONDS = 30;
+	/** The name of the config file in each world's save directory. */
+	private static final String WORLD_CONFIG_NAME = "individualKeepInventory.json";
+	/** The load of the world's config, started when the server is starting. */
+	private static volatile CompletableFuture<?> configLoad =
+			CompletableFuture.completedFuture(null);
+	/** Whether something has already waited for {@link #configLoad}. */
+	private static volatile boolean configReady = false;
+	/** The config's item tags, resolved once the server has loaded its data packs. */
+	private static volatile KeptItemFilter itemFilter = KeptItemFilter.EMPTY;
+	/** The vault of the world the server is running, if one is running. */
+	@Nullable
+	private static volatile ItemVault vault;
+	/** Watches the config file while the server runs, if "watchFile" is enabled. */
+	@Nullable
+	private static ConfigWatcher watcher;
 
-	/** Initializes the mod, loading the config and registering the command. */
+	/**
+	 * Initializes the mod, registering the command, opening the world's config when a server is
+	 * starting, caching each player's preference when they join, releasing it when they leave,
+	 * and closing the config, which writes its pending changes, when the server stops. The mod's
+	 * statistics are also published over JMX. When each player was last seen is recorded as they
+	 * join and leave. While the server runs, stale players are evicted in the background, the
+	 * config file is watched for changes if "watchFile" is enabled, and preferences are synced
+	 * with other servers if "syncDirectory" is set. The config's item tags are resolved again
+	 * whenever the data packs are reloaded.
+	 * Finally, other mods' {@link KeepInvApiInitializer} entrypoints are handed the API.
+	 * <p>
+	 * Nothing is read from disk here, so clients only touch the config once they start an
+	 * integrated server. The config is loaded on a background thread so that it overlaps with the
+	 * rest of the server's startup. See {@link #awaitConfigLoaded()}.
+	 */
 	@Override
 	public void onInitialize() {
 		LOGGER.info("Initializing Individual KeepInv");
 
 		try {
-			CONFIG.load();
-			LOGGER.info("Successfully loaded config file.");
+			STATS.register();
 		} catch (Exception e) {
-			LOGGER.warn("Failed loading the config file.", e);
+			LOGGER.warn("Failed to register the statistics MBean.", e);
 		}
 
 		CommandRegistrationCallback.EVENT.register(
 				(dispatcher, registryAccess, environment) -> KeepInvCommand.register(dispatcher));
+		ServerPlayConnectionEvents.JOIN.register((handler, sender, server) -> {
+			refreshCachedPreference(handler.getPlayer());
+			CONFIG.markJoined(handler.getPlayer().getGameProfile());
+		});
+		ServerPlayConnectionEvents.DISCONNECT.register((handler, server) -> {
+			CONFIG.markSeen(handler.getPlayer().getGameProfile());
+			CONFIG.releasePlayer(handler.getPlayer().getGameProfile());
+		});
+		ServerLifecycleEvents.SERVER_STARTING.register(IndividualKeepInv::onServerStarting);
+		ServerLifecycleEvents.SERVER_STARTED.register(IndividualKeepInv::onServerStarted);
+		ServerLifecycleEvents.END_DATA_PACK_RELOAD
+				.register((server, resourceManager, success) -> refreshItemFilter());
+		ServerLifecycleEvents.SERVER_STOPPING.register(server -> {
+			closeWatcher();
+			CONFIG.stopEviction();
+			CONFIG.stopSync();
+		});
+		ServerLifecycleEvents.SERVER_STOPPED.register(server -> {
+			CONFIG.close();
+			itemFilter = KeptItemFilter.EMPTY;
+			closeVault();
+		});
+
+		for (KeepInvApiInitializer initializer : FabricLoader.getInstance()
+				.getEntrypoints("individual-keepinv", KeepInvApiInitializer.class)) {
+			try {
+				initializer.onKeepInvApiReady(KeepInvApi.get());
+			} catch (RuntimeException e) {
+				LOGGER.warn("A KeepInv API entrypoint failed.", e);
+			}
+		}
+	}
+
+	/**
+	 * Waits for the config to finish loading if it is still being loaded after a server started
+	 * opening it, so that nothing reads the default config in the meantime.
+	 * <p>
+	 * This is called before the config is first needed: when the server has started, on the first
+	 * <code>/keepinv</code> command, and on the first intercepted gamerule check. After the first
+	 * call, this is only a read of a volatile field. If the load takes longer than
+	 * {@value #CONFIG_LOAD_TIMEOUT_SECONDS} seconds, this stops waiting and the default config is
+	 * used until the load finishes.
+	 */
+	public static void awaitConfigLoaded() {
+		if (configReady) {
+			return;
+		}
+		if (!configLoad.isDone()) {
+			long startNanos = System.nanoTime();
+			try {
+				configLoad.get(CONFIG_LOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+				LOGGER.info("Waited {} ms for the config file to load.",
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+			} catch (TimeoutException e) {
+				LOGGER.warn("Gave up waiting for the config file to load after {} ms.",
+						TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (ExecutionException e) {
+				// already logged when the load failed
+			}
+		}
+		configReady = true;
+	}
+
+	/**
+	 * Starts loading the config stored in the world's save directory on a background thread.
+	 * <p>
+	 * A dedicated server whose world doesn't have a config yet copies the global config from
+	 * {@link Config#DEFAULT_PATH}, which is where every world's preferences used to be stored.
+	 * Integrated servers start new worlds with the defaults instead. The world's item vault is
+	 * stored next to its config.
+	 */
+	private static void onServerStarting(MinecraftServer server) {
+		Path path = server.getSavePath(WorldSavePath.ROOT).resolve(WORLD_CONFIG_NAME).normalize();
+		vault = new ItemVault(Config.siblingPath(path, ".vault"));
+		configLoad = CONFIG.openAsync(path, server.isDedicated() ? Config.DEFAULT_PATH : null)
+				.whenComplete((changes, e) -> {
+					if (e == null) {
+						LOGGER.info("Successfully loaded config file.");
+					} else {
+						LOGGER.warn("Failed loading the config file.", e);
+					}
+				});
+		// reset after the load is published, so that nothing skips waiting for it
+		configReady = false;
+	}
+
+	/** Writes the pending deposits to the item vault and closes it. */
+	private static void closeVault() {
+		ItemVault closed = vault;
+		vault = null;
+		if (closed != null) {
+			closed.close();
+		}
+	}
+
+	/**
+	 * Gets the item vault of the world the server is running.
+	 * 
+	 * @return The vault, or <code>null</code> if no server is running.
+	 */
+	@Nullable
+	public static ItemVault getVault() {
+		return vault;
+	}
+
+	/**
+	 * Waits for the config to load, resolves its item tags, starts evicting stale players, and
+	 * starts watching the config file and syncing with other servers if configured.
+	 * If the config still hasn't loaded, the cached preferences and item tags are refreshed once it
+	 * has.
+	 */
+	private static void onServerStarted(MinecraftServer server) {
+		awaitConfigLoaded();
+		refreshItemFilter();
+		if (!configLoad.isDone()) {
+			configLoad.thenRunAsync(() -> {
+				refreshCachedPreferences(server);
+				refreshItemFilter();
+			}, server);
+		}
+		CONFIG.startEviction();
+		updateWatcher(server);
+		updateSync(server);
+	}
+
+	/**
+	 * Looks up the player's preference in the config and caches it on the player.
+	 * <p>
+	 * If the preference first has to be loaded from an on-demand storage, it is cached on the
+	 * server thread once it has been loaded.
+	 * 
+	 * @param player The player to refresh the cached preference of.
+	 */
+	public static void refreshCachedPreference(ServerPlayerEntity player) {
+		GameProfile profile = player.getGameProfile();
+		KeepInvPlayer keepInvPlayer = (KeepInvPlayer) player;
+		CompletableFuture<Void> loaded = CONFIG.loadPlayer(profile);
+		if (loaded.isDone()) {
+			keepInvPlayer.individualkeepinv$setCachedPreference(CONFIG.getPreference(profile));
+		} else {
+			loaded.thenRunAsync(() -> keepInvPlayer
+					.individualkeepinv$setCachedPreference(CONFIG.getPreference(profile)),
+					player.getServer());
+		}
+	}
+
+	/**
+	 * Refreshes the cached preference of every online player, for example after the config has
+	 * been reloaded.
+	 * 
+	 * @param server The server whose players to refresh.
+	 */
+	public static void refreshCachedPreferences(MinecraftServer server) {
+		for (ServerPlayerEntity player : server.getPlayerManager().getPlayerList()) {
+			refreshCachedPreference(player);
+		}
+	}
+
+	/**
+	 * Refreshes the cached preference of the online players in <code>changes</code>, leaving the
+	 * other players alone.
+	 * 
+	 * @param server The server whose players to refresh.
+	 * @param changes The players whose preference changed.
+	 */
+	public static void refreshCachedPreferences(MinecraftServer server, KeepInvList changes) {
+		if (changes.size() == 0) {
+			return;
+		}
+		for (ServerPlayerEntity player : server.getPlayerManager().getPlayerList()) {
+			UUID id = player.getGameProfile().getId();
+			if (id != null && changes.getIndex().contains(id)) {
+				refreshCachedPreference(player);
+			}
+		}
+	}
+
+	/**
+	 * Reloads the config file on a background thread, and then refreshes the cached preferences
+	 * of the players whose preference changed and the item tags on the server thread.
+	 * 
+	 * @param server The server whose players to refresh.
+	 * @param onlyIfModified Whether to skip the reload if the file wasn't changed on disk.
+	 * @return A future that completes once the cached preferences have been refreshed.
+	 */
+	public static CompletableFuture<Void> reloadConfig(MinecraftServer server,
+			boolean onlyIfModified) {
+		return CONFIG.loadAsync(onlyIfModified).thenAcceptAsync(changes -> {
+			if (changes == null) {
+				refreshCachedPreferences(server);
+			} else {
+				refreshCachedPreferences(server, changes);
+			}
+			refreshItemFilter();
+			updateWatcher(server);
+			updateSync(server);
+		}, server);
+	}
+
+	/**
+	 * Starts watching the config file if "watchFile" is enabled and it isn't watched yet, or
+	 * stops watching it if "watchFile" was disabled.
+	 * 
+	 * @param server The server whose players to refresh when the file changes.
+	 */
+	private static synchronized void updateWatcher(MinecraftServer server) {
+		if (!CONFIG.getState().isWatchFile()) {
+			closeWatcher();
+			return;
+		}
+		if (watcher != null) {
+			return;
+		}
+		try {
+			watcher = new ConfigWatcher(CONFIG.getPath(), () -> reloadConfig(server, true)
+					.exceptionally(e -> {
+						LOGGER.warn("Failed to reload the changed config file.", e);
+						return null;
+					}));
+		} catch (IOException e) {
+			LOGGER.warn("Failed to watch the config file.", e);
+		}
+	}
+
+	/**
+	 * Starts syncing preferences with other servers through the config's "syncDirectory", or
+	 * stops syncing if it was removed. Changes made by other servers refresh the cached
+	 * preferences of the online players they affect on the server thread.
+	 * 
+	 * @param server The server whose players to refresh when another server changes them.
+	 */
+	private static void updateSync(MinecraftServer server) {
+		String directory = CONFIG.getState().getSyncDirectory();
+		if (directory == null) {
+			CONFIG.stopSync();
+			return;
+		}
+		try {
+			CONFIG.startSync(Path.of(directory),
+					changes -> server.execute(() -> refreshCachedPreferences(server, changes)));
+		} catch (IOException | InvalidPathException e) {
+			LOGGER.warn("Failed to sync preferences through {}.", directory, e);
+		}
+	}
+
+	private static synchronized void closeWatcher() {
+		if (watcher == null) {
+			return;
+		}
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			LOGGER.warn("Failed to stop watching the config file.", e);
+		}
+		watcher = null;
+	}
+
+	/**
+	 * Evaluates the config's rules for a player's death.
+	 * <p>
+	 * This runs once per death. The rules are compiled into a {@link RuleTable}, so this only looks
+	 * up the dimension, team, and damage type of the death in it, by the identifiers the game
+	 * already holds so that nothing is allocated.
+	 * 
+	 * @param player The player who died.
+	 * @param source What killed the player.
+	 * @return One of {@link PreferenceIndex#DEFAULT} if no rule decides, or
+	 *         {@link PreferenceIndex#KEEP} or {@link PreferenceIndex#DROP}.
+	 */
+	public static byte evaluateRules(ServerPlayerEntity player, DamageSource source) {
+		RuleTable rules = CONFIG.getState().getRules();
+		if (rules.isEmpty()) {
+			return PreferenceIndex.DEFAULT;
+		}
+		Team team = player.getScoreboardTeam();
+		// damage types are always registered, so their entry is a reference holding its key
+		Identifier cause =
+				source.getTypeRegistryEntry() instanceof RegistryEntry.Reference<DamageType> type
+						? type.registryKey().getValue()
+						: null;
+		return rules.evaluate(player.getWorld().getRegistryKey().getValue(),
+				team == null ? null : team.getName(), cause,
+				source.getAttacker() instanceof PlayerEntity);
+	}
+
+	/**
+	 * Works out the {@link KeepMask} that applies to a player who is about to die, which the death
+	 * path uses if their inventory is dropped.
+	 * 
+	 * @param player The player who is dying.
+	 * @return The player's own mask, or the config's "keptSlots" if they haven't chosen one.
+	 */
+	public static long getKeptSlots(ServerPlayerEntity player) {
+		return CONFIG.getState().getKeptSlots(player.getGameProfile().getId());
+	}
+
+	/**
+	 * Resolves the config's "keptItems" and "droppedItems" item tags, which can only be done once
+	 * the server has loaded its data packs.
+	 */
+	public static void refreshItemFilter() {
+		ConfigState state = CONFIG.getState();
+		itemFilter = KeptItemFilter.resolve(state.getKeptItems(), state.getDroppedItems());
+	}
+
+	/**
+	 * Intercepts requests for the "keepInventory" gamerule for <code>player</code>.
+	 * <p>
+	 * Server players have their preference cached on them, so this is only a field read for them.
+	 * Other players fall back to looking up their preference by their profile.
+	 * <p>
+	 * If a server player only keeps part of their inventory, this drops the rest of it in
+	 * {@link PlayerEntity#dropInventory} and returns <code>true</code>, so that the kept part is
+	 * left in the inventory to be carried over when they respawn. If "vaultDrops" is enabled,
+	 * whatever a server player doesn't keep is moved to their {@link ItemVault} the same way, so
+	 * that no item entities are spawned.
+	 * 
+	 * @param player The player the gamerule is being asked for.
+	 * @param rules The world's gamerules.
+	 * @param key The gamerule being asked for.
+	 * @param source The method the gamerule is being asked for in, for the statistics.
+	 * @return The same as {@link #interceptGetKeepInventory(GameProfile, GameRules, GameRules.Key)}.
+	 */
+	public static boolean interceptGetKeepInventory(PlayerEntity player, GameRules rules,
+			GameRules.Key<GameRules.BooleanRule> key, InterceptSource source) {
+		if (player instanceof KeepInvPlayer keepInvPlayer) {
+			long keptSlots = interceptKeptSlots(keepInvPlayer, rules, key, source);
+			if (source == InterceptSource.DROP_INVENTORY && keptSlots != KeepMask.EVERYTHING) {
+				ItemVault currentVault = vault;
+				ConfigState state = CONFIG.getState();
+				if (currentVault != null && state.isEnabled() && state.isVaultDrops()) {
+					var vaulted = new ArrayList<ItemStack>();
+					dropUnkeptItems(player, keptSlots, vaulted);
+					currentVault.deposit(player.getUuid(), vaulted, player.getRegistryManager());
+					// nothing that isn't kept is left for vanilla to drop
+					return true;
+				}
+				if ((keptSlots & KeepMask.PARTIAL) != 0) {
+					dropUnkeptItems(player, keptSlots, null);
+				}
+			}
+			return keepsFor(keptSlots, source);
+		}
+		awaitConfigLoaded();
+		long startNanos = System.nanoTime();
+		byte preference = key == GameRules.KEEP_INVENTORY && CONFIG.isEnabled()
+				? CONFIG.getPreference(player.getGameProfile())
+				: PreferenceIndex.DEFAULT;
+		return applyPreference(preference, rules, key, source, startNanos);
+	}
+
+	/**
+	 * Intercepts requests for the "keepInventory" gamerule using the preference cached on
+	 * <code>player</code>.
+	 * 
+	 * @param player The player the gamerule is being asked for.
+	 * @param rules The world's gamerules.
+	 * @param key The gamerule being asked for.
+	 * @param source The method the gamerule is being asked for in, for the statistics.
+	 * @return The same as {@link #interceptGetKeepInventory(GameProfile, GameRules, GameRules.Key)},
+	 *         except that a player who keeps part of their inventory keeps it, and keeps their
+	 *         experience if their mask does.
+	 * @see #interceptKeptSlots
+	 */
+	public static boolean interceptGetKeepInventory(KeepInvPlayer player, GameRules rules,
+			GameRules.Key<GameRules.BooleanRule> key, InterceptSource source) {
+		return keepsFor(interceptKeptSlots(player, rules, key, source), source);
+	}
+
+	/**
+	 * Intercepts requests for the "keepInventory" gamerule using the preference cached on
+	 * <code>player</code>, working out which of their slots they keep.
+	 * <p>
+	 * The player's own preference takes priority. If they are on the default, the outcome of the
+	 * config's rules for their death is used, and if no rule decides, the gamerule. If that drops
+	 * their inventory, the {@link KeepMask} worked out when they died still keeps part of it.
+	 * <p>
+	 * This only reads fields and the gamerule, so it doesn't allocate unless a Java Flight
+	 * Recorder recording has the {@link InterceptEvent} enabled.
+	 * 
+	 * @param player The player the gamerule is being asked for.
+	 * @param rules The world's gamerules.
+	 * @param key The gamerule being asked for.
+	 * @param source The method the gamerule is being asked for in, for the statistics.
+	 * @return {@link KeepMask#EVERYTHING} if the player keeps their whole inventory,
+	 *         {@link KeepMask#NONE} if they drop it, or their mask with {@link KeepMask#PARTIAL}
+	 *         set if they keep part of it. For any other gamerule, either of the first two.
+	 */
+	public static long interceptKeptSlots(KeepInvPlayer player, GameRules rules,
+			GameRules.Key<GameRules.BooleanRule> key, InterceptSource source) {
+		if (!InterceptEvent.isTypeEnabled()) {
+			return decideKeptSlots(player, rules, key, source);
+		}
+		var event = new InterceptEvent();
+		event.begin();
+		long keptSlots = decideKeptSlots(player, rules, key, source);
+		event.end();
+		if (event.shouldCommit()) {
+			event.player = ((PlayerEntity) player).getUuidAsString();
+			event.source = source.getMethodName();
+			if (keptSlots == KeepMask.EVERYTHING) {
+				event.outcome = "keep";
+			} else if (keptSlots == KeepMask.NONE) {
+				event.outcome = "drop";
+			} else {
+				event.outcome = "partial";
+				event.keptSlots = KeepMask.format(keptSlots & ~KeepMask.PARTIAL);
+			}
+			event.commit();
+		}
+		return keptSlots;
+	}
+
+	/** Works out which slots a player keeps for {@link #interceptKeptSlots}. */
+	private static long decideKeptSlots(KeepInvPlayer player, GameRules rules,
+			GameRules.Key<GameRules.BooleanRule> key, InterceptSource source) {
+		awaitConfigLoaded();
+		long startNanos = System.nanoTime();
+		if (key != GameRules.KEEP_INVENTORY || !CONFIG.isEnabled()) {
+			return applyPreference(PreferenceIndex.DEFAULT, rules, key, source, startNanos)
+					? KeepMask.EVERYTHING
+					: KeepMask.NONE;
+		}
+		byte preference = player.individualkeepinv$getCachedPreference();
+		if (preference == PreferenceIndex.DEFAULT) {
+			preference = player.individualkeepinv$getDeathRule();
+		}
+		if (applyPreference(preference, rules, key, source, startNanos)) {
+			return KeepMask.EVERYTHING;
+		}
+		long keptSlots = player.individualkeepinv$getDeathKeptSlots();
+		if (keptSlots == KeepMask.NONE && !itemFilter.hasKeptItems()) {
+			return KeepMask.NONE;
+		}
+		return keptSlots | KeepMask.PARTIAL;
+	}
+
+	/**
+	 * Returns the value of the gamerule for a mask returned by {@link #interceptKeptSlots}: whether
+	 * the experience is kept for {@link PlayerEntity#getExperienceToDrop}, and otherwise whether
+	 * anything is kept.
+	 */
+	private static boolean keepsFor(long keptSlots, InterceptSource source) {
+		if (source == InterceptSource.GET_EXPERIENCE_TO_DROP) {
+			return (keptSlots & KeepMask.XP) != 0;
+		}
+		return keptSlots != KeepMask.NONE;
+	}
+
+	/**
+	 * Drops the stacks a player doesn't keep, like {@link PlayerInventory#dropAll} would, in a
+	 * single pass over their inventory. Stacks with Curse of Vanishing are destroyed instead.
+	 * 
+	 * @param player The player who died.
+	 * @param keptSlots The {@link KeepMask} of the slots they keep, which keeps nothing unless
+	 *        {@link KeepMask#PARTIAL} is set.
+	 * @param vaulted The list to move the stacks to instead of dropping them, or
+	 *        <code>null</code> to drop them.
+	 */
+	private static void dropUnkeptItems(PlayerEntity player, long keptSlots,
+			@Nullable List<ItemStack> vaulted) {
+		boolean partial = (keptSlots & KeepMask.PARTIAL) != 0;
+		KeptItemFilter filter = itemFilter;
+		PlayerInventory inventory = player.getInventory();
+		int size = inventory.size();
+		for (int slot = 0; slot < size; slot++) {
+			ItemStack stack = inventory.getStack(slot);
+			if (stack.isEmpty() || partial && filter.keeps(stack,
+					slot < KeepMask.SLOTS && KeepMask.keepsSlot(keptSlots, slot))) {
+				continue;
+			}
+			inventory.setStack(slot, ItemStack.EMPTY);
+			if (EnchantmentHelper.hasAnyEnchantmentsWith(stack,
+					EnchantmentEffectComponentTypes.PREVENT_EQUIPMENT_DROP)) {
+				continue;
+			}
+			if (vaulted != null) {
+				vaulted.add(stack);
+			} else {
+				player.dropItem(stack, true, false);
+			}
+		}
+	}
+
+	/**
+	 * Returns the player's preference if they have one, or otherwise the gamerule, and records the
+	 * intercepted check in {@link #STATS}.
+	 */
+	private static boolean applyPreference(byte preference, GameRules rules,
+			GameRules.Key<GameRules.BooleanRule> key, InterceptSource source, long startNanos) {
+		boolean override = preference != PreferenceIndex.DEFAULT;
+		boolean result = override ? preference == PreferenceIndex.KEEP : rules.getBoolean(key);
+		STATS.recordIntercept(source, override, System.nanoTime() - startNanos);
+		return result;
 	}
 
 	/**
@@ -47,7 +614,8 @@ public class IndividualKeepInv implements ModInitializer {
 	 */
 	public static boolean interceptGetKeepInventory(GameProfile profile, GameRules rules,
 			GameRules.Key<GameRules.BooleanRule> key) {
-		if (key.getName().equals("keepInventory") && CONFIG.isEnabled()) {
+		awaitConfigLoaded();
+		if (key == GameRules.KEEP_INVENTORY && CONFIG.isEnabled()) {
 			return CONFIG.shouldKeepInventory(profile).orElse(rules.getBoolean(key));
 		}
 		return rules.getBoolean(key);
@@ -0,0 +1,68 @@
+package dev.evanfinken.individualkeepinv;
+
+import dev.evanfinken.individualkeepinv.config.KeepMask;
+import dev.evanfinken.individualkeepinv.config.PreferenceIndex;
+
+/**
+ * Implemented by <code>ServerPlayerEntity</code> through a mixin to cache the player's keep
+ * inventory preference on the player itself.
+ * <p>
+ * The cached preference is what the death path reads, so it must be updated (or invalidated)
+ * whenever the player's preference in the config changes.
+ */
+public interface KeepInvPlayer {
+    /** Marks a cached preference that hasn't been looked up from the config yet. */
+    byte UNRESOLVED = -1;
+
+    /**
+     * Gets the player's cached keep inventory preference, looking it up from the config first if
+     * it hasn't been resolved yet.
+     * 
+     * @return One of {@link PreferenceIndex#DEFAULT}, {@link PreferenceIndex#KEEP}, or
+     *         {@link PreferenceIndex#DROP}.
+     */
+    byte individualkeepinv$getCachedPreference();
+
+    /**
+     * Sets the player's cached keep inventory preference.
+     * 
+     * @param preference One of {@link PreferenceIndex#DEFAULT}, {@link PreferenceIndex#KEEP},
+     *        {@link PreferenceIndex#DROP}, or {@link #UNRESOLVED} to look it up again the next
+     *        time it's needed.
+     */
+    void individualkeepinv$setCachedPreference(byte preference);
+
+    /**
+     * Gets the outcome of the config's rules for the player's last death, which applies when the
+     * player is on the default. It is worked out once when the player dies, since the rules
+     * depend on where and how they died, and carried over to the respawned player.
+     * 
+     * @return One of {@link PreferenceIndex#DEFAULT} if no rule decides, or
+     *         {@link PreferenceIndex#KEEP} or {@link PreferenceIndex#DROP}.
+     */
+    byte individualkeepinv$getDeathRule();
+
+    /**
+     * Sets the outcome of the config's rules for the player's last death.
+     * 
+     * @param outcome One of {@link PreferenceIndex#DEFAULT}, {@link PreferenceIndex#KEEP}, or
+     *        {@link PreferenceIndex#DROP}.
+     */
+    void individualkeepinv$setDeathRule(byte outcome);
+
+    /**
+     * Gets the {@link KeepMask} that applied to the player when they last died, which decides what
+     * they keep if their inventory is dropped. Like the outcome of the rules, it is worked out once
+     * when the player dies and carried over to the respawned player.
+     * 
+     * @return The mask, or {@link KeepMask#NONE} to drop everything.
+     */
+    long individualkeepinv$getDeathKeptSlots();
+
+    /**
+     * Sets the {@link KeepMask} that applied to the player when they last died.
+     * 
+     * @param keptSlots The mask.
+     */
+    void individualkeepinv$setDeathKeptSlots(long keptSlots);
+}
@@ -0,0 +1,96 @@
+package dev.evanfinken.individualkeepinv;
+
+import java.util.BitSet;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import dev.evanfinken.individualkeepinv.config.KeepMask;
+import net.minecraft.item.Item;
+import net.minecraft.item.ItemStack;
+import net.minecraft.registry.Registries;
+import net.minecraft.registry.RegistryKeys;
+import net.minecraft.registry.entry.RegistryEntry;
+import net.minecraft.registry.tag.TagKey;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.InvalidIdentifierException;
+
+/**
+ * The config's "keptItems" and "droppedItems" item tags, resolved to sets of raw item IDs.
+ * <p>
+ * Tags are only bound once the server has loaded its data packs, so a filter is resolved when the
+ * server starts, and again whenever the data packs or the config are reloaded. Checking a stack
+ * against it is then a bit lookup rather than a walk over the tag's entries.
+ */
+public final class KeptItemFilter {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    /** A filter without any tags. */
+    public static final KeptItemFilter EMPTY = new KeptItemFilter(new BitSet(), new BitSet());
+
+    private final BitSet keptItems;
+    private final BitSet droppedItems;
+
+    private KeptItemFilter(BitSet keptItems, BitSet droppedItems) {
+        this.keptItems = keptItems;
+        this.droppedItems = droppedItems;
+    }
+
+    /**
+     * Resolves item tags to a filter. Tags that are invalid or don't exist are logged and skipped.
+     * 
+     * @param keptTags The tags whose items are always kept, with or without a leading '#'.
+     * @param droppedTags The tags whose items are always dropped.
+     * @return The filter.
+     */
+    public static KeptItemFilter resolve(List<String> keptTags, List<String> droppedTags) {
+        if (keptTags.isEmpty() && droppedTags.isEmpty()) {
+            return EMPTY;
+        }
+        return new KeptItemFilter(resolve(keptTags), resolve(droppedTags));
+    }
+
+    private static BitSet resolve(List<String> tags) {
+        var items = new BitSet();
+        for (String name : tags) {
+            Identifier id;
+            try {
+                id = Identifier.of(name.startsWith("#") ? name.substring(1) : name);
+            } catch (InvalidIdentifierException e) {
+                LOGGER.warn("Skipping invalid item tag {}.", name, e);
+                continue;
+            }
+            TagKey<Item> tag = TagKey.of(RegistryKeys.ITEM, id);
+            boolean found = false;
+            for (RegistryEntry<Item> entry : Registries.ITEM.iterateEntries(tag)) {
+                items.set(Registries.ITEM.getRawId(entry.value()));
+                found = true;
+            }
+            if (!found) {
+                LOGGER.warn("Item tag {} is empty or doesn't exist.", name);
+            }
+        }
+        return items;
+    }
+
+    /** Returns whether this filter keeps any items regardless of their slot. */
+    public boolean hasKeptItems() {
+        return !keptItems.isEmpty();
+    }
+
+    /**
+     * Returns whether a stack is kept when a player dies with a {@link KeepMask}.
+     * <p>
+     * Items in "droppedItems" are always dropped, and items in "keptItems" are always kept.
+     * Anything else is kept if its slot is.
+     * 
+     * @param stack The stack in the slot.
+     * @param slotKept Whether the mask keeps the stack's slot.
+     * @return Whether the stack is kept.
+     */
+    public boolean keeps(ItemStack stack, boolean slotKept) {
+        int id = Item.getRawId(stack.getItem());
+        if (droppedItems.get(id)) {
+            return false;
+        }
+        return slotKept || keptItems.get(id);
+    }
+}
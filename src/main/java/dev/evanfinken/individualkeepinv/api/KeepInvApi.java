@@ -0,0 +1,110 @@
+package dev.evanfinken.individualkeepinv.api;
+
+import java.util.UUID;
+import dev.evanfinken.individualkeepinv.config.KeepMask;
+import dev.evanfinken.individualkeepinv.config.PreferenceIndex;
+
+/**
+ * The API for other mods, such as grave or minigame mods, that need to know whether a player keeps
+ * their inventory before they die.
+ * <p>
+ * Preferences are answered by UUID as one of {@link #DEFAULT}, {@link #KEEP}, or {@link #DROP}.
+ * Lookups don't allocate and don't take any locks, so they are cheap enough to make every tick,
+ * but mods that cache the results can instead register a {@link KeepInvListener} to hear about
+ * changes. Get the API either from {@link #get()} or by declaring a {@link KeepInvApiInitializer}
+ * entrypoint.
+ * <p>
+ * With the "sql" and "sharded" storages, only the preferences of online players (and of players
+ * who left within "releaseDelaySeconds") are in memory, so other players are reported as
+ * {@link #DEFAULT}. Preferences are stored per world, so while no server is running, every
+ * player is reported as {@link #DEFAULT} too. The API never waits for a world's config to load:
+ * until it has, players are reported as {@link #DEFAULT} and kept slots are the default mask, and
+ * listeners are notified of the loaded preferences once it has.
+ */
+public interface KeepInvApi {
+    /** The player follows the <code>keepInventory</code> gamerule. */
+    byte DEFAULT = PreferenceIndex.DEFAULT;
+    /** The player keeps their inventory. */
+    byte KEEP = PreferenceIndex.KEEP;
+    /** The player drops their inventory. */
+    byte DROP = PreferenceIndex.DROP;
+
+    /** Gets the API. */
+    static KeepInvApi get() {
+        return KeepInvApiImpl.INSTANCE;
+    }
+
+    /**
+     * Returns whether the mod is enabled. While it is disabled, every player is reported as
+     * {@link #DEFAULT}.
+     */
+    boolean isEnabled();
+
+    /**
+     * Gets the keep inventory preference of a player.
+     * <p>
+     * This is only the player's own preference. The config's rules, such as a dimension that
+     * always drops inventories, are applied on top of it when the player dies.
+     * 
+     * @param id The UUID of the player.
+     * @return One of {@link #DEFAULT}, {@link #KEEP}, or {@link #DROP}.
+     */
+    byte getPreference(UUID id);
+
+    /**
+     * Gets the keep inventory preferences of several players at once, all read from the same
+     * version of the config.
+     * 
+     * @param ids The UUIDs of the players.
+     * @param results The array to store each player's preference in, at the same index as their
+     *        UUID. Must be at least as long as <code>ids</code>.
+     * @see #getPreference(UUID)
+     */
+    default void getPreferences(UUID[] ids, byte[] results) {
+        getPreferences(ids, 0, results, 0, ids.length);
+    }
+
+    /**
+     * Gets the keep inventory preferences of a range of players at once, all read from the same
+     * version of the config.
+     * 
+     * @param ids The UUIDs of the players.
+     * @param idsOffset The index in <code>ids</code> of the first player.
+     * @param results The array to store the preferences in.
+     * @param resultsOffset The index in <code>results</code> to store the first preference at.
+     * @param length The number of players.
+     * @throws IndexOutOfBoundsException If either range is out of its array's bounds.
+     * @see #getPreference(UUID)
+     */
+    void getPreferences(UUID[] ids, int idsOffset, byte[] results, int resultsOffset, int length);
+
+    /**
+     * Gets the inventory slots, and whether the experience, that a player keeps when their
+     * inventory is otherwise dropped.
+     * <p>
+     * Bit <code>n</code> is slot <code>n</code> of the player's inventory: the hotbar is
+     * <code>0</code>-<code>8</code>, the rest of the main inventory <code>9</code>-<code>35</code>,
+     * the armor <code>36</code>-<code>39</code>, and the offhand <code>40</code>. Bit
+     * <code>41</code> keeps the experience. The config's "keptItems" and "droppedItems" tags are
+     * applied on top of the mask.
+     * 
+     * @param id The UUID of the player.
+     * @return The player's mask, or the config's default mask if they didn't choose one.
+     * @see KeepMask
+     */
+    long getKeptSlots(UUID id);
+
+    /**
+     * Adds a listener that is notified after players' preferences change.
+     * 
+     * @param listener The listener to add.
+     */
+    void addListener(KeepInvListener listener);
+
+    /**
+     * Removes a listener added by {@link #addListener}.
+     * 
+     * @param listener The listener to remove.
+     */
+    void removeListener(KeepInvListener listener);
+}
@@ -0,0 +1,93 @@
+package dev.evanfinken.individualkeepinv.api;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import dev.evanfinken.individualkeepinv.IndividualKeepInv;
+import dev.evanfinken.individualkeepinv.config.ConfigState;
+import dev.evanfinken.individualkeepinv.config.KeepInvList;
+import dev.evanfinken.individualkeepinv.config.PreferenceListener;
+
+/**
+ * The {@link KeepInvApi} backed by {@link IndividualKeepInv#CONFIG}. It reads whatever state the
+ * config has published without waiting for it to load.
+ */
+final class KeepInvApiImpl implements KeepInvApi {
+    static final KeepInvApiImpl INSTANCE = new KeepInvApiImpl();
+
+    /** The config listener added for each API listener, so that it can be removed again. */
+    private final Map<KeepInvListener, PreferenceListener> listeners = new ConcurrentHashMap<>();
+
+    private KeepInvApiImpl() {}
+
+    @Override
+    public boolean isEnabled() {
+        return IndividualKeepInv.CONFIG.isEnabled();
+    }
+
+    @Override
+    public byte getPreference(UUID id) {
+        ConfigState state = IndividualKeepInv.CONFIG.getState();
+        if (!state.isEnabled()) {
+            return DEFAULT;
+        }
+        return state.getKeepInvList().getPreference(id.getMostSignificantBits(),
+                id.getLeastSignificantBits());
+    }
+
+    @Override
+    public void getPreferences(UUID[] ids, int idsOffset, byte[] results, int resultsOffset,
+            int length) {
+        Objects.checkFromIndexSize(idsOffset, length, ids.length);
+        Objects.checkFromIndexSize(resultsOffset, length, results.length);
+        ConfigState state = IndividualKeepInv.CONFIG.getState();
+        if (!state.isEnabled()) {
+            Arrays.fill(results, resultsOffset, resultsOffset + length, DEFAULT);
+            return;
+        }
+        KeepInvList keepInvList = state.getKeepInvList();
+        for (int i = 0; i < length; i++) {
+            UUID id = ids[idsOffset + i];
+            results[resultsOffset + i] = keepInvList.getPreference(id.getMostSignificantBits(),
+                    id.getLeastSignificantBits());
+        }
+    }
+
+    @Override
+    public long getKeptSlots(UUID id) {
+        return IndividualKeepInv.CONFIG.getState().getKeptSlots(id);
+    }
+
+    @Override
+    public void addListener(KeepInvListener listener) {
+        var adapter = new PreferenceListener() {
+            @Override
+            public void onPreferencesChanged(KeepInvList changes) {
+                // while the mod is disabled, every player is on the default anyway
+                if (!IndividualKeepInv.CONFIG.isEnabled()) {
+                    return;
+                }
+                changes.forEachEntry((mostSigBits, leastSigBits, name, preference) -> listener
+                        .onPreferenceChanged(new UUID(mostSigBits, leastSigBits), preference));
+            }
+
+            @Override
+            public void onAllPreferencesChanged() {
+                listener.onPreferencesInvalidated();
+            }
+        };
+        if (listeners.putIfAbsent(listener, adapter) == null) {
+            IndividualKeepInv.CONFIG.addListener(adapter);
+        }
+    }
+
+    @Override
+    public void removeListener(KeepInvListener listener) {
+        PreferenceListener adapter = listeners.remove(listener);
+        if (adapter != null) {
+            IndividualKeepInv.CONFIG.removeListener(adapter);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package dev.evanfinken.individualkeepinv.api;
+
+/**
+ * An entrypoint for mods that use the {@link KeepInvApi}, declared under
+ * <code>"individual-keepinv"</code> in their <code>fabric.mod.json</code>:
+ * 
+ * <pre>
+ * "entrypoints": {
+ *     "individual-keepinv": ["com.example.ExampleKeepInvCompat"]
+ * }
+ * </pre>
+ * <p>
+ * Since the entrypoint is only loaded when Individual KeepInv is installed, the rest of the mod
+ * can use the API without a hard dependency on it.
+ */
+@FunctionalInterface
+public interface KeepInvApiInitializer {
+    /**
+     * Called once Individual KeepInv has been initialized.
+     * 
+     * @param api The API.
+     */
+    void onKeepInvApiReady(KeepInvApi api);
+}
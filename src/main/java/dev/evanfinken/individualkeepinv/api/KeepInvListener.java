@@ -0,0 +1,27 @@
+package dev.evanfinken.individualkeepinv.api;
+
+import java.util.UUID;
+
+/**
+ * Notified by the {@link KeepInvApi} after players' keep inventory preferences change.
+ * <p>
+ * Listeners are called on whichever thread made the change, which may be the server thread, a
+ * command, a config reload, or a background sync, so they must be thread-safe and shouldn't
+ * block.
+ */
+public interface KeepInvListener {
+    /**
+     * Called after a player's preference changed.
+     * 
+     * @param id The UUID of the player.
+     * @param preference The player's new preference, as returned by
+     *        {@link KeepInvApi#getPreference(UUID)}.
+     */
+    void onPreferenceChanged(UUID id, byte preference);
+
+    /**
+     * Called after any player's preference may have changed, for example because the config was
+     * reloaded or the mod was enabled or disabled. Cached preferences should be discarded.
+     */
+    void onPreferencesInvalidated();
+}
@@ -1,20 +1,68 @@
 package dev.evanfinken.individualkeepinv.command;
 
+import static net.minecraft.server.command.CommandManager.argument;
 import static net.minecraft.server.command.CommandManager.literal;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import com.mojang.authlib.GameProfile;
 import com.mojang.brigadier.CommandDispatcher;
+import com.mojang.brigadier.arguments.StringArgumentType;
 import com.mojang.brigadier.context.CommandContext;
+import com.mojang.brigadier.exceptions.CommandSyntaxException;
 import dev.evanfinken.individualkeepinv.IndividualKeepInv;
+import dev.evanfinken.individualkeepinv.KeepInvPlayer;
 import dev.evanfinken.individualkeepinv.config.Config;
+import dev.evanfinken.individualkeepinv.config.KeepInvList;
+import dev.evanfinken.individualkeepinv.config.KeepMask;
+import dev.evanfinken.individualkeepinv.config.PreferenceHistory;
+import dev.evanfinken.individualkeepinv.config.PreferenceIndex;
+import dev.evanfinken.individualkeepinv.config.PreferenceTransfer;
+import dev.evanfinken.individualkeepinv.stats.InterceptSource;
+import dev.evanfinken.individualkeepinv.stats.KeepInvStats;
+import dev.evanfinken.individualkeepinv.stats.LatencyHistogram;
+import dev.evanfinken.individualkeepinv.vault.ItemVault;
+import net.minecraft.command.argument.GameProfileArgumentType;
+import net.minecraft.item.ItemStack;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.text.Text;
+import net.minecraft.util.UserCache;
 
 public class KeepInvCommand {
     public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    /** The most changes the history commands list at once. */
+    private static final int HISTORY_LIMIT = 20;
+    /**
+     * Runs the file I/O of commands such as imports and exports, so that the server thread never
+     * waits on it. A single thread keeps them from running at the same time.
+     */
+    private static final ExecutorService BACKGROUND =
+            Executors.newSingleThreadExecutor(runnable -> {
+                var thread = new Thread(runnable, "Individual KeepInv Commands");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    /** The part of a command that runs in the background, returning the messages to send. */
+    @FunctionalInterface
+    private interface BackgroundTask {
+        List<String> run() throws Exception;
+    }
 
     /**
      * Gets the <code>GameProfile</code> of the player that executed the command
@@ -52,6 +100,33 @@ public class KeepInvCommand {
         context.getSource().sendMessage(Text.literal(message));
     }
 
+    /**
+     * Runs part of a command on the background thread and then sends its messages to the source
+     * of the command on the server thread.
+     * 
+     * @param context The context containing the source of the command.
+     * @param task The part of the command to run in the background.
+     * @param failureMessage The message to log and send if the task fails.
+     */
+    private static void runInBackground(CommandContext<ServerCommandSource> context,
+            BackgroundTask task, String failureMessage) {
+        MinecraftServer server = context.getSource().getServer();
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return task.run();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, BACKGROUND).whenCompleteAsync((messages, e) -> {
+            if (e == null) {
+                messages.forEach(message -> sendMessage(context, message));
+            } else {
+                LOGGER.warn(failureMessage, e instanceof CompletionException ? e.getCause() : e);
+                sendMessage(context, failureMessage);
+            }
+        }, server);
+    }
+
     /**
      * Registers the <code>/keepinv</code> command.
      * 
@@ -68,24 +143,76 @@ public class KeepInvCommand {
                         .then(literal("false")
                                 .executes(context -> executeSetKeepInventory(context, false)))
                         .then(literal("default")
-                                .executes(context -> executeSetKeepInventory(context, null))))
+                                .executes(context -> executeSetKeepInventory(context, null)))
+                        .then(argument("targets", GameProfileArgumentType.gameProfile())
+                                .requires(source -> hasKeepInvOpPermissionLevel(source))
+                                .then(literal("true").executes(
+                                        context -> executeSetKeepInventoryOf(context, true)))
+                                .then(literal("false").executes(
+                                        context -> executeSetKeepInventoryOf(context, false)))
+                                .then(literal("default").executes(
+                                        context -> executeSetKeepInventoryOf(context, null)))))
+                .then(literal("slots")
+                        .then(literal("default")
+                                .executes(context -> executeSetKeptSlots(context, null)))
+                        .then(argument("slots", StringArgumentType.greedyString())
+                                .executes(context -> executeSetKeptSlots(context,
+                                        StringArgumentType.getString(context, "slots")))))
+                .then(literal("claim").executes(context -> executeClaim(context)))
+                .then(literal("reset-all").requires(source -> hasKeepInvOpPermissionLevel(source))
+                        .executes(context -> executeResetAll(context)))
+                .then(literal("import").requires(source -> hasKeepInvOpPermissionLevel(source))
+                        .then(argument("file", StringArgumentType.string())
+                                .executes(context -> executeImport(context))))
+                .then(literal("export").requires(source -> hasKeepInvOpPermissionLevel(source))
+                        .then(argument("file", StringArgumentType.string())
+                                .executes(context -> executeExport(context))))
                 .then(literal("on").requires(source -> hasKeepInvOpPermissionLevel(source))
                         .executes(context -> executeEnable(context)))
                 .then(literal("off").requires(source -> hasKeepInvOpPermissionLevel(source))
                         .executes(context -> executeDisable(context)))
                 .then(literal("reload").requires(source -> hasKeepInvOpPermissionLevel(source))
-                        .executes(context -> executeReload(context))));
+                        .executes(context -> executeReload(context)))
+                .then(literal("export-json")
+                        .requires(source -> hasKeepInvOpPermissionLevel(source))
+                        .executes(context -> executeExportJson(context)))
+                .then(literal("stats").requires(source -> hasKeepInvOpPermissionLevel(source))
+                        .executes(context -> executeStats(context)))
+                .then(literal("history").requires(source -> hasKeepInvOpPermissionLevel(source))
+                        .then(literal("changes")
+                                .then(argument("from", StringArgumentType.string())
+                                        .executes(context -> executeHistoryChanges(context,
+                                                StringArgumentType.getString(context, "from"),
+                                                null))
+                                        .then(argument("to", StringArgumentType.string())
+                                                .executes(context -> executeHistoryChanges(
+                                                        context,
+                                                        StringArgumentType.getString(context,
+                                                                "from"),
+                                                        StringArgumentType.getString(context,
+                                                                "to"))))))
+                        .then(argument("targets", GameProfileArgumentType.gameProfile())
+                                .executes(context -> executeHistory(context, null))
+                                .then(literal("at").then(
+                                        argument("time", StringArgumentType.greedyString())
+                                                .executes(context -> executeHistory(context,
+                                                        StringArgumentType.getString(context,
+                                                                "time"))))))));
     }
 
     /**
      * Returns whether the source of the command has permission to run the mod's user level
      * commands.
+     * <p>
+     * Every <code>/keepinv</code> command checks this first, so this also waits for the config to
+     * finish loading if the server is still starting.
      * 
      * @param source The source of the command.
      * @return Whether the source of the command has permission to run the mod's user level
      *         commands.
      */
     public static boolean hasKeepInvUserPermissionLevel(ServerCommandSource source) {
+        IndividualKeepInv.awaitConfigLoaded();
         return source.hasPermissionLevel(IndividualKeepInv.CONFIG.getUserPermissionLevel());
     }
 
@@ -95,6 +222,7 @@ public class KeepInvCommand {
      *         commands.
      */
     public static boolean hasKeepInvOpPermissionLevel(ServerCommandSource source) {
+        IndividualKeepInv.awaitConfigLoaded();
         return source.hasPermissionLevel(IndividualKeepInv.CONFIG.getOpPermissionLevel());
     }
 
@@ -116,6 +244,11 @@ public class KeepInvCommand {
             GameProfile profile = getGameProfileFromContext(context);
             String preference = optionalToString(CONFIG.shouldKeepInventory(profile));
             message += String.format(" Your keep inventory preference is %s.", preference);
+            long keptSlots = CONFIG.getState().getKeptSlots(profile.getId());
+            if (keptSlots != KeepMask.NONE) {
+                message += String.format(" When your inventory is dropped, you keep: %s.",
+                        KeepMask.format(keptSlots));
+            }
         }
         sendMessage(context, message);
         return 1;
@@ -136,12 +269,87 @@ public class KeepInvCommand {
         GameProfile profile = getGameProfileFromContext(context);
         Optional<Boolean> keepInventoryOptional = Optional.ofNullable(keepInventory);
         IndividualKeepInv.CONFIG.setKeepInventory(profile, keepInventoryOptional);
+        ((KeepInvPlayer) context.getSource().getPlayer()).individualkeepinv$setCachedPreference(
+                KeepInvList.toPreference(keepInventoryOptional));
         String preference = optionalToString(keepInventoryOptional);
         sendMessage(context, String.format("Successfully set your keep inventory preference to %s.",
                 preference));
         return 1;
     }
 
+    /**
+     * Executes the <code>/keepinv slots</code> command.
+     * <p>
+     * The command sets what the player that executed the command keeps when their inventory is
+     * dropped, such as <code>hotbar,armor,xp</code>. It applies from their next death.
+     * 
+     * @param context The context containing the source of the command.
+     * @param slots The comma-separated {@link KeepMask} to set, or <code>null</code> to use the
+     *        config's default.
+     * @return <code>1</code> if the mask was set, or <code>0</code> if it was invalid.
+     */
+    public static int executeSetKeptSlots(CommandContext<ServerCommandSource> context,
+            @Nullable String slots) {
+        Long mask = null;
+        if (slots != null) {
+            try {
+                mask = KeepMask.parse(slots);
+            } catch (IllegalArgumentException e) {
+                sendMessage(context, e.getMessage());
+                return 0;
+            }
+        }
+        IndividualKeepInv.CONFIG.setKeptSlots(getGameProfileFromContext(context), mask);
+        sendMessage(context, String.format("Successfully set your kept slots to %s.",
+                mask == null ? "the default" : KeepMask.format(mask)));
+        return 1;
+    }
+
+    /**
+     * Executes the <code>/keepinv claim</code> command.
+     * <p>
+     * The command gives the player that executed it the items stored in their vault, dropping
+     * whatever doesn't fit in their inventory. The vault is read on a background thread, and the
+     * items are given on the server thread once it has been. If the player left or died in the
+     * meantime, the items are put back.
+     * 
+     * @param context The context containing the source of the command.
+     * @return <code>1</code> if the vault is being claimed, or <code>0</code> if no world's vault
+     *         is open.
+     */
+    public static int executeClaim(CommandContext<ServerCommandSource> context) {
+        ItemVault vault = IndividualKeepInv.getVault();
+        if (vault == null) {
+            sendMessage(context, "There is no vault to claim.");
+            return 0;
+        }
+        MinecraftServer server = context.getSource().getServer();
+        UUID id = getGameProfileFromContext(context).getId();
+        vault.claim(id).whenCompleteAsync((items, e) -> {
+            if (e != null) {
+                LOGGER.warn("Failed to claim the vault of {}.", id, e);
+                sendMessage(context, "Failed to claim your vault.");
+                return;
+            }
+            if (items.isEmpty()) {
+                sendMessage(context, "Your vault is empty.");
+                return;
+            }
+            ServerPlayerEntity player = server.getPlayerManager().getPlayer(id);
+            if (player == null || player.isDead()) {
+                vault.deposit(id, items);
+                return;
+            }
+            List<ItemStack> stacks = ItemVault.toStacks(items, player.getRegistryManager());
+            for (ItemStack stack : stacks) {
+                player.getInventory().offerOrDrop(stack);
+            }
+            sendMessage(context,
+                    String.format("Claimed %d stacks from your vault.", stacks.size()));
+        }, server);
+        return 1;
+    }
+
     /**
      * Enables the mod.
      * 
@@ -168,19 +376,328 @@ public class KeepInvCommand {
 
     /**
      * Reloads the mod's config file.
+     * <p>
+     * The file is read on a background thread, so the server doesn't wait for it. The result is
+     * sent to the source of the command once the reload has finished.
      * 
      * @param context The context containing the source of the command.
      * @return <code>1</code>.
      */
     public static int executeReload(CommandContext<ServerCommandSource> context) {
+        MinecraftServer server = context.getSource().getServer();
+        IndividualKeepInv.reloadConfig(server, false).whenCompleteAsync((result, e) -> {
+            if (e == null) {
+                LOGGER.info("Successfully reloaded the config file.");
+                sendMessage(context, "Successfully reloaded the config file.");
+            } else {
+                LOGGER.warn("Failed to reload the config file.", e);
+                sendMessage(context, "Failed to reload the config file.");
+            }
+        }, server);
+        return 1;
+    }
+
+    /**
+     * Exports the config, including every player's preference, to a JSON file next to the config
+     * file so that it can be edited by hand.
+     * <p>
+     * The export runs on a background thread, and the result is sent to the source of the
+     * command once it has finished.
+     * 
+     * @param context The context containing the source of the command.
+     * @return <code>1</code>.
+     */
+    public static int executeExportJson(CommandContext<ServerCommandSource> context) {
+        Path target = IndividualKeepInv.CONFIG.getDefaultExportPath();
+        runInBackground(context, () -> {
+            IndividualKeepInv.CONFIG.exportJson(target);
+            LOGGER.info("Successfully exported the config to {}.", target);
+            return List.of(String.format("Successfully exported the config to %s.", target));
+        }, "Failed to export the config.");
+        return 1;
+    }
+
+    /**
+     * Shows the mod's runtime statistics: how often the "keepInventory" gamerule was intercepted
+     * in each method and with what outcome, how long that took, how long the config took to save
+     * and load, and how much memory the preferences use.
+     * 
+     * @param context The context containing the source of the command.
+     * @return <code>1</code>.
+     */
+    public static int executeStats(CommandContext<ServerCommandSource> context) {
+        KeepInvStats stats = IndividualKeepInv.STATS;
+        Config CONFIG = IndividualKeepInv.CONFIG;
+        sendMessage(context, "Intercepts (override / gamerule, mean / p99 / max):");
+        for (InterceptSource source : InterceptSource.values()) {
+            LatencyHistogram times = stats.getInterceptTimes(source);
+            sendMessage(context, String.format("  %s: %d / %d, %.0f / %d / %d ns",
+                    source.getMethodName(), stats.getInterceptCount(source, true),
+                    stats.getInterceptCount(source, false), times.getMeanNanos(),
+                    times.getPercentileNanos(99), times.getMaxNanos()));
+        }
+        sendMessage(context, String.format(
+                "Saves: %d, mean %.2f ms, max %.2f ms, %d bytes written, %d coalesced",
+                stats.getSaveCount(), stats.getSaveMeanMillis(), stats.getSaveMaxMillis(),
+                stats.getBytesWritten(), stats.getCoalescedSaveCount()));
+        sendMessage(context, String.format("Loads: %d, mean %.2f ms, max %.2f ms",
+                stats.getLoadCount(), stats.getLoadMeanMillis(), stats.getLoadMaxMillis()));
+        sendMessage(context, String.format(
+                "Preferences: %d in memory (about %d KiB), %d in the mapped file, %s storage",
+                stats.getIndexSize(), stats.getIndexMemoryBytes() / 1024,
+                stats.getMappedFileSize(), CONFIG.getStorage().getName()));
+        return 1;
+    }
+
+    /**
+     * Executes the <code>/keepinv history &lt;targets&gt;</code> command.
+     * <p>
+     * Without a time, the command lists the most recent preference changes of each targeted
+     * player. With one, it shows what each of their preferences was at that time. The history is
+     * read on a background thread, and the result is sent once it has been read.
+     * 
+     * @param context The context containing the source of the command and the targets.
+     * @param time The time to show the preferences at, as parsed by {@link #parseTime}, or
+     *        <code>null</code> to list the recent changes.
+     * @return The number of targeted players, or <code>0</code> if the time was invalid.
+     * @throws CommandSyntaxException If the targets couldn't be resolved.
+     */
+    public static int executeHistory(CommandContext<ServerCommandSource> context,
+            @Nullable String time) throws CommandSyntaxException {
+        Collection<GameProfile> targets = GameProfileArgumentType.getProfileArgument(context,
+                "targets");
+        Long timeMillis = null;
+        if (time != null) {
+            try {
+                timeMillis = parseTime(time);
+            } catch (IllegalArgumentException e) {
+                sendMessage(context, e.getMessage());
+                return 0;
+            }
+        }
+        Long at = timeMillis;
+        PreferenceHistory history = IndividualKeepInv.CONFIG.getHistory();
+        runInBackground(context, () -> {
+            var messages = new ArrayList<String>();
+            for (GameProfile profile : targets) {
+                if (at == null) {
+                    List<PreferenceHistory.Change> changes =
+                            history.getChanges(profile.getId(), HISTORY_LIMIT);
+                    messages.add(String.format("%s's last %d changes:", profile.getName(),
+                            changes.size()));
+                    for (PreferenceHistory.Change change : changes) {
+                        messages.add(formatChange(change, null));
+                    }
+                    continue;
+                }
+                byte preference = history.getPreferenceAt(profile.getId(), at);
+                if (preference == PreferenceIndex.ABSENT) {
+                    messages.add(String.format(
+                            "%s has no recorded changes, so their preference was %s.",
+                            profile.getName(), optionalToString(
+                                    IndividualKeepInv.CONFIG.shouldKeepInventory(profile))));
+                } else {
+                    messages.add(String.format("%s's preference at %s was %s.",
+                            profile.getName(), Instant.ofEpochMilli(at),
+                            optionalToString(KeepInvList.toOptional(preference))));
+                }
+            }
+            return messages;
+        }, "Failed to read the history.");
+        return targets.size();
+    }
+
+    /**
+     * Executes the <code>/keepinv history changes</code> command, which lists the preference
+     * changes made within a window of time, oldest first. The history is read on a background
+     * thread, and the result is sent once it has been read.
+     * 
+     * @param context The context containing the source of the command.
+     * @param from The start of the window, as parsed by {@link #parseTime}.
+     * @param to The end of the window, or <code>null</code> for now.
+     * @return <code>1</code>, or <code>0</code> if a time was invalid.
+     */
+    public static int executeHistoryChanges(CommandContext<ServerCommandSource> context,
+            String from, @Nullable String to) {
+        MinecraftServer server = context.getSource().getServer();
+        long fromMillis;
+        long toMillis;
         try {
-            IndividualKeepInv.CONFIG.load();
-            LOGGER.info("Successfully reloaded the config file.");
-            sendMessage(context, "Successfully reloaded the config file.");
-        } catch (Exception e) {
-            LOGGER.warn("Failed to reload the config file.", e);
-            sendMessage(context, "Failed to reload the config file.");
+            fromMillis = parseTime(from);
+            toMillis = to == null ? System.currentTimeMillis() : parseTime(to);
+        } catch (IllegalArgumentException e) {
+            sendMessage(context, e.getMessage());
+            return 0;
         }
+        PreferenceHistory history = IndividualKeepInv.CONFIG.getHistory();
+        runInBackground(context, () -> {
+            List<PreferenceHistory.Change> changes =
+                    history.getChanges(fromMillis, toMillis, HISTORY_LIMIT);
+            var messages = new ArrayList<String>();
+            messages.add(String.format("%d changes from %s to %s%s:", changes.size(),
+                    Instant.ofEpochMilli(fromMillis), Instant.ofEpochMilli(toMillis),
+                    changes.size() == HISTORY_LIMIT ? " (showing the first ones)" : ""));
+            for (PreferenceHistory.Change change : changes) {
+                messages.add(formatChange(change, server));
+            }
+            return messages;
+        }, "Failed to read the history.");
         return 1;
     }
+
+    /**
+     * Parses a time given to the history commands: either how long ago, such as <code>30m</code>,
+     * <code>12h</code>, or <code>7d</code>, or an ISO-8601 instant such as
+     * <code>"2024-05-01T18:30:00Z"</code>, which has to be quoted.
+     * 
+     * @param time The time to parse.
+     * @return The time in milliseconds since the epoch.
+     * @throws IllegalArgumentException If the time is invalid.
+     */
+    public static long parseTime(String time) {
+        String trimmed = time.trim();
+        if (trimmed.matches("\\d+[smhd]")) {
+            long amount = Long.parseLong(trimmed.substring(0, trimmed.length() - 1));
+            TimeUnit unit = switch (trimmed.charAt(trimmed.length() - 1)) {
+                case 's' -> TimeUnit.SECONDS;
+                case 'm' -> TimeUnit.MINUTES;
+                case 'h' -> TimeUnit.HOURS;
+                default -> TimeUnit.DAYS;
+            };
+            return System.currentTimeMillis() - unit.toMillis(amount);
+        }
+        try {
+            return Instant.parse(trimmed).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid time: " + time, e);
+        }
+    }
+
+    /**
+     * Formats a preference change for the history commands.
+     * 
+     * @param change The change to format.
+     * @param server The server to look up the player's name in, or <code>null</code> to leave it
+     *        out.
+     * @return The formatted change.
+     */
+    private static String formatChange(PreferenceHistory.Change change,
+            @Nullable MinecraftServer server) {
+        String player = "";
+        if (server != null) {
+            UserCache userCache = server.getUserCache();
+            Optional<GameProfile> profile = userCache == null ? Optional.empty()
+                    : userCache.getByUuid(change.id());
+            player = profile.map(GameProfile::getName).orElse(change.id().toString()) + ": ";
+        }
+        return String.format("  %s %s%s -> %s", Instant.ofEpochMilli(change.timeMillis()), player,
+                optionalToString(KeepInvList.toOptional(change.oldPreference())),
+                optionalToString(KeepInvList.toOptional(change.newPreference())));
+    }
+
+    /**
+     * Executes the <code>/keepinv set &lt;targets&gt;</code> command.
+     * <p>
+     * The command sets the keep inventory preference of every targeted player, online or not, as a
+     * single batch that is saved once.
+     * 
+     * @param context The context containing the source of the command and the targets.
+     * @param keepInventory The players' keep inventory preference.
+     * @return The number of players whose preference was set.
+     * @throws CommandSyntaxException If the targets couldn't be resolved.
+     */
+    public static int executeSetKeepInventoryOf(CommandContext<ServerCommandSource> context,
+            @Nullable Boolean keepInventory) throws CommandSyntaxException {
+        Collection<GameProfile> targets = GameProfileArgumentType.getProfileArgument(context,
+                "targets");
+        Optional<Boolean> keepInventoryOptional = Optional.ofNullable(keepInventory);
+        KeepInvList changes =
+                IndividualKeepInv.CONFIG.setKeepInventory(targets, keepInventoryOptional);
+        IndividualKeepInv.refreshCachedPreferences(context.getSource().getServer(), changes);
+        sendMessage(context, String.format("Set the keep inventory preference of %d players to %s.",
+                targets.size(), optionalToString(keepInventoryOptional)));
+        return targets.size();
+    }
+
+    /**
+     * Resets every player's keep inventory preference to the default.
+     * 
+     * @param context The context containing the source of the command.
+     * @return <code>1</code>.
+     */
+    public static int executeResetAll(CommandContext<ServerCommandSource> context) {
+        IndividualKeepInv.CONFIG.resetAll();
+        IndividualKeepInv.refreshCachedPreferences(context.getSource().getServer());
+        sendMessage(context, "Reset every player's keep inventory preference to the default.");
+        return 1;
+    }
+
+    /**
+     * Imports the preferences in a CSV or JSON file in the config directory as a single batch.
+     * <p>
+     * The file is read and applied on a background thread, and the result is sent to the source
+     * of the command once it has finished.
+     * 
+     * @param context The context containing the source of the command and the file name.
+     * @return <code>1</code>, or <code>0</code> if the file is outside of the config directory.
+     */
+    public static int executeImport(CommandContext<ServerCommandSource> context) {
+        Path file = resolveTransferFile(context);
+        if (file == null) {
+            return 0;
+        }
+        MinecraftServer server = context.getSource().getServer();
+        runInBackground(context, () -> {
+            KeepInvList changes = PreferenceTransfer.read(file);
+            IndividualKeepInv.CONFIG.applyChanges(changes);
+            server.execute(() -> IndividualKeepInv.refreshCachedPreferences(server, changes));
+            LOGGER.info("Successfully imported {} preferences from {}.", changes.size(), file);
+            return List.of(String.format("Successfully imported %d preferences from %s.",
+                    changes.size(), file.getFileName()));
+        }, "Failed to import the preferences.");
+        return 1;
+    }
+
+    /**
+     * Exports every player's preference to a CSV or JSON file in the config directory.
+     * <p>
+     * The preferences are loaded and written on a background thread, and the result is sent to
+     * the source of the command once it has finished.
+     * 
+     * @param context The context containing the source of the command and the file name.
+     * @return <code>1</code>, or <code>0</code> if the file is outside of the config directory.
+     */
+    public static int executeExport(CommandContext<ServerCommandSource> context) {
+        Path file = resolveTransferFile(context);
+        if (file == null) {
+            return 0;
+        }
+        runInBackground(context, () -> {
+            KeepInvList preferences = IndividualKeepInv.CONFIG.loadAllPreferences();
+            PreferenceTransfer.write(file, preferences);
+            LOGGER.info("Successfully exported {} preferences to {}.", preferences.size(), file);
+            return List.of(String.format("Successfully exported %d preferences to %s.",
+                    preferences.size(), file.getFileName()));
+        }, "Failed to export the preferences.");
+        return 1;
+    }
+
+    /**
+     * Resolves the "file" argument of the import and export commands against the directory of the
+     * config file, refusing paths that lead outside of it.
+     * 
+     * @param context The context containing the source of the command and the file name.
+     * @return The file, or <code>null</code> if it is outside of the config directory.
+     */
+    @Nullable
+    private static Path resolveTransferFile(CommandContext<ServerCommandSource> context) {
+        Path directory =
+                IndividualKeepInv.CONFIG.getPath().toAbsolutePath().normalize().getParent();
+        Path file = directory.resolve(StringArgumentType.getString(context, "file")).normalize();
+        if (!file.startsWith(directory) || file.equals(directory)) {
+            sendMessage(context, "The file must be in the config directory.");
+            return null;
+        }
+        return file;
+    }
 }
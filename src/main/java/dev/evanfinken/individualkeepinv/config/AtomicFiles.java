@@ -0,0 +1,85 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/** Helpers for replacing files without ever leaving a half-written file at the target path. */
+public final class AtomicFiles {
+    private AtomicFiles() {}
+
+    /** Writes the content of a file. */
+    @FunctionalInterface
+    public interface WriteAction {
+        void write(Writer writer) throws IOException;
+    }
+
+    /**
+     * Gets the path of the temporary file that is written to before replacing <code>path</code>.
+     * 
+     * @param path The path of the file being replaced.
+     * @return A sibling of <code>path</code> with <code>.tmp</code> appended to its name.
+     */
+    public static Path tempPathFor(Path path) {
+        return path.resolveSibling(path.getFileName() + ".tmp");
+    }
+
+    /**
+     * Writes <code>content</code> to a temporary file and then moves it over <code>path</code>.
+     * 
+     * @param path The file to replace.
+     * @param content The new content of the file.
+     * @throws IOException
+     */
+    public static void writeString(Path path, String content) throws IOException {
+        write(path, writer -> writer.write(content));
+    }
+
+    /**
+     * Streams the content written by <code>action</code> to a temporary file and then moves it
+     * over <code>path</code>.
+     * <p>
+     * The temporary file is forced to the disk before it is moved, so that a power loss right
+     * after the move can't leave an empty or partially written file at <code>path</code>.
+     * 
+     * @param path The file to replace.
+     * @param action Writes the new content of the file.
+     * @throws IOException
+     */
+    public static void write(Path path, WriteAction action) throws IOException {
+        Path tempPath = tempPathFor(path);
+        try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Writer writer = new BufferedWriter(Channels.newWriter(channel, StandardCharsets.UTF_8));
+            action.write(writer);
+            writer.flush();
+            channel.force(true);
+        }
+        replace(tempPath, path);
+    }
+
+    /**
+     * Moves <code>source</code> over <code>target</code>, atomically if the file system supports
+     * it.
+     * 
+     * @param source The fully written temporary file.
+     * @param target The file to replace.
+     * @throws IOException
+     */
+    public static void replace(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
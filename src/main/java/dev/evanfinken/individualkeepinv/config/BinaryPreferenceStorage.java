@@ -0,0 +1,54 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.UnaryOperator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the preferences in a memory-mapped {@link MappedPreferenceFile}. Changes are kept in the
+ * config's list on top of the file until the next save merges them into a new file.
+ */
+public class BinaryPreferenceStorage implements PreferenceStorage {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    public static final String NAME = "binary";
+
+    /** The path of the binary preference file. */
+    private final Path path;
+
+    public BinaryPreferenceStorage(Path path) {
+        this.path = path;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Maps the binary preference file instead of reading it onto the heap. If it doesn't exist
+     * yet, the players in the config file are migrated to it.
+     */
+    @Override
+    public KeepInvList open(KeepInvList configPlayers) throws IOException {
+        if (Files.exists(path)) {
+            // players left in the config file by an interrupted migration stay on top
+            KeepInvList list = KeepInvList.withBase(MappedPreferenceFile.open(path));
+            configPlayers.forEachTimedEntry(list.getIndex()::put);
+            return list;
+        }
+        MappedPreferenceFile base =
+                MappedPreferenceFile.write(path, null, configPlayers.getIndex());
+        LOGGER.info("Migrated {} players to {}.", base.size(), path);
+        return KeepInvList.withBase(base);
+    }
+
+    @Override
+    public UnaryOperator<KeepInvList> save(KeepInvList snapshot) throws IOException {
+        MappedPreferenceFile newBase =
+                MappedPreferenceFile.write(path, snapshot.getBase(), snapshot.getIndex());
+        return current -> current.rebase(KeepInvList.withBase(newBase), snapshot);
+    }
+}
@@ -3,30 +3,144 @@ package dev.evanfinken.individualkeepinv.config;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 import com.mojang.authlib.GameProfile;
-import net.minecraft.util.JsonHelper;
+import dev.evanfinken.individualkeepinv.stats.ConfigLoadEvent;
+import dev.evanfinken.individualkeepinv.stats.ConfigSaveEvent;
+import dev.evanfinken.individualkeepinv.stats.LatencyHistogram;
 
 public class Config {
     public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
     public static final Path DEFAULT_PATH = Path.of("config/individualKeepInventory.json");
-    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
-
-    /** The path to the config file to load from and save to. */
-    private final Path path;
-    /**  */
-    private boolean enabled = false;
-    /** Permission level required for a user to set their own keep inventory preference. */
-    private int userPermissionLevel = 0;
-    /** Permission level required for a user to enable / disable and reload the mod. */
-    private int opPermissionLevel = 3;
-    /** The list storing each player's keep inventory preference. */
-    private KeepInvList keepInvList = new KeepInvList();
+    /** How long changes are held before being written, so that bursts are saved only once. */
+    public static final long SAVE_DELAY_MILLIS = 1000;
+    /**
+     * How long a player being seen is held before being written, so that the joins and leaves in
+     * that time are saved together.
+     */
+    public static final long SEEN_SAVE_DELAY_MILLIS = 60 * 1000;
+    /** How often the players that weren't seen recently enough are evicted. */
+    public static final long EVICTION_INTERVAL_MINUTES = 60;
+
+    /**
+     * The path to the config file to load from and save to. Only replaced while holding both
+     * <code>saveLock</code> and <code>this</code>.
+     */
+    private volatile Path path;
+    /**
+     * The current state of the config. Readers use whatever state is published here without
+     * locking, and writers (which synchronize on <code>this</code>) replace it with a changed copy.
+     */
+    private volatile ConfigState state = new ConfigState();
+    /**
+     * Where the preferences are stored. Only replaced while holding both <code>saveLock</code> and
+     * <code>this</code>.
+     */
+    private volatile PreferenceStorage storage = new JsonPreferenceStorage();
+    /**
+     * The journal that preference changes are appended to when the journal is enabled. Only
+     * replaced while holding both <code>saveLock</code> and <code>this</code>.
+     */
+    private volatile PreferenceJournal journal;
+    /**
+     * The log of every preference change. Only replaced while holding both <code>saveLock</code>
+     * and <code>this</code>.
+     */
+    private volatile PreferenceHistory history;
+    /** Writes this config in the background after it changes. */
+    private final WriteBehindPersister persister =
+            new WriteBehindPersister(this::save, SAVE_DELAY_MILLIS);
+    /**
+     * The players who left and whose preferences will be released from memory, mapped to the
+     * token of their pending release. Rejoining removes the token, which cancels the release.
+     */
+    private final ConcurrentHashMap<UUID, Object> pendingReleases = new ConcurrentHashMap<>();
+    /**
+     * The players whose pending release is due, removed from the state together by
+     * {@link #releaseDue()}.
+     */
+    private final Set<UUID> dueReleases = ConcurrentHashMap.newKeySet();
+    /** Whether {@link #releaseDue()} is scheduled to run. */
+    private final AtomicBoolean releaseScheduled = new AtomicBoolean();
+    /**
+     * The players seen since the last save with an eager storage, which the next save folds into
+     * the state. Kept apart from the state so that seeing a player doesn't copy the preferences.
+     */
+    private final ConcurrentHashMap<UUID, Seen> seenTimes = new ConcurrentHashMap<>();
+    /** The players who are online, who are never evicted however long ago they joined. */
+    private final Set<UUID> onlinePlayers = ConcurrentHashMap.newKeySet();
+    /** How long each save took. */
+    private final LatencyHistogram saveTimes = new LatencyHistogram();
+    /** How long each load took. */
+    private final LatencyHistogram loadTimes = new LatencyHistogram();
+    /** The number of bytes written by saves. */
+    private final LongAdder bytesWritten = new LongAdder();
+    /** Held while writing the file so that an older save can't overwrite a newer one. */
+    private final Object saveLock = new Object();
+    /** Runs the loads started by {@link #loadAsync} and the evictions of stale players. */
+    private final ScheduledExecutorService loader =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "Individual KeepInv Loader");
+                thread.setDaemon(true);
+                return thread;
+            });
+    /** Notified after the preferences change. */
+    private final CopyOnWriteArrayList<PreferenceListener> listeners =
+            new CopyOnWriteArrayList<>();
+    /** Shares preference changes with other servers, if syncing. Guarded by <code>this</code>. */
+    @Nullable
+    private PreferenceSync sync;
+    /** The periodic eviction of stale players while it runs. Guarded by <code>this</code>. */
+    @Nullable
+    private ScheduledFuture<?> evictionTask;
+    /**
+     * The modification time of the config file when this config last loaded or saved it, used to
+     * tell whether it was changed by something else. Guarded by <code>saveLock</code>.
+     */
+    @Nullable
+    private FileTime knownModifiedTime;
+    /**
+     * The state as it was last saved to or loaded from the config file, which tells which changes
+     * haven't been saved yet when the file is reloaded. Guarded by <code>saveLock</code>.
+     */
+    @Nullable
+    private ConfigState savedState;
+    /** Whether the config file has been loaded before. Guarded by <code>saveLock</code>. */
+    private boolean loaded;
+    /**
+     * Whether the config file was closed, so that nothing is saved to it until another one is
+     * opened. Guarded by <code>saveLock</code>.
+     */
+    private boolean closed;
+
+    /** When a player was seen, waiting to be folded into the state. */
+    private record Seen(String name, long timeMillis) {}
 
     public Config() {
         this(DEFAULT_PATH);
@@ -34,6 +148,8 @@ public class Config {
 
     public Config(Path path) {
         this.path = path;
+        this.journal = new PreferenceJournal(path);
+        this.history = new PreferenceHistory(path);
     }
 
     /** Gets the <code>Path</code> to this config's file. */
@@ -41,36 +157,76 @@ public class Config {
         return path;
     }
 
+    /**
+     * Gets the path of a file stored next to a config file.
+     * 
+     * @param configPath The path of the config file.
+     * @param extension The extension that replaces the config file's <code>.json</code>.
+     * @return The path of the file.
+     */
+    public static Path siblingPath(Path configPath, String extension) {
+        String name = configPath.getFileName().toString();
+        if (name.endsWith(".json")) {
+            name = name.substring(0, name.length() - ".json".length());
+        }
+        return configPath.resolveSibling(name + extension);
+    }
+
+    /**
+     * Gets the current state of the config.
+     * <p>
+     * The returned state is never modified, so reading several values from it always gives a
+     * consistent view even if the config is changed or reloaded on another thread.
+     */
+    public ConfigState getState() {
+        return state;
+    }
+
+    /**
+     * Publishes <code>next</code> in place of the current state without saving it.
+     * <p>
+     * <code>next</code> must not be modified after this is called.
+     * 
+     * @param next The new state of the config.
+     */
+    void replaceState(ConfigState next) {
+        synchronized (this) {
+            state = next;
+        }
+    }
+
     /** Returns whether the mod is enabled. */
     public boolean isEnabled() {
-        return enabled;
+        return state.enabled;
     }
 
     /** Enables the mod. */
     public void enable() {
-        enabled = true;
-        try {
-            save();
-            LOGGER.info("Successfully enabled the mod.");
-        } catch (IOException e) {
-            LOGGER.warn("Failed to save the config after enabling the mod.", e);
+        synchronized (this) {
+            ConfigState next = state.copy();
+            next.enabled = true;
+            state = next;
         }
+        persister.markDirty();
+        fireAllPreferencesChanged();
+        LOGGER.info("Successfully enabled the mod.");
     }
 
     /** Disables the mod. */
     public void disable() {
-        enabled = false;
-        try {
-            save();
-            LOGGER.info("Successfully disabled the mod.");
-        } catch (IOException e) {
-            LOGGER.warn("Failed to save the config after disabling the mod.", e);
+        synchronized (this) {
+            ConfigState next = state.copy();
+            next.enabled = false;
+            state = next;
         }
+        persister.markDirty();
+        fireAllPreferencesChanged();
+        LOGGER.info("Successfully disabled the mod.");
     }
 
     /** Gets the permission level required to run <code>/keepinv set</code>. */
     public int getUserPermissionLevel() {
-        return userPermissionLevel;
+        return state.userPermissionLevel;
     }
 
     /**
@@ -78,19 +234,39 @@ public class Config {
      * <code>/keepinv off</code>, and <code>/keepinv reload</code>.
      */
     public int getOpPermissionLevel() {
-        return opPermissionLevel;
+        return state.opPermissionLevel;
     }
 
     /** Sets the permission level required to run <code>/keepinv set</code>. */
     public void setUserPermissionLevel(int userPermissionLevel) {
-        this.userPermissionLevel = userPermissionLevel;
-        try {
-            save();
-            LOGGER.info("Successfully set userPermissionLevel to {}.", userPermissionLevel);
-        } catch (IOException e) {
-            LOGGER.warn("Failed to save the config after setting userPermissionLevel to {}.",
-                    userPermissionLevel, e);
+        synchronized (this) {
+            ConfigState next = state.copy();
+            next.userPermissionLevel = userPermissionLevel;
+            state = next;
         }
+        persister.markDirty();
+        LOGGER.info("Successfully set userPermissionLevel to {}.", userPermissionLevel);
+    }
+
+    /**
+     * Sets the {@link KeepMask} of what a player keeps when their inventory is dropped.
+     * 
+     * @param profile The player to set the mask of.
+     * @param mask The player's mask, or <code>null</code> to use the config's "keptSlots".
+     */
+    public void setKeptSlots(GameProfile profile, @Nullable Long mask) {
+        synchronized (this) {
+            ConfigState next = state.copy();
+            var masks = new HashMap<>(next.playerKeptSlots);
+            if (mask == null) {
+                masks.remove(profile.getId());
+            } else {
+                masks.put(profile.getId(), mask);
+            }
+            next.playerKeptSlots = Map.copyOf(masks);
+            state = next;
+        }
+        persister.markDirty();
     }
 
     /**
@@ -103,28 +279,668 @@ public class Config {
      * @return the <code>Optional</code> of the player's keep inventory preference.
      */
     public Optional<Boolean> shouldKeepInventory(GameProfile profile) {
-        return keepInvList.shouldKeepInventory(profile);
+        return state.keepInvList.shouldKeepInventory(profile);
+    }
+
+    /**
+     * Gets the player's keep inventory preference as one of {@link PreferenceIndex#DEFAULT},
+     * {@link PreferenceIndex#KEEP}, or {@link PreferenceIndex#DROP}.
+     * 
+     * @param profile The player to get the preference of.
+     * @return The player's keep inventory preference.
+     */
+    public byte getPreference(GameProfile profile) {
+        return state.keepInvList.getPreference(profile);
+    }
+
+    /** Gets where the preferences are stored. */
+    public PreferenceStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Makes sure the preference of a player who just joined is in memory.
+     * <p>
+     * With an eager storage every preference is already in memory, so this completes immediately.
+     * With an on-demand storage, the preference is loaded in the background and added to the
+     * current state once it has been read.
+     * 
+     * @param profile The player to load the preference of.
+     * @return A future that completes once the preference can be read from the config.
+     */
+    public CompletableFuture<Void> loadPlayer(GameProfile profile) {
+        PreferenceStorage loadingStorage = storage;
+        UUID id = profile.getId();
+        if (id != null) {
+            pendingReleases.remove(id);
+            dueReleases.remove(id);
+        }
+        if (!loadingStorage.isOnDemand() || id == null
+                || state.keepInvList.getIndex().contains(id)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        // handled off the storage's thread, which load() can wait on while holding this lock
+        return loadingStorage.load(id).handleAsync((preference, exception) -> {
+            if (exception != null) {
+                LOGGER.warn("Failed to load {}'s keep inventory preference.", profile.getName(),
+                        exception);
+                return null;
+            }
+            if (preference == PreferenceIndex.ABSENT) {
+                return null;
+            }
+            synchronized (this) {
+                // a change made while loading is newer than what was loaded
+                if (storage == loadingStorage && !state.keepInvList.getIndex().contains(id)) {
+                    ConfigState next = state.copyWithPreferences();
+                    next.keepInvList.getIndex().put(id, profile.getName(), preference);
+                    state = next;
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Drops the preference of a player who left from memory when it can be loaded again from an
+     * on-demand storage. This does nothing with an eager storage.
+     * <p>
+     * The preference is only dropped after <code>releaseDelaySeconds</code>, and not at all if
+     * the player joins again before then. Either way, the player can be evicted again from now on.
+     * 
+     * @param profile The player who left.
+     */
+    public void releasePlayer(GameProfile profile) {
+        UUID id = profile.getId();
+        if (id != null) {
+            onlinePlayers.remove(id);
+        }
+        if (!storage.isOnDemand() || id == null) {
+            return;
+        }
+        var token = new Object();
+        pendingReleases.put(id, token);
+        Executor delayed =
+                CompletableFuture.delayedExecutor(state.releaseDelaySeconds, TimeUnit.SECONDS);
+        delayed.execute(() -> {
+            if (pendingReleases.remove(id, token)) {
+                dueReleases.add(id);
+                if (releaseScheduled.compareAndSet(false, true)) {
+                    // the players who are due in the meantime are released along with this one
+                    loader.schedule(this::releaseDue, 1, TimeUnit.SECONDS);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records that a player joined, marking them as seen and keeping them from being evicted until
+     * they leave and are released by {@link #releasePlayer}.
+     * 
+     * @param profile The player who joined.
+     */
+    public void markJoined(GameProfile profile) {
+        if (profile.getId() != null) {
+            onlinePlayers.add(profile.getId());
+        }
+        markSeen(profile);
+    }
+
+    /**
+     * Records that a player was seen, which is done when they join and leave. Only players with an
+     * entry are tracked.
+     * <p>
+     * With an eager storage, the time is only recorded in memory without copying the state, and
+     * the next save folds it in. That save is held back for up to
+     * {@value #SEEN_SAVE_DELAY_MILLIS} milliseconds if nothing else changes. With an on-demand
+     * storage, it is written to the storage in the background.
+     * 
+     * @param profile The player who was seen.
+     */
+    public void markSeen(GameProfile profile) {
+        UUID id = profile.getId();
+        if (id == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (storage.isOnDemand()) {
+            synchronized (this) {
+                if (storage.isOnDemand()) {
+                    storage.touch(id, now);
+                    return;
+                }
+            }
+        }
+        if (state.keepInvList.lookup(id.getMostSignificantBits(),
+                id.getLeastSignificantBits()) == PreferenceIndex.ABSENT) {
+            return;
+        }
+        seenTimes.put(id, new Seen(profile.getName(), now));
+        persister.markDirty(SEEN_SAVE_DELAY_MILLIS);
+    }
+
+    /**
+     * Publishes a state with the times in <code>seenTimes</code> folded in, removing them from
+     * it. Must be called while holding <code>this</code>.
+     */
+    private void foldSeenTimes() {
+        if (seenTimes.isEmpty()) {
+            return;
+        }
+        if (storage.isOnDemand()) {
+            seenTimes.forEach((id, seen) -> {
+                storage.touch(id, seen.timeMillis());
+                seenTimes.remove(id, seen);
+            });
+            return;
+        }
+        ConfigState next = state.copyWithPreferences();
+        KeepInvList list = next.keepInvList;
+        seenTimes.forEach((id, seen) -> {
+            long mostSigBits = id.getMostSignificantBits();
+            long leastSigBits = id.getLeastSignificantBits();
+            byte preference = list.lookup(mostSigBits, leastSigBits);
+            if (preference != PreferenceIndex.ABSENT) {
+                list.getIndex().put(mostSigBits, leastSigBits, seen.name(), preference,
+                        seen.timeMillis());
+            }
+            // a player seen again in the meantime stays for the next save
+            seenTimes.remove(id, seen);
+        });
+        state = next;
+    }
+
+    /** Removes the players whose release is due from the state with a single copy. */
+    private void releaseDue() {
+        releaseScheduled.set(false);
+        synchronized (this) {
+            var released = new ArrayList<UUID>();
+            for (UUID id : dueReleases) {
+                // joining again removes the player, which cancels their release
+                if (dueReleases.remove(id)) {
+                    released.add(id);
+                }
+            }
+            if (!storage.isOnDemand() || released.isEmpty()) {
+                return;
+            }
+            ConfigState next = state.copyWithPreferences();
+            for (UUID id : released) {
+                next.keepInvList.getIndex().remove(id);
+            }
+            state = next;
+        }
     }
 
     /**
      * Sets the keep inventory preference of a player.
+     * <p>
+     * The preferences are copied before being changed so that readers of the current state are
+     * never affected. Only the changes made since the last save are copied, since the rest are
+     * settled underneath them and shared between copies. With an on-demand storage, the change is
+     * written to the storage on its own instead of saving the config.
      * 
      * @param profile The <code>GameProfile</code> of the player.
      * @param keepInventory The player's new keep inventory preference.
      */
     public void setKeepInventory(GameProfile profile, Optional<Boolean> keepInventory) {
-        keepInvList.setKeepInventory(profile, keepInventory);
+        boolean written = false;
+        boolean journaled = false;
+        ConfigState next;
+        synchronized (this) {
+            byte oldPreference = state.keepInvList.getPreference(profile);
+            next = state.copyWithPreferences();
+            next.keepInvList.setKeepInventory(profile, keepInventory);
+            state = next;
+            byte newPreference = KeepInvList.toPreference(keepInventory);
+            if (profile.getId() != null && oldPreference != newPreference) {
+                history.append(profile.getId(), oldPreference, newPreference);
+                writeHistory();
+            }
+            if (sync != null && profile.getId() != null) {
+                sync.publish(profile.getId(), profile.getName(),
+                        KeepInvList.toPreference(keepInventory));
+            }
+            if (storage.isOnDemand() && profile.getId() != null) {
+                // written while locked so the storage sees changes in the order they were made
+                storage.write(profile.getId(), profile.getName(),
+                        KeepInvList.toPreference(keepInventory));
+                written = true;
+            } else if (next.journalEnabled) {
+                try {
+                    journal.append(profile, keepInventory);
+                    journaled = true;
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to append to the journal, saving the whole config instead.",
+                            e);
+                }
+            }
+        }
+        if (written) {
+            // the config file doesn't change
+        } else if (!journaled) {
+            persister.markDirty();
+        } else {
+            // forced after releasing the lock, together with any other changes made until then
+            journal.scheduleSync(persister::execute);
+            if (journal.size() >= next.journalCompactBytes) {
+                persister.markDirty();
+            } else {
+                persister.markDirty(next.journalCompactSeconds * 1000);
+            }
+        }
+        if (!listeners.isEmpty() && profile.getId() != null) {
+            var changes = new KeepInvList();
+            changes.setKeepInventory(profile, keepInventory);
+            firePreferencesChanged(changes);
+        }
+        LOGGER.info("Successfully set {}'s keep inventory preference to {}.", profile.getName(),
+                keepInventory);
+    }
+
+    /**
+     * Sets the keep inventory preference of several players as a single batch.
+     * 
+     * @param profiles The <code>GameProfile</code>s of the players.
+     * @param keepInventory The players' new keep inventory preference.
+     * @return The players and their new preferences, as applied. Must not be modified.
+     * @see #applyChanges(KeepInvList)
+     */
+    public KeepInvList setKeepInventory(Collection<GameProfile> profiles,
+            Optional<Boolean> keepInventory) {
+        var changes = new KeepInvList();
+        for (GameProfile profile : profiles) {
+            changes.setKeepInventory(profile, keepInventory);
+        }
+        applyChanges(changes);
+        return changes;
+    }
+
+    /**
+     * Applies every entry of <code>changes</code> as a single batch.
+     * <p>
+     * The preferences are copied and published once, and the batch is persisted with one save (or
+     * one batched write to an on-demand storage), no matter how many players it touches. With an
+     * on-demand storage, only the players already in memory are added to the state; the others
+     * are only written to the storage.
+     * 
+     * @param changes The players and their new preferences.
+     */
+    public void applyChanges(KeepInvList changes) {
+        applyChanges(changes, true);
+        firePreferencesChanged(changes);
+    }
+
+    /**
+     * @param changes The players and their new preferences.
+     * @param share Whether to share the changes with other servers, which is skipped for changes
+     *        that came from them.
+     * @see #applyChanges(KeepInvList)
+     * @see #firePreferencesChanged
+     */
+    void applyChanges(KeepInvList changes, boolean share) {
+        boolean written;
+        synchronized (this) {
+            KeepInvList previous = state.keepInvList;
+            ConfigState next = state.copyWithPreferences();
+            KeepInvList list = next.keepInvList;
+            boolean onDemand = storage.isOnDemand();
+            changes.forEachEntry((mostSigBits, leastSigBits, name, preference) -> {
+                boolean resident =
+                        list.lookup(mostSigBits, leastSigBits) != PreferenceIndex.ABSENT;
+                if (!onDemand || resident) {
+                    list.put(mostSigBits, leastSigBits, name, preference);
+                }
+            });
+            state = next;
+            recordHistory(previous, changes);
+            if (share && sync != null) {
+                sync.publish(changes);
+            }
+            written = onDemand;
+            if (onDemand) {
+                storage.writeAll(changes);
+            }
+        }
+        if (!written) {
+            persister.markDirty();
+        }
+        LOGGER.info("Successfully set the keep inventory preference of {} players.",
+                changes.size());
+    }
+
+    /**
+     * Resets every player's keep inventory preference to the default, including players that
+     * aren't in memory, and persists the reset once.
+     */
+    public void resetAll() {
+        boolean written;
+        synchronized (this) {
+            var changes = new KeepInvList();
+            state.keepInvList.forEachEntry((mostSigBits, leastSigBits, name, preference) -> {
+                if (preference != PreferenceIndex.DEFAULT) {
+                    changes.getIndex().put(mostSigBits, leastSigBits, name,
+                            PreferenceIndex.DEFAULT);
+                }
+            });
+            recordHistory(state.keepInvList, changes);
+            ConfigState next = state.copy();
+            if (storage.isOnDemand()) {
+                // players in memory stay there so they don't need to be loaded again
+                next.keepInvList = state.keepInvList.copy();
+                PreferenceIndex index = next.keepInvList.getIndex();
+                state.keepInvList.getIndex().forEach((mostSigBits, leastSigBits, name,
+                        preference) -> index.put(mostSigBits, leastSigBits, name,
+                                PreferenceIndex.DEFAULT));
+                storage.clear();
+                written = true;
+            } else {
+                next.keepInvList = new KeepInvList();
+                written = false;
+            }
+            state = next;
+        }
+        if (!written) {
+            persister.markDirty();
+        }
+        fireAllPreferencesChanged();
+        LOGGER.info("Successfully reset every player's keep inventory preference.");
+    }
+
+    /**
+     * Removes the preferences of the players that weren't seen within the retention policy set by
+     * <code>retentionDays</code> and <code>retentionMaxPlayers</code>. Players who are online count
+     * as seen just now, so they are never removed.
+     * <p>
+     * With an eager storage, the stale players are found by scanning a snapshot of the state
+     * without holding any lock, and removed from a copy of it, which also copies the settled
+     * preferences once. The copy then replaces the current state in a single swap, keeping any
+     * player who was seen or changed since the snapshot, and the next background save compacts
+     * them out of the file. An on-demand storage removes them itself.
+     * <p>
+     * This blocks on the scan and, with an on-demand storage, on the storage, so it should be run
+     * in the background like {@link #startEviction()} does.
+     * 
+     * @return The number of players that were removed.
+     * @throws IOException
+     */
+    public int evictStale() throws IOException {
+        ConfigState snapshot = state;
+        PreferenceStorage evictingStorage = storage;
+        if (snapshot.retentionDays <= 0 && snapshot.retentionMaxPlayers <= 0) {
+            return 0;
+        }
+        long cutoff = snapshot.retentionDays > 0
+                ? System.currentTimeMillis() - TimeUnit.DAYS.toMillis(snapshot.retentionDays)
+                : Long.MIN_VALUE;
+        int evicted;
+        if (evictingStorage.isOnDemand()) {
+            // the storage records these before it evicts, since it runs both in order
+            long now = System.currentTimeMillis();
+            for (UUID id : onlinePlayers) {
+                evictingStorage.touch(id, now);
+            }
+            evicted = evictingStorage.evict(cutoff, snapshot.retentionMaxPlayers);
+        } else {
+            evicted = evictFromMemory(snapshot.keepInvList, evictingStorage, cutoff,
+                    snapshot.retentionMaxPlayers);
+        }
+        if (evicted > 0) {
+            fireAllPreferencesChanged();
+            LOGGER.info("Evicted {} players that weren't seen within the retention policy.",
+                    evicted);
+        }
+        return evicted;
+    }
+
+    private int evictFromMemory(KeepInvList snapshot, PreferenceStorage evictingStorage,
+            long cutoff, int maxPlayers) {
+        if (maxPlayers > 0 && snapshot.size() > maxPlayers) {
+            long[] lastSeenTimes = new long[snapshot.size()];
+            int[] count = {0};
+            snapshot.forEachTimedEntry((mostSigBits, leastSigBits, name, preference,
+                    lastSeen) -> lastSeenTimes[count[0]++] =
+                            isSeenSinceSave(mostSigBits, leastSigBits) ? Long.MAX_VALUE : lastSeen);
+            if (count[0] > maxPlayers) {
+                Arrays.sort(lastSeenTimes, 0, count[0]);
+                cutoff = Math.max(cutoff, lastSeenTimes[count[0] - maxPlayers]);
+            }
+        }
+        long finalCutoff = cutoff;
+        var stale = new PreferenceIndex();
+        snapshot.forEachTimedEntry((mostSigBits, leastSigBits, name, preference, lastSeen) -> {
+            // players seen since the last save have a newer time than the snapshot's
+            if (lastSeen < finalCutoff && !isSeenSinceSave(mostSigBits, leastSigBits)) {
+                stale.put(mostSigBits, leastSigBits, name, preference, lastSeen);
+            }
+        });
+        if (stale.size() == 0) {
+            return 0;
+        }
+        // removed outside the lock, since the first removal copies the settled index
+        KeepInvList pruned = snapshot.copy();
+        stale.forEachTimed((mostSigBits, leastSigBits, name, preference,
+                lastSeen) -> pruned.evict(mostSigBits, leastSigBits));
+        int[] evicted = {0};
+        synchronized (this) {
+            KeepInvList current = state.keepInvList;
+            KeepInvList list = current.rebase(pruned, snapshot);
+            if (storage != evictingStorage || list == current) {
+                // replaced since the scan, such as by a reload or a reset
+                return 0;
+            }
+            // players changed since the scan were kept on top, and seen ones are put back
+            stale.forEachTimed((mostSigBits, leastSigBits, name, preference, lastSeen) -> {
+                if (current.lookup(mostSigBits, leastSigBits) != preference
+                        || current.getLastSeen(mostSigBits, leastSigBits) != lastSeen) {
+                    return;
+                }
+                if (isSeenSinceSave(mostSigBits, leastSigBits)) {
+                    list.getIndex().put(mostSigBits, leastSigBits, name, preference, lastSeen);
+                } else {
+                    evicted[0]++;
+                }
+            });
+            ConfigState next = state.copy();
+            next.keepInvList = list;
+            state = next;
+        }
+        persister.markDirty();
+        return evicted[0];
+    }
+
+    /**
+     * Returns whether a player is online or was seen since the last save, in which case the time
+     * they were last seen in the state is out of date.
+     */
+    private boolean isSeenSinceSave(long mostSigBits, long leastSigBits) {
+        var id = new UUID(mostSigBits, leastSigBits);
+        return onlinePlayers.contains(id) || seenTimes.containsKey(id);
+    }
+
+    /**
+     * Starts evicting stale players in the background every
+     * {@value #EVICTION_INTERVAL_MINUTES} minutes, if it isn't already running.
+     */
+    public void startEviction() {
+        synchronized (this) {
+            if (evictionTask != null) {
+                return;
+            }
+            evictionTask = loader.scheduleWithFixedDelay(() -> {
+                try {
+                    evictStale();
+                } catch (IOException | RuntimeException e) {
+                    // caught so that the next eviction still runs
+                    LOGGER.warn("Failed to evict stale players.", e);
+                }
+            }, EVICTION_INTERVAL_MINUTES, EVICTION_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        }
+    }
+
+    /** Stops evicting stale players in the background. */
+    public void stopEviction() {
+        synchronized (this) {
+            if (evictionTask != null) {
+                evictionTask.cancel(false);
+                evictionTask = null;
+            }
+        }
+    }
+
+    /**
+     * Adds a listener that is notified after the preferences change.
+     * 
+     * @param listener The listener to add.
+     */
+    public void addListener(PreferenceListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Removes a listener added by {@link #addListener}.
+     * 
+     * @param listener The listener to remove.
+     */
+    public void removeListener(PreferenceListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Gets the log of every preference change, which is stored next to the config file.
+     * <p>
+     * With an on-demand storage, the old preference of a player who wasn't in memory when their
+     * preference changed is recorded as the default.
+     */
+    public PreferenceHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * Records the changes from <code>previous</code> in the history. Only the records are made
+     * here, and they are written on the writer thread.
+     */
+    private void recordHistory(KeepInvList previous, KeepInvList changes) {
+        history.appendAll(previous, changes);
+        writeHistory();
+    }
+
+    /** Writes the changes queued in the history on the writer thread. */
+    private void writeHistory() {
+        PreferenceHistory writing = history;
+        persister.execute(() -> {
+            try {
+                writing.flush();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to write to the history.", e);
+            }
+        });
+    }
+
+    /** Notifies the listeners that the preferences in <code>changes</code> were applied. */
+    void firePreferencesChanged(KeepInvList changes) {
+        for (PreferenceListener listener : listeners) {
+            try {
+                listener.onPreferencesChanged(changes);
+            } catch (RuntimeException e) {
+                LOGGER.warn("A preference listener failed.", e);
+            }
+        }
+    }
+
+    private void fireAllPreferencesChanged() {
+        for (PreferenceListener listener : listeners) {
+            try {
+                listener.onAllPreferencesChanged();
+            } catch (RuntimeException e) {
+                LOGGER.warn("A preference listener failed.", e);
+            }
+        }
+    }
+
+    /**
+     * Starts sharing preference changes with other servers through a shared directory, stopping
+     * any sync through a different directory first. Does nothing if already syncing through
+     * <code>directory</code>.
+     * 
+     * @param directory The shared directory.
+     * @param onChange Called on the sync thread with the changes made by other servers.
+     * @throws IOException If the directory couldn't be used.
+     * @see PreferenceSync
+     */
+    public void startSync(Path directory, Consumer<KeepInvList> onChange) throws IOException {
+        synchronized (this) {
+            if (sync != null && sync.getDirectory().equals(directory)) {
+                return;
+            }
+        }
+        stopSync();
+        var next = new PreferenceSync(this, directory, onChange);
+        synchronized (this) {
+            sync = next;
+        }
+        LOGGER.info("Syncing preferences through {}.", directory);
+    }
+
+    /** Stops sharing preference changes with other servers, if syncing. */
+    public void stopSync() {
+        PreferenceSync stopped;
+        synchronized (this) {
+            stopped = sync;
+            sync = null;
+        }
+        if (stopped == null) {
+            return;
+        }
         try {
-            save();
-            LOGGER.info("Successfully set {}'s keep inventory preference to {}.", profile.getName(),
-                    keepInventory);
+            stopped.close();
         } catch (IOException e) {
-            LOGGER.warn(
-                    "Failed to save the config after setting {}'s keep inventory preference to {}.",
-                    profile.getName(), keepInventory, e);
+            LOGGER.warn("Failed to stop syncing preferences.", e);
         }
     }
 
+    /**
+     * Gets every stored preference, including those of players that aren't in memory when the
+     * storage is on demand.
+     * 
+     * @return A list that must not be modified.
+     * @throws IOException
+     */
+    public KeepInvList loadAllPreferences() throws IOException {
+        return storage.loadAll(state.keepInvList);
+    }
+
+    /**
+     * Writes any changes that are waiting to be saved, blocking until they have been written.
+     * <p>
+     * Changes are normally saved in the background shortly after they're made. This should be
+     * called when the server stops so that no changes are lost.
+     */
+    public void flush() {
+        persister.flush();
+        storage.flush();
+    }
+
+    /** Gets the number of changes that were saved as part of another change's write. */
+    public long getCoalescedSaveCount() {
+        return persister.getCoalescedCount();
+    }
+
+    /** Gets the durations of the saves of this config. */
+    public LatencyHistogram getSaveTimes() {
+        return saveTimes;
+    }
+
+    /** Gets the durations of the loads of this config. */
+    public LatencyHistogram getLoadTimes() {
+        return loadTimes;
+    }
+
+    /** Gets the number of bytes written by the saves of this config. */
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
     /**
      * Saves this config to the file at <code>path</code>.
      * <p>
@@ -134,41 +950,481 @@ public class Config {
      * <li>enabled</li>
      * <li>userPermissionLevel</li>
      * <li>opPermissionLevel</li>
+     * <li>journalEnabled</li>
+     * <li>journalCompactBytes</li>
+     * <li>journalCompactSeconds</li>
+     * <li>releaseDelaySeconds</li>
+     * <li>watchFile</li>
+     * <li>retentionDays</li>
+     * <li>retentionMaxPlayers</li>
+     * <li>storage – The name of the {@link PreferenceStorage}: "json", "binary", "sql", or
+     * "sharded".</li>
+     * <li>rules – An array of {@link KeepInvRule}s for the deaths of players on the default.</li>
+     * <li>keptSlots – The {@link KeepMask} of what is kept when a player's inventory is dropped,
+     * such as "hotbar,armor".</li>
+     * <li>keptItems – An array of item tags whose items are kept whenever a mask applies.</li>
+     * <li>droppedItems – An array of item tags whose items are dropped even from kept slots.</li>
+     * <li>playerKeptSlots – An object of the masks players chose themselves, by UUID.</li>
+     * <li>syncDirectory – The directory shared with other servers to sync preferences through, or
+     * <code>null</code> to not sync.</li>
+     * <li>vaultDrops – Whether dropped inventories are stored in the players' vaults instead of
+     * being spawned as items.</li>
      * <li>players – An array of objects containing the name, UUID, and preference of each
-     * player.</li>
+     * player. This is only written when the storage is "json". Other storages save the
+     * preferences themselves, for example by merging them into the binary preference file.</li>
      * </ol>
+     * <p>
+     * The config is written to a temporary file first and then moved over the old file, so a crash
+     * while saving never leaves a partially written config behind. Saving also compacts the
+     * journal, since every change in it is included in the saved config.
+     * <p>
+     * The state being saved is a snapshot, so it is serialized without blocking changes to the
+     * config. It is streamed straight to the file rather than being built up as a JSON tree and
+     * string first.
+     * <p>
+     * Each save is recorded as a {@link ConfigSaveEvent} in Java Flight Recorder recordings.
+     * Nothing is saved after the config was closed.
      * 
      * @throws IOException
      */
     public void save() throws IOException {
-        var configJson = new JsonObject();
-        var players = keepInvList.toJsonArray();
-        configJson.addProperty("enabled", enabled);
-        configJson.addProperty("userPermissionLevel", userPermissionLevel);
-        configJson.addProperty("opPermissionLevel", opPermissionLevel);
-        configJson.add("players", players);
-        Files.writeString(path, GSON.toJson(configJson));
+        synchronized (saveLock) {
+            if (closed) {
+                return;
+            }
+            var event = new ConfigSaveEvent();
+            event.begin();
+            long startNanos = System.nanoTime();
+            long written = 0;
+            ConfigState snapshot;
+            PreferenceStorage savingStorage;
+            synchronized (this) {
+                foldSeenTimes();
+                snapshot = state;
+                savingStorage = storage;
+                journal.beginCompaction();
+            }
+            UnaryOperator<KeepInvList> update = savingStorage.save(snapshot.keepInvList);
+            ConfigState saved = snapshot;
+            if (update != null) {
+                synchronized (this) {
+                    ConfigState next = state.copy();
+                    next.keepInvList = update.apply(state.keepInvList);
+                    state = next;
+                    if (next.keepInvList.getBase() != null) {
+                        written += next.keepInvList.getBase().byteSize();
+                    }
+                }
+                saved = snapshot.copy();
+                saved.keepInvList = update.apply(snapshot.keepInvList);
+            }
+            // the journal is about to be deleted, so anything taken over from it must be written
+            savingStorage.flush();
+            writeJson(path, snapshot, savingStorage.storesPlayersInConfig());
+            journal.finishCompaction();
+            savedState = saved;
+            knownModifiedTime = Files.getLastModifiedTime(path);
+            written += Files.size(path);
+            bytesWritten.add(written);
+            saveTimes.record(System.nanoTime() - startNanos);
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = path.toString();
+                event.storage = savingStorage.getName();
+                event.entries = snapshot.keepInvList.size();
+                event.bytes = written;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Writes the complete config, including every player's preference, to a JSON file that can be
+     * edited by hand.
+     * <p>
+     * This is mostly useful when the preferences aren't stored in the config file. The exported
+     * file uses "json" storage, so it can replace the config file to switch back to JSON storage.
+     * 
+     * @param target The path of the file to export to.
+     * @throws IOException
+     */
+    public void exportJson(Path target) throws IOException {
+        ConfigState snapshot = state.copy();
+        snapshot.keepInvList = loadAllPreferences();
+        snapshot.storage = JsonPreferenceStorage.NAME;
+        writeJson(target, snapshot, true);
+    }
+
+    /** Gets the path that {@link #exportJson} is used with by default. */
+    public Path getDefaultExportPath() {
+        return siblingPath(path, ".export.json");
+    }
+
+    private static void writeJson(Path target, ConfigState snapshot, boolean includePlayers)
+            throws IOException {
+        AtomicFiles.write(target, fileWriter -> {
+            var writer = new JsonWriter(fileWriter);
+            writer.setIndent("  ");
+            writer.setSerializeNulls(false);
+            snapshot.writeJson(writer, includePlayers);
+            writer.flush();
+        });
     }
 
     /**
      * Loads the config file if it exists.
      * <p>
-     * This sets <code>enabled</code>, <code>userPermissionLevel</code>,
-     * <code>opPermissionLevel</code>, and adds an entry in <code>keepInvList</code> for each entry
-     * in the "players" property of the JSON in the config.
+     * This reads <code>enabled</code>, <code>userPermissionLevel</code>,
+     * <code>opPermissionLevel</code>, and an entry for each entry in the "players" property of the
+     * JSON in the config into a new state. Any changes in the journal that haven't been compacted
+     * yet are then replayed on top of those entries, and the new state replaces the current one.
+     * Until then, readers keep seeing the old state, never a partially loaded one.
+     * <p>
+     * The file is parsed as a stream, so the entries are read straight into the new state's index
+     * without building a JSON tree or reading the whole file into a string.
+     * <p>
+     * The players in the config file are handed to the {@link PreferenceStorage} named by the
+     * "storage" property, which migrates them if it doesn't store them in the config file. If the
+     * storage changed, the old one is closed. If it didn't and it is on demand, the preferences of
+     * the players in memory are kept, since every change to them was already written through.
+     * <p>
+     * Changes made in memory that haven't been saved yet, such as those waiting for the background
+     * save, are kept on top of what was read, along with the changes to the settings. They are
+     * found by comparing the current state with the state that was last saved or loaded, so a
+     * reload only picks up what was changed in the file itself.
+     * <p>
+     * Only the journal replay and the swap happen while holding the lock that changes take, so
+     * this can run on any thread without blocking changes for long.
+     * <p>
+     * Each load is recorded as a {@link ConfigLoadEvent} in Java Flight Recorder recordings.
      * 
+     * @return The players whose preference changed, with their new preference, or
+     *         <code>null</code> if the storage changed, in which case any player's preference may
+     *         have changed.
      * @throws IOException
      */
-    public void load() throws IOException {
-        if (Files.notExists(path)) {
-            return; // nothing to load
+    @Nullable
+    public KeepInvList load() throws IOException {
+        ConfigState previous;
+        ConfigState next;
+        boolean storageChanged;
+        boolean reload;
+        // held so that a background save can't write to the storage while it's being migrated
+        synchronized (saveLock) {
+            var event = new ConfigLoadEvent();
+            event.begin();
+            long startNanos = System.nanoTime();
+            long read = 0;
+            reload = loaded;
+            if (!reload) {
+                try {
+                    history.load();
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to load the history.", e);
+                }
+            }
+            next = new ConfigState();
+            if (Files.exists(path)) {
+                knownModifiedTime = Files.getLastModifiedTime(path);
+                read = Files.size(path);
+                try (var reader = new JsonReader(Files.newBufferedReader(path))) {
+                    reader.setLenient(true);
+                    next.readJson(reader);
+                }
+            }
+            PreferenceStorage previousStorage = storage;
+            PreferenceStorage nextStorage = previousStorage.getName().equals(next.storage)
+                    ? previousStorage
+                    : PreferenceStorage.create(next.storage, path);
+            storageChanged = nextStorage != previousStorage;
+            KeepInvList players = next.keepInvList;
+            next.keepInvList = nextStorage.open(players);
+            // found before taking the lock, since it scans every preference
+            ConfigState scanned = state;
+            KeepInvList unsaved = findUnsaved(previousStorage, scanned);
+            int replayed;
+            boolean merged = false;
+            synchronized (this) {
+                previous = state;
+                if (unsaved != null && previous != scanned) {
+                    // changed while scanning, which is rare and only needs the newer changes
+                    KeepInvList later = KeepInvList.diff(scanned.keepInvList,
+                            previous.keepInvList);
+                    later.forEachEntry(unsaved.getIndex()::put);
+                }
+                if (!storageChanged && nextStorage.isOnDemand()) {
+                    KeepInvList resident = previous.keepInvList.copy();
+                    PreferenceIndex residentIndex = resident.getIndex();
+                    players.forEachEntry((mostSigBits, leastSigBits, name, preference) -> {
+                        if (residentIndex.lookup(mostSigBits, leastSigBits)
+                                != PreferenceIndex.ABSENT) {
+                            residentIndex.put(mostSigBits, leastSigBits, name, preference);
+                        }
+                    });
+                    next.keepInvList = resident;
+                }
+                // replayed under the lock so no change is appended between the replay and the swap
+                var journalChanges = new KeepInvList();
+                replayed = journal.replay(journalChanges);
+                if (nextStorage.isOnDemand()) {
+                    nextStorage.writeAll(journalChanges);
+                }
+                KeepInvList list = next.keepInvList;
+                journalChanges.forEachEntry((mostSigBits, leastSigBits, name, preference) -> {
+                    if (!nextStorage.isOnDemand()
+                            || list.lookup(mostSigBits, leastSigBits) != PreferenceIndex.ABSENT) {
+                        list.put(mostSigBits, leastSigBits, name, preference);
+                    }
+                });
+                ConfigState persisted = next;
+                if (savedState != null) {
+                    boolean hasUnsaved = unsaved != null && unsaved.size() > 0;
+                    ConfigState withUnsaved =
+                            hasUnsaved ? persisted.copyWithPreferences() : persisted.copy();
+                    boolean settingsMerged = withUnsaved.mergeSettings(savedState, previous);
+                    if (settingsMerged || hasUnsaved) {
+                        if (hasUnsaved) {
+                            applyUnsaved(unsaved, previous.keepInvList, withUnsaved.keepInvList,
+                                    nextStorage);
+                        }
+                        next = withUnsaved;
+                        merged = true;
+                    }
+                }
+                savedState = persisted;
+                state = next;
+                storage = nextStorage;
+            }
+            if (merged) {
+                LOGGER.info("Kept the changes that weren't saved to the config file yet.");
+            }
+            if (storageChanged) {
+                previousStorage.close();
+            }
+            if (replayed > 0) {
+                LOGGER.info("Replayed {} changes from the journal.", replayed);
+            }
+            boolean migrated = !nextStorage.storesPlayersInConfig() && players.size() > 0;
+            boolean compact = replayed > 0 && (!next.journalEnabled || nextStorage.isOnDemand());
+            if (migrated || compact || merged) {
+                // remove the migrated players from the config file, or fold the leftover journal in
+                persister.markDirty();
+            }
+            loadTimes.record(System.nanoTime() - startNanos);
+            event.end();
+            if (event.shouldCommit()) {
+                event.path = path.toString();
+                event.storage = nextStorage.getName();
+                event.reload = reload;
+                event.entries = next.keepInvList.size();
+                event.replayed = replayed;
+                event.bytes = read;
+                event.commit();
+            }
+            loaded = true;
+        }
+        if (storageChanged) {
+            fireAllPreferencesChanged();
+            return null;
+        }
+        KeepInvList changes = KeepInvList.diff(previous.keepInvList, next.keepInvList);
+        if (reload) {
+            // made to the file by hand or by another process, rather than through this config
+            recordHistory(previous.keepInvList, changes);
+        }
+        if (previous.enabled != next.enabled) {
+            fireAllPreferencesChanged();
+        } else if (changes.size() > 0) {
+            firePreferencesChanged(changes);
+        }
+        return changes;
+    }
+
+    /**
+     * Finds the preference changes that were made in memory since the config file was last saved
+     * or loaded, which the file doesn't have yet.
+     * 
+     * @param currentStorage The storage of <code>current</code>. Changes to an on-demand storage
+     *        are written as they're made, so they are never unsaved.
+     * @param current The current state.
+     * @return The players whose preference changed, with their current preference, or
+     *         <code>null</code> if there can't be any.
+     */
+    @Nullable
+    private KeepInvList findUnsaved(PreferenceStorage currentStorage, ConfigState current) {
+        if (savedState == null || currentStorage.isOnDemand()
+                || savedState.keepInvList == current.keepInvList) {
+            return null;
+        }
+        return KeepInvList.diff(savedState.keepInvList, current.keepInvList);
+    }
+
+    /**
+     * Applies the changes found by {@link #findUnsaved} to a list that was just loaded.
+     * 
+     * @param unsaved The unsaved changes.
+     * @param current The list the changes were made to, which tells evicted players apart.
+     * @param loaded The list to apply the changes to.
+     * @param loadedStorage The storage of <code>loaded</code>.
+     */
+    private static void applyUnsaved(KeepInvList unsaved, KeepInvList current, KeepInvList loaded,
+            PreferenceStorage loadedStorage) {
+        if (loadedStorage.isOnDemand()) {
+            loadedStorage.writeAll(unsaved);
+        }
+        PreferenceIndex index = loaded.getIndex();
+        unsaved.forEachEntry((mostSigBits, leastSigBits, name, preference) -> {
+            if (loadedStorage.isOnDemand()) {
+                if (index.lookup(mostSigBits, leastSigBits) != PreferenceIndex.ABSENT) {
+                    index.put(mostSigBits, leastSigBits, name, preference);
+                }
+            } else if (current.lookup(mostSigBits, leastSigBits) == PreferenceIndex.ABSENT) {
+                loaded.evict(mostSigBits, leastSigBits);
+            } else {
+                loaded.put(mostSigBits, leastSigBits, name, preference);
+            }
+        });
+    }
+
+    /**
+     * Loads the config file, but only if it was changed by something other than this config since
+     * it was last loaded or saved.
+     * 
+     * @return The same as {@link #load()}, or an empty list if the file wasn't changed.
+     * @throws IOException
+     */
+    @Nullable
+    public KeepInvList loadIfModified() throws IOException {
+        // held so that a save can't change the file between the check and the load
+        synchronized (saveLock) {
+            if (Files.notExists(path)
+                    || Files.getLastModifiedTime(path).equals(knownModifiedTime)) {
+                return new KeepInvList();
+            }
+            return load();
+        }
+    }
+
+    /**
+     * Loads the config file on a background thread, so that reading and parsing it doesn't block
+     * the calling thread.
+     * 
+     * @param onlyIfModified Whether to use {@link #loadIfModified()} instead of {@link #load()}.
+     * @return A future of the result of the load.
+     */
+    public CompletableFuture<KeepInvList> loadAsync(boolean onlyIfModified) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return onlyIfModified ? loadIfModified() : load();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, loader);
+    }
+
+    /**
+     * Closes the current config file, points this config at a different one, and loads it on a
+     * background thread.
+     * <p>
+     * If <code>importFrom</code> is given and the new file doesn't exist yet, the config at
+     * <code>importFrom</code> is copied to it first, including every player's preference, which
+     * the new file's storage then migrates as it loads. The imported config is left untouched.
+     * 
+     * @param path The path of the config file to open.
+     * @param importFrom The config file to copy to <code>path</code> if it doesn't exist, or
+     *        <code>null</code> to start new configs with the defaults.
+     * @return A future of the result of the load.
+     */
+    public CompletableFuture<KeepInvList> openAsync(Path path, @Nullable Path importFrom) {
+        close();
+        synchronized (saveLock) {
+            synchronized (this) {
+                this.path = path;
+                journal = new PreferenceJournal(path);
+                history = new PreferenceHistory(path);
+            }
+            closed = false;
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                if (importFrom != null && Files.notExists(path) && Files.exists(importFrom)) {
+                    importConfig(importFrom);
+                    LOGGER.info("Copied the config file {} to {}.", importFrom, path);
+                }
+                return load();
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, loader);
+    }
+
+    /**
+     * Writes the config file at <code>source</code> to this config's file, with every player's
+     * preference in it.
+     */
+    private void importConfig(Path source) throws IOException {
+        var imported = new ConfigState();
+        try (var reader = new JsonReader(Files.newBufferedReader(source))) {
+            reader.setLenient(true);
+            imported.readJson(reader);
+        }
+        PreferenceStorage sourceStorage = PreferenceStorage.create(imported.storage, source);
+        try {
+            KeepInvList players = sourceStorage.loadAll(sourceStorage.open(imported.keepInvList))
+                    .copy();
+            new PreferenceJournal(source).replay(players);
+            imported.keepInvList = players;
+            // written before the storage is closed, since the players may be read from its file
+            writeJson(path, imported, true);
+        } finally {
+            sourceStorage.close();
+        }
+    }
+
+    /**
+     * Saves any pending changes and closes the config file, releasing every preference from
+     * memory. Until another file is opened with {@link #openAsync}, the config has the default
+     * state and nothing is saved. Does nothing if the file is already closed.
+     * <p>
+     * This should be called after the server stops, so that nothing from its world stays in
+     * memory.
+     */
+    public void close() {
+        synchronized (saveLock) {
+            if (closed) {
+                return;
+            }
         }
-        JsonObject configJson = GSON.fromJson(Files.readString(path), JsonObject.class);
-        enabled = JsonHelper.getBoolean(configJson, "enabled", false);
-        userPermissionLevel = JsonHelper.getInt(configJson, "userPermissionLevel", 0);
-        opPermissionLevel = JsonHelper.getInt(configJson, "opPermissionLevel", 3);
-        if (JsonHelper.hasArray(configJson, "players")) {
-            keepInvList.loadFromJsonArray(configJson.get("players").getAsJsonArray());
+        stopEviction();
+        stopSync();
+        flush();
+        synchronized (saveLock) {
+            if (closed) {
+                return;
+            }
+            PreferenceStorage closedStorage;
+            synchronized (this) {
+                closedStorage = storage;
+                state = new ConfigState();
+                storage = new JsonPreferenceStorage();
+                seenTimes.clear();
+                onlinePlayers.clear();
+            }
+            closed = true;
+            loaded = false;
+            savedState = null;
+            knownModifiedTime = null;
+            closedStorage.close();
+            try {
+                journal.close();
+                history.close();
+            } catch (IOException e) {
+                LOGGER.warn("Failed to close the journal or the history.", e);
+            }
         }
+        pendingReleases.clear();
+        dueReleases.clear();
+        fireAllPreferencesChanged();
+        LOGGER.info("Closed the config file {}.", path);
     }
 }
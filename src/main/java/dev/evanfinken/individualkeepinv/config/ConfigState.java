@@ -0,0 +1,509 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import org.jetbrains.annotations.Nullable;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A snapshot of everything in a {@link Config}: its settings and each player's preference.
+ * <p>
+ * A state is only modified by the thread that created it, before it is published to other threads
+ * through {@link Config}'s volatile reference. After that it is never modified again, so it can be
+ * read from any thread without locking. Changes are made by copying the current state, changing
+ * the copy, and publishing the copy in place of the old state.
+ */
+public final class ConfigState {
+    /** Whether the mod is enabled. */
+    boolean enabled = false;
+    /** Permission level required for a user to set their own keep inventory preference. */
+    int userPermissionLevel = 0;
+    /** Permission level required for a user to enable / disable and reload the mod. */
+    int opPermissionLevel = 3;
+    /** Whether preference changes are appended to a journal instead of rewriting the file. */
+    boolean journalEnabled = false;
+    /** The size in bytes at which the journal is compacted into the config file. */
+    long journalCompactBytes = 1024 * 1024;
+    /** How long in seconds a change may stay in the journal before it is compacted. */
+    long journalCompactSeconds = 300;
+    /**
+     * How long in seconds an on-demand storage keeps a player's preference in memory after they
+     * leave, so that reconnecting doesn't load it again.
+     */
+    long releaseDelaySeconds = 300;
+    /** Whether the config file is reloaded automatically when it is changed on disk. */
+    boolean watchFile = false;
+    /**
+     * How many days a player's preference is kept after they were last seen, or <code>0</code> to
+     * keep it forever.
+     */
+    long retentionDays = 0;
+    /**
+     * The most players whose preference is kept, dropping the players seen longest ago first, or
+     * <code>0</code> for no limit.
+     */
+    int retentionMaxPlayers = 0;
+    /** The rules for deaths of players on the default, compiled from the "rules" array. */
+    RuleTable rules = RuleTable.EMPTY;
+    /**
+     * The {@link KeepMask} of what players keep when their inventory is dropped, unless they
+     * chose their own.
+     */
+    long keptSlots = KeepMask.NONE;
+    /** The {@link KeepMask}s chosen by players themselves, by UUID. Never modified. */
+    Map<UUID, Long> playerKeptSlots = Map.of();
+    /** The item tags whose items are kept whenever a {@link KeepMask} applies. */
+    List<String> keptItems = List.of();
+    /** The item tags whose items are dropped even from the slots a {@link KeepMask} keeps. */
+    List<String> droppedItems = List.of();
+    /**
+     * The directory shared with other servers to sync preferences through, or <code>null</code>
+     * to not sync. See {@link PreferenceSync}.
+     */
+    @Nullable
+    String syncDirectory = null;
+    /**
+     * Whether the items a player drops when they die are stored in their vault instead of being
+     * spawned as item entities.
+     */
+    boolean vaultDrops = false;
+    /** The name of the {@link PreferenceStorage} the preferences are stored in. */
+    String storage = JsonPreferenceStorage.NAME;
+    /**
+     * The list storing each player's keep inventory preference. With an on-demand storage, this
+     * only holds the preferences of online players.
+     */
+    KeepInvList keepInvList;
+
+    /** Creates a state with the default settings and no preferences. */
+    public ConfigState() {
+        this.keepInvList = new KeepInvList();
+    }
+
+    private ConfigState(ConfigState other, KeepInvList keepInvList) {
+        this.enabled = other.enabled;
+        this.userPermissionLevel = other.userPermissionLevel;
+        this.opPermissionLevel = other.opPermissionLevel;
+        this.journalEnabled = other.journalEnabled;
+        this.journalCompactBytes = other.journalCompactBytes;
+        this.journalCompactSeconds = other.journalCompactSeconds;
+        this.releaseDelaySeconds = other.releaseDelaySeconds;
+        this.watchFile = other.watchFile;
+        this.retentionDays = other.retentionDays;
+        this.retentionMaxPlayers = other.retentionMaxPlayers;
+        this.rules = other.rules;
+        this.keptSlots = other.keptSlots;
+        this.playerKeptSlots = other.playerKeptSlots;
+        this.keptItems = other.keptItems;
+        this.droppedItems = other.droppedItems;
+        this.syncDirectory = other.syncDirectory;
+        this.vaultDrops = other.vaultDrops;
+        this.storage = other.storage;
+        this.keepInvList = keepInvList;
+    }
+
+    /** Copies this state's settings, sharing its (unmodifiable) preferences. */
+    ConfigState copy() {
+        return new ConfigState(this, keepInvList);
+    }
+
+    /** Copies this state's settings and preferences so that the preferences can be changed. */
+    ConfigState copyWithPreferences() {
+        return new ConfigState(this, keepInvList.copy());
+    }
+
+    /**
+     * Applies the settings that were changed from <code>saved</code> to <code>current</code> to
+     * this state, keeping this state's value for every other setting.
+     * <p>
+     * This is used when the config file is reloaded while changes made in memory haven't been
+     * saved yet, so that they aren't lost. The preferences aren't merged.
+     * 
+     * @param saved The state that was last saved to or loaded from the config file.
+     * @param current The state with the unsaved changes.
+     * @return Whether any setting was applied.
+     */
+    boolean mergeSettings(ConfigState saved, ConfigState current) {
+        boolean merged = false;
+        if (current.enabled != saved.enabled) {
+            enabled = current.enabled;
+            merged = true;
+        }
+        if (current.userPermissionLevel != saved.userPermissionLevel) {
+            userPermissionLevel = current.userPermissionLevel;
+            merged = true;
+        }
+        if (current.opPermissionLevel != saved.opPermissionLevel) {
+            opPermissionLevel = current.opPermissionLevel;
+            merged = true;
+        }
+        if (current.journalEnabled != saved.journalEnabled) {
+            journalEnabled = current.journalEnabled;
+            merged = true;
+        }
+        if (current.journalCompactBytes != saved.journalCompactBytes) {
+            journalCompactBytes = current.journalCompactBytes;
+            merged = true;
+        }
+        if (current.journalCompactSeconds != saved.journalCompactSeconds) {
+            journalCompactSeconds = current.journalCompactSeconds;
+            merged = true;
+        }
+        if (current.releaseDelaySeconds != saved.releaseDelaySeconds) {
+            releaseDelaySeconds = current.releaseDelaySeconds;
+            merged = true;
+        }
+        if (current.watchFile != saved.watchFile) {
+            watchFile = current.watchFile;
+            merged = true;
+        }
+        if (current.retentionDays != saved.retentionDays) {
+            retentionDays = current.retentionDays;
+            merged = true;
+        }
+        if (current.retentionMaxPlayers != saved.retentionMaxPlayers) {
+            retentionMaxPlayers = current.retentionMaxPlayers;
+            merged = true;
+        }
+        if (current.rules != saved.rules) {
+            rules = current.rules;
+            merged = true;
+        }
+        if (current.keptSlots != saved.keptSlots) {
+            keptSlots = current.keptSlots;
+            merged = true;
+        }
+        if (!current.playerKeptSlots.equals(saved.playerKeptSlots)) {
+            // merged by player, so masks set in the file for other players are kept
+            var masks = new HashMap<>(playerKeptSlots);
+            for (UUID id : saved.playerKeptSlots.keySet()) {
+                if (!current.playerKeptSlots.containsKey(id)) {
+                    masks.remove(id);
+                }
+            }
+            current.playerKeptSlots.forEach((id, mask) -> {
+                if (!mask.equals(saved.playerKeptSlots.get(id))) {
+                    masks.put(id, mask);
+                }
+            });
+            playerKeptSlots = Map.copyOf(masks);
+            merged = true;
+        }
+        if (!current.keptItems.equals(saved.keptItems)) {
+            keptItems = current.keptItems;
+            merged = true;
+        }
+        if (!current.droppedItems.equals(saved.droppedItems)) {
+            droppedItems = current.droppedItems;
+            merged = true;
+        }
+        if (!Objects.equals(current.syncDirectory, saved.syncDirectory)) {
+            syncDirectory = current.syncDirectory;
+            merged = true;
+        }
+        if (current.vaultDrops != saved.vaultDrops) {
+            vaultDrops = current.vaultDrops;
+            merged = true;
+        }
+        return merged;
+    }
+
+    /** Returns whether the mod is enabled. */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Gets the permission level required to run <code>/keepinv set</code>. */
+    public int getUserPermissionLevel() {
+        return userPermissionLevel;
+    }
+
+    /**
+     * Gets the permission level required to run <code>/keepinv on</code>,
+     * <code>/keepinv off</code>, and <code>/keepinv reload</code>.
+     */
+    public int getOpPermissionLevel() {
+        return opPermissionLevel;
+    }
+
+    /** Returns whether preference changes are appended to a journal. */
+    public boolean isJournalEnabled() {
+        return journalEnabled;
+    }
+
+    /** Gets how long in seconds a player's preference is kept in memory after they leave. */
+    public long getReleaseDelaySeconds() {
+        return releaseDelaySeconds;
+    }
+
+    /** Returns whether the config file is reloaded automatically when it changes on disk. */
+    public boolean isWatchFile() {
+        return watchFile;
+    }
+
+    /** Gets how many days a preference is kept after its player was last seen. */
+    public long getRetentionDays() {
+        return retentionDays;
+    }
+
+    /** Gets the most players whose preference is kept. */
+    public int getRetentionMaxPlayers() {
+        return retentionMaxPlayers;
+    }
+
+    /** Gets the compiled rules that decide the deaths of players on the default. */
+    public RuleTable getRules() {
+        return rules;
+    }
+
+    /** Gets the {@link KeepMask} of players who haven't chosen their own. */
+    public long getKeptSlots() {
+        return keptSlots;
+    }
+
+    /**
+     * Gets the {@link KeepMask} that applies to a player.
+     * 
+     * @param id The player's UUID.
+     * @return The player's own mask if they chose one, or otherwise {@link #getKeptSlots()}.
+     */
+    public long getKeptSlots(UUID id) {
+        Long mask = playerKeptSlots.get(id);
+        return mask == null ? keptSlots : mask;
+    }
+
+    /** Returns whether the player with the UUID <code>id</code> chose their own mask. */
+    public boolean hasOwnKeptSlots(UUID id) {
+        return playerKeptSlots.containsKey(id);
+    }
+
+    /** Gets the item tags whose items are kept whenever a mask applies. */
+    public List<String> getKeptItems() {
+        return keptItems;
+    }
+
+    /** Gets the item tags whose items are dropped even from kept slots. */
+    public List<String> getDroppedItems() {
+        return droppedItems;
+    }
+
+    /** Gets the directory to sync preferences through, or <code>null</code> to not sync. */
+    @Nullable
+    public String getSyncDirectory() {
+        return syncDirectory;
+    }
+
+    /** Returns whether dropped inventories are stored in the players' vaults. */
+    public boolean isVaultDrops() {
+        return vaultDrops;
+    }
+
+    /** Gets the name of the storage the preferences are stored in. */
+    public String getStorage() {
+        return storage;
+    }
+
+    /**
+     * Gets the list storing each player's keep inventory preference.
+     * <p>
+     * The list must not be modified.
+     */
+    public KeepInvList getKeepInvList() {
+        return keepInvList;
+    }
+
+    /**
+     * Writes this state as the JSON object saved in the config file.
+     * <p>
+     * @param writer The writer to write the object to.
+     * @param includePlayers Whether to include the preferences, which is only done when they are
+     *        stored in the config file.
+     * @throws IOException
+     */
+    void writeJson(JsonWriter writer, boolean includePlayers) throws IOException {
+        writer.beginObject();
+        writer.name("enabled").value(enabled);
+        writer.name("userPermissionLevel").value(userPermissionLevel);
+        writer.name("opPermissionLevel").value(opPermissionLevel);
+        writer.name("journalEnabled").value(journalEnabled);
+        writer.name("journalCompactBytes").value(journalCompactBytes);
+        writer.name("journalCompactSeconds").value(journalCompactSeconds);
+        writer.name("releaseDelaySeconds").value(releaseDelaySeconds);
+        writer.name("watchFile").value(watchFile);
+        writer.name("retentionDays").value(retentionDays);
+        writer.name("retentionMaxPlayers").value(retentionMaxPlayers);
+        writer.name("storage").value(storage);
+        writer.name("rules").beginArray();
+        for (KeepInvRule rule : rules.getRules()) {
+            rule.writeJson(writer);
+        }
+        writer.endArray();
+        writer.name("keptSlots").value(KeepMask.format(keptSlots));
+        writeStrings(writer.name("keptItems"), keptItems);
+        writeStrings(writer.name("droppedItems"), droppedItems);
+        writer.name("playerKeptSlots").beginObject();
+        for (Map.Entry<UUID, Long> entry : playerKeptSlots.entrySet()) {
+            writer.name(entry.getKey().toString()).value(KeepMask.format(entry.getValue()));
+        }
+        writer.endObject();
+        writer.name("syncDirectory").value(syncDirectory);
+        writer.name("vaultDrops").value(vaultDrops);
+        if (includePlayers) {
+            writer.name("players");
+            keepInvList.writeJson(writer);
+        }
+        writer.endObject();
+    }
+
+    /**
+     * Reads the JSON object saved in the config file into this state.
+     * <p>
+     * Properties that are missing keep their current values, and unknown properties are skipped.
+     * 
+     * @param reader The reader positioned at the start of the object.
+     * @throws IOException
+     */
+    void readJson(JsonReader reader) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String property = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (property) {
+                case "enabled":
+                    enabled = reader.nextBoolean();
+                    break;
+                case "userPermissionLevel":
+                    userPermissionLevel = reader.nextInt();
+                    break;
+                case "opPermissionLevel":
+                    opPermissionLevel = reader.nextInt();
+                    break;
+                case "journalEnabled":
+                    journalEnabled = reader.nextBoolean();
+                    break;
+                case "journalCompactBytes":
+                    journalCompactBytes = reader.nextLong();
+                    break;
+                case "journalCompactSeconds":
+                    journalCompactSeconds = reader.nextLong();
+                    break;
+                case "releaseDelaySeconds":
+                    releaseDelaySeconds = reader.nextLong();
+                    break;
+                case "watchFile":
+                    watchFile = reader.nextBoolean();
+                    break;
+                case "vaultDrops":
+                    vaultDrops = reader.nextBoolean();
+                    break;
+                case "retentionDays":
+                    retentionDays = reader.nextLong();
+                    break;
+                case "retentionMaxPlayers":
+                    retentionMaxPlayers = reader.nextInt();
+                    break;
+                case "storage":
+                    storage = reader.nextString();
+                    break;
+                case "rules":
+                    rules = readRules(reader);
+                    break;
+                case "keptSlots":
+                    keptSlots = readKeepMask(reader);
+                    break;
+                case "keptItems":
+                    keptItems = readStrings(reader);
+                    break;
+                case "droppedItems":
+                    droppedItems = readStrings(reader);
+                    break;
+                case "playerKeptSlots":
+                    playerKeptSlots = readPlayerKeptSlots(reader);
+                    break;
+                case "syncDirectory":
+                    syncDirectory = reader.nextString();
+                    break;
+                case "players":
+                    if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        keepInvList.readJson(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static RuleTable readRules(JsonReader reader) throws IOException {
+        List<KeepInvRule> rules = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                rules.add(KeepInvRule.readJson(reader));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endArray();
+        try {
+            return RuleTable.compile(rules);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid rules", e);
+        }
+    }
+
+    private static long readKeepMask(JsonReader reader) throws IOException {
+        try {
+            return KeepMask.parse(reader.nextString());
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid kept slots", e);
+        }
+    }
+
+    private static Map<UUID, Long> readPlayerKeptSlots(JsonReader reader) throws IOException {
+        Map<UUID, Long> masks = new HashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            UUID id;
+            try {
+                id = UUID.fromString(reader.nextName());
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid UUID in playerKeptSlots", e);
+            }
+            masks.put(id, readKeepMask(reader));
+        }
+        reader.endObject();
+        return Map.copyOf(masks);
+    }
+
+    private static List<String> readStrings(JsonReader reader) throws IOException {
+        List<String> strings = new ArrayList<>();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            strings.add(reader.nextString());
+        }
+        reader.endArray();
+        return List.copyOf(strings);
+    }
+
+    private static void writeStrings(JsonWriter writer, List<String> strings) throws IOException {
+        writer.beginArray();
+        for (String string : strings) {
+            writer.value(string);
+        }
+        writer.endArray();
+    }
+}
@@ -0,0 +1,97 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches the config file for changes made on disk, for example by editing it by hand, and calls
+ * a callback once it has stopped changing.
+ * <p>
+ * Events are taken on a dedicated background thread. Since saving a file usually produces several
+ * events, the callback is only called once no event for the file has arrived for
+ * {@value #DEBOUNCE_MILLIS} milliseconds. The callback is also called for the config's own saves,
+ * so it should use {@link Config#loadIfModified()} to skip those.
+ */
+public class ConfigWatcher implements Closeable {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    private static final long DEBOUNCE_MILLIS = 500;
+
+    private final Path fileName;
+    private final Runnable onChange;
+    private final WatchService watchService;
+    private final Thread thread;
+
+    /**
+     * Starts watching a file.
+     * 
+     * @param path The file to watch.
+     * @param onChange The callback to call on the watcher's thread when the file changed.
+     * @throws IOException If the file's directory couldn't be watched.
+     */
+    public ConfigWatcher(Path path, Runnable onChange) throws IOException {
+        Path absolutePath = path.toAbsolutePath();
+        this.fileName = absolutePath.getFileName();
+        this.onChange = onChange;
+        this.watchService = absolutePath.getFileSystem().newWatchService();
+        absolutePath.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::run, "Individual KeepInv Watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                if (!takeEvents(watchService.take())) {
+                    continue;
+                }
+                // wait until the file stops changing
+                WatchKey key;
+                while ((key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+                    takeEvents(key);
+                }
+                try {
+                    onChange.run();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("Failed to handle a change to the config file.", e);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Takes the events of <code>key</code> and resets it.
+     * 
+     * @return Whether any of the events were for the watched file.
+     */
+    private boolean takeEvents(WatchKey key) {
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW
+                    || fileName.equals(event.context())) {
+                changed = true;
+            }
+        }
+        key.reset();
+        return changed;
+    }
+
+    /** Stops watching the file. */
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+        thread.interrupt();
+    }
+}
@@ -0,0 +1,44 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.util.function.UnaryOperator;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Stores the preferences in the "players" array of the config file. This is the default storage.
+ * <p>
+ * The preferences that were loaded or saved last are kept in a settled index that the config's
+ * changes are layered on top of, so a change only copies the changes made since the last save.
+ */
+public class JsonPreferenceStorage implements PreferenceStorage {
+    public static final String NAME = "json";
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean storesPlayersInConfig() {
+        return true;
+    }
+
+    @Override
+    public KeepInvList open(KeepInvList configPlayers) {
+        return configPlayers.settle();
+    }
+
+    /**
+     * Folds the changes made since the last save into a new settled index, so that copying the
+     * list for the next change only copies what changed after this save. The config file itself
+     * is written by the config.
+     */
+    @Override
+    @Nullable
+    public UnaryOperator<KeepInvList> save(KeepInvList snapshot) {
+        if (snapshot.getIndex().size() == 0) {
+            return null;
+        }
+        KeepInvList folded = snapshot.settle();
+        return current -> current.rebase(folded, snapshot);
+    }
+}
@@ -1,24 +1,194 @@
 package dev.evanfinken.individualkeepinv.config;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.IOException;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.UUID;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import com.mojang.authlib.GameProfile;
 
 // I wanted to extend ServerConfigList but couldn't easily extend ServerConfigEntry for KeepInvEntry
 public class KeepInvList {
     public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
-    /** A map of <code>GameProfile</code>s to the <code>KeepInvEntry</code> for that player. */
-    private final Map<GameProfile, Optional<Boolean>> map = new HashMap<>();
+    private static final Optional<Boolean> KEEP = Optional.of(true);
+    private static final Optional<Boolean> DROP = Optional.of(false);
 
-    public KeepInvList() {}
+    /**
+     * The index of each player's UUID to their keep inventory preference. When there is a
+     * <code>settled</code> index or a <code>base</code>, this only holds the changes that haven't
+     * been folded into them yet.
+     */
+    private final PreferenceIndex index;
+    /**
+     * The preferences underneath <code>index</code> that a save folded together, if any. It is
+     * shared by the copies of this list, so that changing a copy only copies <code>index</code>,
+     * and is copied before this list removes an entry from it unless <code>ownsSettled</code>.
+     */
+    @Nullable
+    private PreferenceIndex settled;
+    /** Whether <code>settled</code> was copied for this list alone, so it can be changed. */
+    private boolean ownsSettled = false;
+    /** The binary preference file underneath <code>index</code>, if binary storage is used. */
+    @Nullable
+    private final MappedPreferenceFile base;
+
+    public KeepInvList() {
+        this(new PreferenceIndex(), null, null);
+    }
+
+    private KeepInvList(PreferenceIndex index, @Nullable PreferenceIndex settled,
+            @Nullable MappedPreferenceFile base) {
+        this.index = index;
+        this.settled = settled;
+        this.base = base;
+    }
+
+    /**
+     * Creates a copy of this list that can be changed without affecting this one. Only the
+     * changes on top of the settled index or the base file are copied.
+     */
+    public KeepInvList copy() {
+        ownsSettled = false;
+        return new KeepInvList(index.copy(), settled, base);
+    }
+
+    /**
+     * Creates a list on top of a binary preference file, with no changes on top of it yet.
+     * 
+     * @param base The preference file.
+     * @return The list.
+     */
+    public static KeepInvList withBase(MappedPreferenceFile base) {
+        return new KeepInvList(new PreferenceIndex(), null, base);
+    }
+
+    /**
+     * Creates a list holding every entry of this one in a settled index, with no changes on top
+     * of it yet, so that changing a copy of it doesn't copy every entry. Lists on top of a base
+     * file are returned as they are, since the base file is never copied anyway.
+     * <p>
+     * If this list has no settled index, its index becomes the settled one without being copied,
+     * so this list must not be changed afterwards. Otherwise both are folded into a new index,
+     * which takes time proportional to the number of entries, so this is done by the background
+     * save.
+     * 
+     * @return The settled list.
+     */
+    public KeepInvList settle() {
+        if (base != null) {
+            return this;
+        }
+        if (settled == null) {
+            return new KeepInvList(new PreferenceIndex(), index, null);
+        }
+        var folded = new PreferenceIndex(settled.size() + index.size());
+        forEachTimedEntry(folded::put);
+        return new KeepInvList(new PreferenceIndex(), folded, null);
+    }
+
+    /**
+     * Creates the list to use after the changes in <code>merged</code> have been folded into
+     * <code>saved</code>, such as by merging them into a new base file or a settled index.
+     * <p>
+     * Changes that were made to this list after <code>merged</code> was taken, including players
+     * that were seen since, are kept on top of <code>saved</code>. If this list no longer has the
+     * settled index and base file of <code>merged</code>, for example because every preference
+     * was reset in the meantime, it is returned as it is.
+     * 
+     * @param saved The list the changes were folded into.
+     * @param merged The list whose changes were folded.
+     * @return The list on top of <code>saved</code>.
+     */
+    public KeepInvList rebase(KeepInvList saved, KeepInvList merged) {
+        if (settled != merged.settled || base != merged.base) {
+            return this;
+        }
+        PreferenceIndex remaining = saved.index.copy();
+        index.forEachTimed((mostSigBits, leastSigBits, name, preference, lastSeen) -> {
+            if (merged.index.lookup(mostSigBits, leastSigBits) != preference
+                    || merged.index.getLastSeen(mostSigBits, leastSigBits) != lastSeen
+                    || !Objects.equals(name,
+                            merged.index.getName(new UUID(mostSigBits, leastSigBits)))) {
+                remaining.put(mostSigBits, leastSigBits, name, preference, lastSeen);
+            }
+        });
+        return new KeepInvList(remaining, saved.settled, saved.base);
+    }
+
+    /**
+     * Finds the players whose preference differs between two lists.
+     * <p>
+     * When both lists are on top of the same settled index and base file, only the changes on top
+     * of them are compared, since the entries underneath are the same in both.
+     * 
+     * @param from The old list.
+     * @param to The new list.
+     * @return A list with an entry for each player whose preference differs, holding their
+     *         preference in <code>to</code>.
+     */
+    public static KeepInvList diff(KeepInvList from, KeepInvList to) {
+        var changes = new KeepInvList();
+        PreferenceIndex.EntryConsumer<RuntimeException> addedOrChanged =
+                (mostSigBits, leastSigBits, name, preference) -> {
+                    if (from.getPreference(mostSigBits, leastSigBits) != preference) {
+                        changes.index.put(mostSigBits, leastSigBits, name, preference);
+                    }
+                };
+        PreferenceIndex.EntryConsumer<RuntimeException> removedOrChanged =
+                (mostSigBits, leastSigBits, name, preference) -> {
+                    byte newPreference = to.getPreference(mostSigBits, leastSigBits);
+                    if (newPreference != preference && changes.index.lookup(mostSigBits,
+                            leastSigBits) == PreferenceIndex.ABSENT) {
+                        changes.index.put(mostSigBits, leastSigBits, name, newPreference);
+                    }
+                };
+        if (from.settled == to.settled && from.base == to.base) {
+            to.index.forEach(addedOrChanged);
+            from.index.forEach(removedOrChanged);
+        } else {
+            to.forEachEntry(addedOrChanged);
+            from.forEachEntry(removedOrChanged);
+        }
+        return changes;
+    }
+
+    /** Gets the binary preference file underneath this list, if there is one. */
+    @Nullable
+    public MappedPreferenceFile getBase() {
+        return base;
+    }
+
+    /**
+     * Gets the number of players with an entry in this list. When there is a settled index or a
+     * base file, players that were changed since it was made may be counted twice.
+     */
+    public int size() {
+        return getResidentSize() + (base == null ? 0 : base.size());
+    }
+
+    /** Gets the number of entries held on the heap, in the index and the settled index. */
+    public int getResidentSize() {
+        return index.size() + (settled == null ? 0 : settled.size());
+    }
+
+    /** Estimates the heap memory used by the index and the settled index. */
+    public long estimateMemoryBytes() {
+        return index.estimateMemoryBytes() + (settled == null ? 0 : settled.estimateMemoryBytes());
+    }
+
+    /**
+     * Gets the index storing the preferences in this list. When there is a settled index or a
+     * base file, this only holds the changes on top of them.
+     */
+    public PreferenceIndex getIndex() {
+        return index;
+    }
 
     /**
      * Gets the keep inventory preference of the player specified by <code>profile</code>.
@@ -31,10 +201,116 @@ public class KeepInvList {
      * @return The keep inventory preference of the player.
      */
     public Optional<Boolean> shouldKeepInventory(GameProfile profile) {
-        if (!map.containsKey(profile)) {
-            return Optional.empty();
+        return toOptional(getPreference(profile));
+    }
+
+    /**
+     * Gets the keep inventory preference of the player specified by <code>profile</code> as one of
+     * {@link PreferenceIndex#DEFAULT}, {@link PreferenceIndex#KEEP}, or
+     * {@link PreferenceIndex#DROP}.
+     * 
+     * @param profile The profile of the player to get the preference of.
+     * @return The keep inventory preference of the player.
+     */
+    public byte getPreference(GameProfile profile) {
+        UUID id = profile.getId();
+        if (id == null) {
+            return PreferenceIndex.DEFAULT;
+        }
+        return getPreference(id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
+    /**
+     * Gets the keep inventory preference of the player with the UUID made up of
+     * <code>mostSigBits</code> and <code>leastSigBits</code>.
+     * 
+     * @return One of {@link PreferenceIndex#DEFAULT}, {@link PreferenceIndex#KEEP}, or
+     *         {@link PreferenceIndex#DROP}.
+     */
+    public byte getPreference(long mostSigBits, long leastSigBits) {
+        byte preference = lookup(mostSigBits, leastSigBits);
+        return preference == PreferenceIndex.ABSENT ? PreferenceIndex.DEFAULT : preference;
+    }
+
+    /**
+     * Gets the keep inventory preference of the player with the UUID made up of
+     * <code>mostSigBits</code> and <code>leastSigBits</code>, distinguishing players without an
+     * entry from players on the default.
+     * 
+     * @return The player's preference, or {@link PreferenceIndex#ABSENT} if they have no entry.
+     */
+    public byte lookup(long mostSigBits, long leastSigBits) {
+        byte preference = index.lookup(mostSigBits, leastSigBits);
+        if (preference == PreferenceIndex.ABSENT && settled != null) {
+            preference = settled.lookup(mostSigBits, leastSigBits);
+        }
+        if (preference == PreferenceIndex.ABSENT && base != null) {
+            preference = base.get(mostSigBits, leastSigBits);
+        }
+        return preference;
+    }
+
+    /**
+     * Gets when the player with the UUID made up of <code>mostSigBits</code> and
+     * <code>leastSigBits</code> was last seen.
+     * 
+     * @return The time in milliseconds since the epoch, or <code>0</code> if unknown.
+     */
+    public long getLastSeen(long mostSigBits, long leastSigBits) {
+        if (index.lookup(mostSigBits, leastSigBits) != PreferenceIndex.ABSENT) {
+            return index.getLastSeen(mostSigBits, leastSigBits);
+        }
+        if (settled != null
+                && settled.lookup(mostSigBits, leastSigBits) != PreferenceIndex.ABSENT) {
+            return settled.getLastSeen(mostSigBits, leastSigBits);
+        }
+        return base == null ? 0 : base.getLastSeen(mostSigBits, leastSigBits);
+    }
+
+    /**
+     * Gets the name saved for the player with the UUID made up of <code>mostSigBits</code> and
+     * <code>leastSigBits</code>.
+     * 
+     * @return The player's name, or <code>null</code> if they have no entry. Players only in the
+     *         base file have an empty name.
+     */
+    @Nullable
+    public String getName(long mostSigBits, long leastSigBits) {
+        var id = new UUID(mostSigBits, leastSigBits);
+        String name = index.getName(id);
+        if (name == null && settled != null) {
+            name = settled.getName(id);
+        }
+        if (name == null && base != null
+                && base.get(mostSigBits, leastSigBits) != PreferenceIndex.ABSENT) {
+            name = "";
+        }
+        return name;
+    }
+
+    /**
+     * Removes the entry of the player with the UUID made up of <code>mostSigBits</code> and
+     * <code>leastSigBits</code>, including a record of them in the settled index or the base file.
+     * <p>
+     * The settled index is copied the first time this list removes an entry from it, which takes
+     * time proportional to its size. The base file can't be changed, so a player with a record in
+     * it is set to the default instead, which drops the record when the changes are next merged
+     * into a new file.
+     */
+    public void evict(long mostSigBits, long leastSigBits) {
+        var id = new UUID(mostSigBits, leastSigBits);
+        index.remove(id);
+        if (settled != null && settled.contains(id)) {
+            if (!ownsSettled) {
+                settled = settled.copy();
+                ownsSettled = true;
+            }
+            settled.remove(id);
+        }
+        if (base != null && base.get(mostSigBits, leastSigBits) != PreferenceIndex.ABSENT) {
+            index.put(mostSigBits, leastSigBits, "", PreferenceIndex.DEFAULT,
+                    base.getLastSeen(mostSigBits, leastSigBits));
         }
-        return map.get(profile);
     }
 
     /**
@@ -51,72 +327,255 @@ public class KeepInvList {
      * @param keepInventory The player's new preference.
      */
     public void setKeepInventory(GameProfile profile, Optional<Boolean> keepInventory) {
-        map.put(profile, keepInventory);
+        UUID id = profile.getId();
+        if (id != null) {
+            put(id.getMostSignificantBits(), id.getLeastSignificantBits(), profile.getName(),
+                    toPreference(keepInventory));
+        }
+    }
+
+    /**
+     * Adds or updates the entry of the player with the UUID made up of <code>mostSigBits</code>
+     * and <code>leastSigBits</code>. A player with an entry in the settled index or the base file
+     * keeps the time they were last seen, like a player with an entry in the index does.
+     * 
+     * @see PreferenceIndex#put(long, long, String, byte)
+     */
+    public void put(long mostSigBits, long leastSigBits, String name, byte preference) {
+        long lastSeen = index.lookup(mostSigBits, leastSigBits) == PreferenceIndex.ABSENT
+                ? getLastSeen(mostSigBits, leastSigBits)
+                : 0;
+        index.put(mostSigBits, leastSigBits, name, preference, lastSeen > 0 ? lastSeen : -1);
     }
 
     /** Removes the entry entry for the specified profile. */
     public void remove(GameProfile profile) {
-        map.remove(profile);
+        if (profile.getId() != null) {
+            index.remove(profile.getId());
+        }
     }
 
-    public JsonArray toJsonArray() {
-        var jsonArray = new JsonArray();
-        for (var entry : map.entrySet()) {
-            GameProfile profile = entry.getKey();
-            Optional<Boolean> keepInventory = entry.getValue();
+    /**
+     * Calls <code>consumer</code> with every entry in this list, including the entries in the
+     * settled index and the base file that haven't been changed.
+     */
+    public <E extends Exception> void forEachEntry(PreferenceIndex.EntryConsumer<E> consumer)
+            throws E {
+        forEachTimedEntry((mostSigBits, leastSigBits, name, preference, lastSeen) -> consumer
+                .accept(mostSigBits, leastSigBits, name, preference));
+    }
 
-            var jsonObject = new JsonObject();
-            if (profile != null) {
-                jsonObject.addProperty("uuid",
-                        profile.getId() == null ? "" : profile.getId().toString());
-                jsonObject.addProperty("name", profile.getName());
-                jsonObject.addProperty("keepInventory", keepInventory.orElse(null));
-            }
-            jsonArray.add(jsonObject);
+    /**
+     * Calls <code>consumer</code> with every entry in this list and when its player was last seen,
+     * including the entries in the settled index and the base file that haven't been changed.
+     */
+    public <E extends Exception> void forEachTimedEntry(
+            PreferenceIndex.TimedEntryConsumer<E> consumer) throws E {
+        if (base != null) {
+            base.forEachTimed((mostSigBits, leastSigBits, name, preference, lastSeen) -> {
+                if (index.lookup(mostSigBits, leastSigBits) == PreferenceIndex.ABSENT
+                        && (settled == null || settled.lookup(mostSigBits,
+                                leastSigBits) == PreferenceIndex.ABSENT)) {
+                    consumer.accept(mostSigBits, leastSigBits, name, preference, lastSeen);
+                }
+            });
         }
-        return jsonArray;
+        if (settled != null) {
+            settled.forEachTimed((mostSigBits, leastSigBits, name, preference, lastSeen) -> {
+                if (index.lookup(mostSigBits, leastSigBits) == PreferenceIndex.ABSENT) {
+                    consumer.accept(mostSigBits, leastSigBits, name, preference, lastSeen);
+                }
+            });
+        }
+        index.forEachTimed(consumer);
+    }
+
+    /**
+     * Writes every entry to <code>writer</code> as a JSON array, one entry at a time. Each entry
+     * is an object like the one made by {@link #entryToJson}, plus when its player was last seen.
+     * 
+     * @param writer The writer to write the array to.
+     * @throws IOException
+     */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginArray();
+        forEachTimedEntry((mostSigBits, leastSigBits, name, preference, lastSeen) -> {
+            writer.beginObject();
+            writer.name("uuid").value(new UUID(mostSigBits, leastSigBits).toString());
+            writer.name("name").value(name);
+            if (preference != PreferenceIndex.DEFAULT) {
+                writer.name("keepInventory").value(preference == PreferenceIndex.KEEP);
+            }
+            if (lastSeen != 0) {
+                writer.name("lastSeen").value(lastSeen);
+            }
+            writer.endObject();
+        });
+        writer.endArray();
     }
 
     /**
-     * Clears this list and fills it with the entries in <code>entries</code>.
+     * Clears this list and fills it with the entries in the JSON array that <code>reader</code>
+     * is positioned at, reading one entry at a time.
+     * <p>
+     * This accepts the format written by {@link #writeJson}. Entries are matched by UUID, so if a
+     * player appears more than once (for example, because they were saved under an old name), the
+     * last entry wins. Entries without a "lastSeen" time count their player as seen now.
      * 
-     * @param entries A JSON array of objects representing players and their preferences.
+     * @param reader The reader positioned at the start of the array.
+     * @throws IOException
      */
-    public void loadFromJsonArray(JsonArray entries) {
-        map.clear();
-        for (JsonElement element : entries) {
-            if (!element.isJsonObject()) {
+    public void readJson(JsonReader reader) throws IOException {
+        index.clear();
+        int valid = 0;
+        long now = System.currentTimeMillis();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
                 continue;
             }
-            var playerJsonObject = element.getAsJsonObject();
-            var profile = gameProfileFromJson(playerJsonObject);
-            if (profile != null) {
-                map.put(profile, keepInventoryFromJson(playerJsonObject));
+            UUID id = null;
+            String name = "";
+            byte preference = PreferenceIndex.DEFAULT;
+            long lastSeen = now;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String property = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    continue;
+                }
+                switch (property) {
+                    case "uuid":
+                        try {
+                            id = UUID.fromString(reader.nextString());
+                        } catch (IllegalArgumentException e) {
+                            id = null;
+                        }
+                        break;
+                    case "name":
+                        name = reader.nextString();
+                        break;
+                    case "keepInventory":
+                        preference = reader.nextBoolean() ? PreferenceIndex.KEEP
+                                : PreferenceIndex.DROP;
+                        break;
+                    case "lastSeen":
+                        lastSeen = reader.nextLong();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+            if (id != null) {
+                index.put(id, name, preference, lastSeen);
+                valid++;
             }
         }
+        reader.endArray();
+        int duplicates = valid - index.size();
+        if (duplicates > 0) {
+            LOGGER.info("Merged {} duplicate player entries.", duplicates);
+        }
     }
 
     /**
-     * Attempts to create a <code>GameProfile</code> from a <code>JsonObject</code>.
+     * Adds or updates the entry described by <code>playerJsonObject</code>.
      * 
-     * @param json An object with the properties "uuid" and "name".
-     * @return The created profile, or <code>null</code> if the info in <code>json</code> is
-     *         invalid.
+     * @param playerJsonObject An object in the format created by {@link #entryToJson}.
+     * @return Whether the object described a valid entry.
+     */
+    public boolean putFromJson(JsonObject playerJsonObject) {
+        UUID id = uuidFromJson(playerJsonObject);
+        if (id == null) {
+            return false;
+        }
+        String name = playerJsonObject.has("name") && !playerJsonObject.get("name").isJsonNull()
+                ? playerJsonObject.get("name").getAsString()
+                : "";
+        long lastSeen = playerJsonObject.has("lastSeen")
+                && !playerJsonObject.get("lastSeen").isJsonNull()
+                        ? playerJsonObject.get("lastSeen").getAsLong()
+                        : -1;
+        index.put(id.getMostSignificantBits(), id.getLeastSignificantBits(), name,
+                toPreference(keepInventoryFromJson(playerJsonObject)), lastSeen);
+        return true;
+    }
+
+    /**
+     * Creates the JSON object that is saved for a player's entry.
+     * 
+     * @param profile The profile of the player.
+     * @param keepInventory The player's preference.
+     * @return An object with the properties "uuid", "name", and "keepInventory".
+     */
+    public static JsonObject entryToJson(GameProfile profile, Optional<Boolean> keepInventory) {
+        var jsonObject = new JsonObject();
+        if (profile != null) {
+            jsonObject.addProperty("uuid",
+                    profile.getId() == null ? "" : profile.getId().toString());
+            jsonObject.addProperty("name", profile.getName());
+            jsonObject.addProperty("keepInventory", keepInventory.orElse(null));
+        }
+        return jsonObject;
+    }
+
+    /** @see #entryToJson(GameProfile, Optional) */
+    public static JsonObject entryToJson(UUID id, String name, byte preference) {
+        var jsonObject = new JsonObject();
+        jsonObject.addProperty("uuid", id.toString());
+        jsonObject.addProperty("name", name);
+        jsonObject.addProperty("keepInventory", toOptional(preference).orElse(null));
+        return jsonObject;
+    }
+
+    /**
+     * Converts a preference from a {@link PreferenceIndex} to an <code>Optional</code>.
+     * 
+     * @param preference One of {@link PreferenceIndex#DEFAULT}, {@link PreferenceIndex#KEEP}, or
+     *        {@link PreferenceIndex#DROP}.
+     * @return The preference as an <code>Optional</code>, without allocating.
+     */
+    public static Optional<Boolean> toOptional(byte preference) {
+        switch (preference) {
+            case PreferenceIndex.KEEP:
+                return KEEP;
+            case PreferenceIndex.DROP:
+                return DROP;
+            default:
+                return Optional.empty();
+        }
+    }
+
+    /**
+     * Converts a preference stored as an <code>Optional</code> to its {@link PreferenceIndex}
+     * value.
+     */
+    public static byte toPreference(Optional<Boolean> keepInventory) {
+        if (keepInventory.isEmpty()) {
+            return PreferenceIndex.DEFAULT;
+        }
+        return keepInventory.get() ? PreferenceIndex.KEEP : PreferenceIndex.DROP;
+    }
+
+    /**
+     * Attempts to get the UUID of a player from a <code>JsonObject</code>.
+     * 
+     * @param json An object with the property "uuid".
+     * @return The UUID, or <code>null</code> if the info in <code>json</code> is invalid.
      */
-    // This is copied from WhitelistEntry and OperatorEntry
     @Nullable
-    private static GameProfile gameProfileFromJson(JsonObject json) {
-        UUID uUID;
-        if (!json.has("uuid") || !json.has("name")) {
+    private static UUID uuidFromJson(JsonObject json) {
+        if (!json.has("uuid")) {
             return null;
         }
-        String string = json.get("uuid").getAsString();
         try {
-            uUID = UUID.fromString(string);
+            return UUID.fromString(json.get("uuid").getAsString());
         } catch (Throwable throwable) {
             return null;
         }
-        return new GameProfile(uUID, json.get("name").getAsString());
     }
 
     /**
@@ -127,7 +586,7 @@ public class KeepInvList {
      *         invalid.
      */
     private static Optional<Boolean> keepInventoryFromJson(JsonObject json) {
-        if (json.has("keepInventory")) {
+        if (json.has("keepInventory") && !json.get("keepInventory").isJsonNull()) {
             return Optional.of(json.get("keepInventory").getAsBoolean());
         }
         return Optional.empty();
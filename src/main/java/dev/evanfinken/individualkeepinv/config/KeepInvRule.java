@@ -0,0 +1,121 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.IOException;
+import org.jetbrains.annotations.Nullable;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * A rule in the "rules" array of the config file, deciding whether players keep their inventory
+ * when they die under certain conditions, for example:
+ * 
+ * <pre>
+ * { "dimension": "minecraft:the_nether", "keepInventory": true }
+ * { "team": "builders", "cause": "minecraft:lava", "keepInventory": true }
+ * { "pvp": true, "keepInventory": false }
+ * </pre>
+ * <p>
+ * Each condition that is left out matches any death. A rule without "keepInventory" makes the
+ * deaths it matches follow the gamerule, which is useful to exempt them from a later rule.
+ * Rules are immutable once read, and are compiled into a {@link RuleTable} to be evaluated.
+ */
+public final class KeepInvRule {
+    /** The dimension the player died in, such as <code>minecraft:overworld</code>. */
+    @Nullable
+    final String dimension;
+    /** The name of the scoreboard team the player is on. */
+    @Nullable
+    final String team;
+    /** The damage type that killed the player, such as <code>minecraft:lava</code>. */
+    @Nullable
+    final String cause;
+    /** Whether the player was killed by another player. */
+    @Nullable
+    final Boolean pvp;
+    /**
+     * One of {@link PreferenceIndex#DEFAULT}, {@link PreferenceIndex#KEEP}, or
+     * {@link PreferenceIndex#DROP}.
+     */
+    final byte preference;
+
+    public KeepInvRule(@Nullable String dimension, @Nullable String team, @Nullable String cause,
+            @Nullable Boolean pvp, byte preference) {
+        this.dimension = dimension;
+        this.team = team;
+        this.cause = cause;
+        this.pvp = pvp;
+        this.preference = preference;
+    }
+
+    /**
+     * Reads a rule from the JSON object that <code>reader</code> is positioned at.
+     * 
+     * @param reader The reader positioned at the start of the object.
+     * @return The rule.
+     * @throws IOException
+     */
+    public static KeepInvRule readJson(JsonReader reader) throws IOException {
+        String dimension = null;
+        String team = null;
+        String cause = null;
+        Boolean pvp = null;
+        byte preference = PreferenceIndex.DEFAULT;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String property = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (property) {
+                case "dimension":
+                    dimension = reader.nextString();
+                    break;
+                case "team":
+                    team = reader.nextString();
+                    break;
+                case "cause":
+                    cause = reader.nextString();
+                    break;
+                case "pvp":
+                    pvp = reader.nextBoolean();
+                    break;
+                case "keepInventory":
+                    preference = reader.nextBoolean() ? PreferenceIndex.KEEP
+                            : PreferenceIndex.DROP;
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return new KeepInvRule(dimension, team, cause, pvp, preference);
+    }
+
+    /**
+     * Writes this rule as a JSON object, in the format read by {@link #readJson}.
+     * 
+     * @param writer The writer to write the object to.
+     * @throws IOException
+     */
+    public void writeJson(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        if (dimension != null) {
+            writer.name("dimension").value(dimension);
+        }
+        if (team != null) {
+            writer.name("team").value(team);
+        }
+        if (cause != null) {
+            writer.name("cause").value(cause);
+        }
+        if (pvp != null) {
+            writer.name("pvp").value(pvp);
+        }
+        if (preference != PreferenceIndex.DEFAULT) {
+            writer.name("keepInventory").value(preference == PreferenceIndex.KEEP);
+        }
+        writer.endObject();
+    }
+}
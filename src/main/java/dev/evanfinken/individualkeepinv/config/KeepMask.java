@@ -0,0 +1,152 @@
+package dev.evanfinken.individualkeepinv.config;
+
+/**
+ * Bitmasks of the inventory slots, and the experience, that a player keeps when they die while
+ * their inventory is otherwise dropped, for example:
+ * 
+ * <pre>
+ * "keptSlots": "hotbar,armor"
+ * "keptSlots": "all"
+ * "keptSlots": "offhand,9,10,xp"
+ * </pre>
+ * <p>
+ * Bit <code>n</code> is slot <code>n</code> of the player's inventory: the hotbar is
+ * <code>0</code>-<code>8</code>, the rest of the main inventory <code>9</code>-<code>35</code>,
+ * the armor <code>36</code>-<code>39</code>, and the offhand <code>40</code>. One more bit,
+ * {@link #XP}, keeps the player's experience.
+ */
+public final class KeepMask {
+    /** Keeps nothing, which drops the whole inventory like vanilla. */
+    public static final long NONE = 0;
+    /** The hotbar slots. */
+    public static final long HOTBAR = (1L << 9) - 1;
+    /** The main inventory slots, including the hotbar. */
+    public static final long MAIN = (1L << 36) - 1;
+    /** The armor slots. */
+    public static final long ARMOR = 0xFL << 36;
+    /** The offhand slot. */
+    public static final long OFFHAND = 1L << 40;
+    /** The number of inventory slots covered by a mask. */
+    public static final int SLOTS = 41;
+    /** Keeps the player's experience. */
+    public static final long XP = 1L << SLOTS;
+    /** Every slot and the experience. */
+    public static final long ALL = (1L << (SLOTS + 1)) - 1;
+    /**
+     * Set by the death path on masks that only keep part of the inventory, which are dropped from
+     * slot by slot. It is never saved.
+     */
+    public static final long PARTIAL = Long.MIN_VALUE;
+    /**
+     * Used by the death path when the whole inventory is kept, ignoring the item tags. It is
+     * never saved.
+     */
+    public static final long EVERYTHING = -1L;
+
+    private KeepMask() {}
+
+    /** Returns whether <code>mask</code> keeps the inventory slot <code>slot</code>. */
+    public static boolean keepsSlot(long mask, int slot) {
+        return (mask & (1L << slot)) != 0;
+    }
+
+    /**
+     * Parses a comma-separated list of slot names or numbers, as written by {@link #format}.
+     * <p>
+     * The names are "hotbar", "main", "armor", "offhand", "xp", "all", and "none".
+     * 
+     * @param value The list to parse.
+     * @return The mask.
+     * @throws IllegalArgumentException If a name or number is invalid.
+     */
+    public static long parse(String value) {
+        long mask = NONE;
+        for (String part : value.split(",")) {
+            String name = part.trim().toLowerCase();
+            switch (name) {
+                case "":
+                case "none":
+                    break;
+                case "hotbar":
+                    mask |= HOTBAR;
+                    break;
+                case "main":
+                    mask |= MAIN;
+                    break;
+                case "armor":
+                    mask |= ARMOR;
+                    break;
+                case "offhand":
+                    mask |= OFFHAND;
+                    break;
+                case "xp":
+                    mask |= XP;
+                    break;
+                case "all":
+                    mask |= ALL;
+                    break;
+                default:
+                    int slot;
+                    try {
+                        slot = Integer.parseInt(name);
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("Invalid slot: " + name, e);
+                    }
+                    if (slot < 0 || slot >= SLOTS) {
+                        throw new IllegalArgumentException("Invalid slot: " + name);
+                    }
+                    mask |= 1L << slot;
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * Formats a mask as a comma-separated list, using the names of whole groups of slots where
+     * possible.
+     * 
+     * @param mask The mask to format.
+     * @return The list, which {@link #parse} turns back into <code>mask</code>.
+     */
+    public static String format(long mask) {
+        if (mask == NONE) {
+            return "none";
+        }
+        if ((mask & ALL) == ALL) {
+            return "all";
+        }
+        var builder = new StringBuilder();
+        long slots = mask;
+        if ((slots & MAIN) == MAIN) {
+            append(builder, "main");
+            slots &= ~MAIN;
+        } else if ((slots & HOTBAR) == HOTBAR) {
+            append(builder, "hotbar");
+            slots &= ~HOTBAR;
+        }
+        if ((slots & ARMOR) == ARMOR) {
+            append(builder, "armor");
+            slots &= ~ARMOR;
+        }
+        if ((slots & OFFHAND) != 0) {
+            append(builder, "offhand");
+            slots &= ~OFFHAND;
+        }
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (keepsSlot(slots, slot)) {
+                append(builder, Integer.toString(slot));
+            }
+        }
+        if ((mask & XP) != 0) {
+            append(builder, "xp");
+        }
+        return builder.toString();
+    }
+
+    private static void append(StringBuilder builder, String name) {
+        if (builder.length() > 0) {
+            builder.append(',');
+        }
+        builder.append(name);
+    }
+}
@@ -0,0 +1,268 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A read-only, memory-mapped file of keep inventory preferences.
+ * <p>
+ * The file starts with a {@value #HEADER_BYTES} byte header (a magic number, the format version,
+ * and the number of records), followed by fixed-width records sorted by UUID. Each record is the
+ * UUID's most and least significant bits, the preference byte, and when the player was last seen
+ * in milliseconds since the epoch. Players that are on the default aren't stored. Files of
+ * version 1, whose records have no last seen time, can still be read.
+ * <p>
+ * Lookups binary search the mapping directly, so the records are never copied onto the heap and
+ * only the pages that are touched are read from disk. The file is never modified once written;
+ * changes are merged into a new file by {@link #write}.
+ */
+public final class MappedPreferenceFile {
+    /** "IKIV" in ASCII. */
+    public static final int MAGIC = 0x494B4956;
+    public static final int VERSION = 2;
+    public static final int HEADER_BYTES = 16;
+    public static final int RECORD_BYTES = Long.BYTES * 3 + 1;
+    /** The size of a record in files of version 1, which have no last seen time. */
+    private static final int VERSION_1_RECORD_BYTES = Long.BYTES * 2 + 1;
+
+    private final MappedByteBuffer buffer;
+    /** The number of records in the file. */
+    private final int count;
+    /** The size of a record, which depends on the version of the file. */
+    private final int recordBytes;
+
+    private MappedPreferenceFile(MappedByteBuffer buffer, int count, int recordBytes) {
+        this.buffer = buffer;
+        this.count = count;
+        this.recordBytes = recordBytes;
+    }
+
+    /**
+     * Maps the file at <code>path</code>.
+     * 
+     * @param path The path of the file.
+     * @return The mapped file.
+     * @throws IOException If the file can't be read or isn't a preference file.
+     */
+    public static MappedPreferenceFile open(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+                throw new IOException(path + " is not a preference file");
+            }
+            int version = buffer.getInt(4);
+            if (version != VERSION && version != 1) {
+                throw new IOException("Unsupported preference file version " + version);
+            }
+            int recordBytes = version == 1 ? VERSION_1_RECORD_BYTES : RECORD_BYTES;
+            int count = buffer.getInt(8);
+            if (HEADER_BYTES + (long) count * recordBytes > buffer.capacity()) {
+                throw new IOException(path + " is truncated");
+            }
+            // the mapping stays valid after the channel is closed
+            return new MappedPreferenceFile(buffer, count, recordBytes);
+        }
+    }
+
+    /** Gets the number of records in the file. */
+    public int size() {
+        return count;
+    }
+
+    /** Gets the size of the file in bytes. */
+    public long byteSize() {
+        return HEADER_BYTES + (long) count * recordBytes;
+    }
+
+    /**
+     * Gets the preference of the player with the UUID made up of <code>mostSigBits</code> and
+     * <code>leastSigBits</code>.
+     * <p>
+     * This only uses absolute reads of the mapping, so it is safe to call from any thread.
+     * 
+     * @return The player's preference, or {@link PreferenceIndex#ABSENT} if they have no record.
+     */
+    public byte get(long mostSigBits, long leastSigBits) {
+        int offset = find(mostSigBits, leastSigBits);
+        return offset < 0 ? PreferenceIndex.ABSENT : buffer.get(offset + 16);
+    }
+
+    /**
+     * Gets when the player with the UUID made up of <code>mostSigBits</code> and
+     * <code>leastSigBits</code> was last seen.
+     * 
+     * @return The time in milliseconds since the epoch, or <code>0</code> if they have no record
+     *         or the file is of version 1.
+     */
+    public long getLastSeen(long mostSigBits, long leastSigBits) {
+        int offset = find(mostSigBits, leastSigBits);
+        return offset < 0 ? 0 : lastSeenAt(offset);
+    }
+
+    /**
+     * Calls <code>consumer</code> with every record in UUID order. The file doesn't store names,
+     * so the names are empty.
+     */
+    public <E extends Exception> void forEach(PreferenceIndex.EntryConsumer<E> consumer) throws E {
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_BYTES + i * recordBytes;
+            consumer.accept(buffer.getLong(offset), buffer.getLong(offset + 8), "",
+                    buffer.get(offset + 16));
+        }
+    }
+
+    /** Calls <code>consumer</code> with every record and when its player was last seen. */
+    public <E extends Exception> void forEachTimed(PreferenceIndex.TimedEntryConsumer<E> consumer)
+            throws E {
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_BYTES + i * recordBytes;
+            consumer.accept(buffer.getLong(offset), buffer.getLong(offset + 8), "",
+                    buffer.get(offset + 16), lastSeenAt(offset));
+        }
+    }
+
+    /** Binary searches for a record, returning its offset or <code>-1</code> if not found. */
+    private int find(long mostSigBits, long leastSigBits) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int offset = HEADER_BYTES + middle * recordBytes;
+            int comparison = compare(buffer.getLong(offset), buffer.getLong(offset + 8),
+                    mostSigBits, leastSigBits);
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return offset;
+            }
+        }
+        return -1;
+    }
+
+    private long lastSeenAt(int offset) {
+        return recordBytes == RECORD_BYTES ? buffer.getLong(offset + 17) : 0;
+    }
+
+    /**
+     * Writes a new preference file containing the records of <code>base</code> with the entries
+     * of <code>changes</code> applied on top, then maps it.
+     * <p>
+     * Both inputs are walked in UUID order and merged, so this takes time proportional to the
+     * number of records without loading <code>base</code> onto the heap. The file is written to a
+     * temporary file first and then moved over <code>path</code>. The file is always written in
+     * the current version, and records without a last seen time count their player as seen now.
+     * 
+     * @param path The path of the file to write.
+     * @param base The previous file, or <code>null</code> if there isn't one.
+     * @param changes The entries that replace the records in <code>base</code>.
+     * @return The newly written file.
+     * @throws IOException
+     */
+    public static MappedPreferenceFile write(Path path, @Nullable MappedPreferenceFile base,
+            PreferenceIndex changes) throws IOException {
+        // sort the changes, which are usually few compared to the base
+        int changeCount = changes.size();
+        long[] changeMostSigBits = new long[changeCount];
+        long[] changeLeastSigBits = new long[changeCount];
+        byte[] changePreferences = new byte[changeCount];
+        long[] changeLastSeen = new long[changeCount];
+        int[] filled = {0};
+        changes.forEachTimed((mostSigBits, leastSigBits, name, preference, lastSeen) -> {
+            changeMostSigBits[filled[0]] = mostSigBits;
+            changeLeastSigBits[filled[0]] = leastSigBits;
+            changePreferences[filled[0]] = preference;
+            changeLastSeen[filled[0]] = lastSeen;
+            filled[0]++;
+        });
+        Integer[] order = new Integer[changeCount];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, (a, b) -> compare(changeMostSigBits[a], changeLeastSigBits[a],
+                changeMostSigBits[b], changeLeastSigBits[b]));
+
+        Path tempPath = AtomicFiles.tempPathFor(path);
+        try (var channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            var out = ByteBuffer.allocate(RECORD_BYTES * 4096);
+            out.position(HEADER_BYTES); // the header is filled in once the count is known
+            int written = 0;
+            long now = System.currentTimeMillis();
+            int baseIndex = 0;
+            int baseCount = base == null ? 0 : base.count;
+            int changeIndex = 0;
+            while (baseIndex < baseCount || changeIndex < changeCount) {
+                long mostSigBits;
+                long leastSigBits;
+                byte preference;
+                long lastSeen;
+                int comparison;
+                if (baseIndex >= baseCount) {
+                    comparison = 1;
+                } else if (changeIndex >= changeCount) {
+                    comparison = -1;
+                } else {
+                    int offset = HEADER_BYTES + baseIndex * base.recordBytes;
+                    int change = order[changeIndex];
+                    comparison = compare(base.buffer.getLong(offset),
+                            base.buffer.getLong(offset + 8), changeMostSigBits[change],
+                            changeLeastSigBits[change]);
+                }
+                if (comparison < 0) {
+                    int offset = HEADER_BYTES + baseIndex++ * base.recordBytes;
+                    mostSigBits = base.buffer.getLong(offset);
+                    leastSigBits = base.buffer.getLong(offset + 8);
+                    preference = base.buffer.get(offset + 16);
+                    lastSeen = base.lastSeenAt(offset);
+                } else {
+                    if (comparison == 0) {
+                        baseIndex++; // replaced by the change
+                    }
+                    int change = order[changeIndex++];
+                    mostSigBits = changeMostSigBits[change];
+                    leastSigBits = changeLeastSigBits[change];
+                    preference = changePreferences[change];
+                    lastSeen = changeLastSeen[change];
+                }
+                if (preference == PreferenceIndex.DEFAULT) {
+                    continue;
+                }
+                if (out.remaining() < RECORD_BYTES) {
+                    flush(channel, out);
+                }
+                out.putLong(mostSigBits).putLong(leastSigBits).put(preference)
+                        .putLong(lastSeen == 0 ? now : lastSeen);
+                written++;
+            }
+            flush(channel, out);
+            var header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(written).putInt(0).flip();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+            channel.force(true);
+        }
+        AtomicFiles.replace(tempPath, path);
+        return open(path);
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer out) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    private static int compare(long mostSigBitsA, long leastSigBitsA, long mostSigBitsB,
+            long leastSigBitsB) {
+        int comparison = Long.compare(mostSigBitsA, mostSigBitsB);
+        return comparison != 0 ? comparison : Long.compare(leastSigBitsA, leastSigBitsB);
+    }
+}
@@ -0,0 +1,390 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An append-only log of every keep inventory preference change, kept so that moderators can find
+ * out what a player's preference was at any point in time.
+ * <p>
+ * Each change is a fixed-width record of {@value #RECORD_BYTES} bytes: when it happened, the
+ * player's UUID, their old and new preference, and the index of the player's previous record.
+ * Records are appended in time order, and the time of every {@value #INDEX_INTERVAL}th record is
+ * kept in memory as a sparse index, so a time window is found with a binary search and a scan of
+ * at most one block before it. The previous-record links chain each player's changes together, so
+ * finding a player's preference at a time only reads the changes they made since then. The last
+ * record of each player is kept in memory.
+ * <p>
+ * Changes are only queued when they're made, without any I/O, and {@link #flush()} writes the
+ * queued batches in the background. Each batch is forced to the disk once written, so a crash can
+ * only lose or damage the batch being written. The log is read once by {@link #load()} to rebuild
+ * the in-memory index, and anything damaged at its end is cut off then.
+ */
+public class PreferenceHistory {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    /** The size of a record in bytes. */
+    static final int RECORD_BYTES = 32;
+    /** How many records there are between the entries of the sparse time index. */
+    static final int INDEX_INTERVAL = 256;
+    private static final int NO_RECORD = -1;
+
+    /** A recorded preference change. */
+    public record Change(long timeMillis, UUID id, byte oldPreference, byte newPreference) {}
+
+    private final Path path;
+    /**
+     * The batches of changes waiting to be written, oldest first. Their links to the players'
+     * previous records are only filled in when they're written.
+     */
+    private final ConcurrentLinkedQueue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+    /** The open log, or <code>null</code> if it hasn't been opened yet. */
+    private FileChannel channel;
+    /** The number of complete records in the log. */
+    private int recordCount = 0;
+    /** The time of every {@value #INDEX_INTERVAL}th record, starting with the first. */
+    private long[] blockTimes = new long[16];
+    /**
+     * The index of the last record of each player with a recorded change, kept without a
+     * per-player object since it has every player that ever changed their preference.
+     */
+    private final UuidLongMap lastRecords = new UuidLongMap();
+    /** The time of the last record, which later records never go before. */
+    private long lastTimeMillis = Long.MIN_VALUE;
+
+    /**
+     * Creates the history for a config file.
+     * 
+     * @param configPath The path of the config file. The history is stored next to it.
+     */
+    public PreferenceHistory(Path configPath) {
+        this.path = Config.siblingPath(configPath, ".history");
+    }
+
+    /** Gets the <code>Path</code> to the history file. */
+    public Path getPath() {
+        return path;
+    }
+
+    /** Gets the number of recorded changes. */
+    public synchronized int size() {
+        return recordCount;
+    }
+
+    /**
+     * Reads the log to rebuild the in-memory index, cutting off a partially written or damaged
+     * end. A record is damaged if it goes back in time, has an invalid preference, or links to a
+     * record that isn't before it.
+     * 
+     * @throws IOException
+     */
+    public synchronized void load() throws IOException {
+        recordCount = 0;
+        lastRecords.clear();
+        lastTimeMillis = Long.MIN_VALUE;
+        if (channel == null && Files.notExists(path)) {
+            return;
+        }
+        FileChannel log = open();
+        long size = log.size();
+        if (size % RECORD_BYTES != 0) {
+            LOGGER.warn("Cutting off a partially written record at the end of {}.", path);
+            size -= size % RECORD_BYTES;
+            log.truncate(size);
+        }
+        var buffer = ByteBuffer.allocate(RECORD_BYTES * INDEX_INTERVAL);
+        long position = 0;
+        while (position < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), size - position));
+            position += readFully(buffer, position);
+            buffer.flip();
+            for (int offset = 0; offset < buffer.limit(); offset += RECORD_BYTES) {
+                if (!isValid(buffer, offset)) {
+                    LOGGER.warn("Cutting off {} damaged records at the end of {}.",
+                            size / RECORD_BYTES - recordCount, path);
+                    log.truncate((long) recordCount * RECORD_BYTES);
+                    return;
+                }
+                index(buffer.getLong(offset), buffer.getLong(offset + 8),
+                        buffer.getLong(offset + 16));
+            }
+        }
+    }
+
+    private boolean isValid(ByteBuffer buffer, int offset) {
+        byte oldPreference = buffer.get(offset + 24);
+        byte newPreference = buffer.get(offset + 25);
+        int previous = buffer.getInt(offset + 28);
+        return buffer.getLong(offset) >= lastTimeMillis
+                && oldPreference >= PreferenceIndex.DEFAULT && oldPreference <= PreferenceIndex.DROP
+                && newPreference >= PreferenceIndex.DEFAULT && newPreference <= PreferenceIndex.DROP
+                && previous >= NO_RECORD && previous < recordCount;
+    }
+
+    /**
+     * Queues a preference change to be appended to the log by the next {@link #flush()}. This
+     * never blocks on I/O, and changes are appended in the order they were queued.
+     * 
+     * @param id The UUID of the player whose preference changed.
+     * @param oldPreference Their preference before the change.
+     * @param newPreference Their new preference.
+     */
+    public void append(UUID id, byte oldPreference, byte newPreference) {
+        var buffer = ByteBuffer.allocate(RECORD_BYTES);
+        putChange(buffer, System.currentTimeMillis(), id.getMostSignificantBits(),
+                id.getLeastSignificantBits(), oldPreference, newPreference);
+        pending.add(buffer.flip());
+    }
+
+    /**
+     * Queues the changes between two lists of preferences to be appended to the log as a single
+     * write, like {@link #append}.
+     * 
+     * @param previous The preferences before the changes.
+     * @param changes The players whose preference changed, with their new preference.
+     */
+    public void appendAll(KeepInvList previous, KeepInvList changes) {
+        if (changes.size() == 0) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        var buffer = ByteBuffer.allocate(changes.size() * RECORD_BYTES);
+        changes.forEachEntry((mostSigBits, leastSigBits, name, preference) -> {
+            byte oldPreference = previous.getPreference(mostSigBits, leastSigBits);
+            if (oldPreference != preference) {
+                putChange(buffer, now, mostSigBits, leastSigBits, oldPreference, preference);
+            }
+        });
+        if (buffer.flip().hasRemaining()) {
+            pending.add(buffer);
+        }
+    }
+
+    /**
+     * Appends the queued changes to the log and forces them to the disk. A batch that fails to be
+     * written stays queued for the next flush.
+     * 
+     * @throws IOException
+     */
+    public synchronized void flush() throws IOException {
+        ByteBuffer buffer;
+        while ((buffer = pending.peek()) != null) {
+            for (int offset = 0; offset < buffer.limit(); offset += RECORD_BYTES) {
+                // the index needs the records in time order, even if the clock goes back
+                long timeMillis = Math.max(buffer.getLong(offset), lastTimeMillis);
+                long mostSigBits = buffer.getLong(offset + 8);
+                long leastSigBits = buffer.getLong(offset + 16);
+                buffer.putLong(offset, timeMillis);
+                buffer.putInt(offset + 28, lastRecord(mostSigBits, leastSigBits));
+                index(timeMillis, mostSigBits, leastSigBits);
+            }
+            write(buffer.rewind());
+            pending.poll();
+        }
+    }
+
+    /**
+     * Gets a player's preference at a point in time.
+     * 
+     * @param id The UUID of the player.
+     * @param timeMillis The time, in milliseconds since the epoch.
+     * @return The player's preference at that time, or {@link PreferenceIndex#ABSENT} if none of
+     *         their changes were recorded, in which case it is the same as their current one.
+     * @throws IOException
+     */
+    public synchronized byte getPreferenceAt(UUID id, long timeMillis) throws IOException {
+        flush();
+        int record = lastRecord(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        if (record == NO_RECORD) {
+            return PreferenceIndex.ABSENT;
+        }
+        var buffer = ByteBuffer.allocate(RECORD_BYTES);
+        while (true) {
+            readRecord(buffer, record);
+            if (buffer.getLong(0) <= timeMillis) {
+                return buffer.get(25);
+            }
+            int previous = buffer.getInt(28);
+            if (previous == NO_RECORD) {
+                // the time is before their first change, which says what they had before it
+                return buffer.get(24);
+            }
+            record = previous;
+        }
+    }
+
+    /**
+     * Gets a player's most recent changes, newest first.
+     * 
+     * @param id The UUID of the player.
+     * @param limit The most changes to return.
+     * @return The changes.
+     * @throws IOException
+     */
+    public synchronized List<Change> getChanges(UUID id, int limit) throws IOException {
+        flush();
+        var changes = new ArrayList<Change>();
+        var buffer = ByteBuffer.allocate(RECORD_BYTES);
+        int record = lastRecord(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        while (record != NO_RECORD && changes.size() < limit) {
+            readRecord(buffer, record);
+            changes.add(toChange(buffer));
+            record = buffer.getInt(28);
+        }
+        return changes;
+    }
+
+    /**
+     * Gets the changes made within a window of time, oldest first.
+     * 
+     * @param fromMillis The start of the window, inclusive.
+     * @param toMillis The end of the window, inclusive.
+     * @param limit The most changes to return.
+     * @return The changes.
+     * @throws IOException
+     */
+    public synchronized List<Change> getChanges(long fromMillis, long toMillis, int limit)
+            throws IOException {
+        flush();
+        var changes = new ArrayList<Change>();
+        int blocks = (recordCount + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+        // the last block starting before the window, since the window may begin inside it
+        int block = 0;
+        int low = 0;
+        int high = blocks - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (blockTimes[mid] < fromMillis) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        var buffer = ByteBuffer.allocate(RECORD_BYTES * INDEX_INTERVAL);
+        int record = block * INDEX_INTERVAL;
+        while (record < recordCount && changes.size() < limit) {
+            int count = Math.min(INDEX_INTERVAL, recordCount - record);
+            buffer.clear().limit(count * RECORD_BYTES);
+            readFully(buffer, (long) record * RECORD_BYTES);
+            buffer.flip();
+            for (int i = 0; i < count && changes.size() < limit; i++) {
+                ByteBuffer slice = buffer.slice(i * RECORD_BYTES, RECORD_BYTES);
+                long timeMillis = slice.getLong(0);
+                if (timeMillis > toMillis) {
+                    return changes;
+                }
+                if (timeMillis >= fromMillis) {
+                    changes.add(toChange(slice));
+                }
+            }
+            record += count;
+        }
+        return changes;
+    }
+
+    /**
+     * Writes the queued changes and closes the log file. It is reopened the next time it is used.
+     * 
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        flush();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    /** Adds a change to <code>buffer</code> as a record whose link is filled in by flush. */
+    private static void putChange(ByteBuffer buffer, long timeMillis, long mostSigBits,
+            long leastSigBits, byte oldPreference, byte newPreference) {
+        buffer.putLong(timeMillis);
+        buffer.putLong(mostSigBits);
+        buffer.putLong(leastSigBits);
+        buffer.put(oldPreference);
+        buffer.put(newPreference);
+        buffer.putShort((short) 0);
+        buffer.putInt(NO_RECORD);
+    }
+
+    /** Gets the index of a player's last record, or {@link #NO_RECORD} if they have none. */
+    private int lastRecord(long mostSigBits, long leastSigBits) {
+        return (int) lastRecords.get(mostSigBits, leastSigBits, NO_RECORD);
+    }
+
+    private void index(long timeMillis, long mostSigBits, long leastSigBits) {
+        if (recordCount % INDEX_INTERVAL == 0) {
+            int block = recordCount / INDEX_INTERVAL;
+            if (block == blockTimes.length) {
+                blockTimes = Arrays.copyOf(blockTimes, block * 2);
+            }
+            blockTimes[block] = timeMillis;
+        }
+        lastRecords.put(mostSigBits, leastSigBits, recordCount);
+        lastTimeMillis = timeMillis;
+        recordCount++;
+    }
+
+    /** Writes the records last added to the index, which are in <code>buffer</code>. */
+    private void write(ByteBuffer buffer) throws IOException {
+        long position = (long) (recordCount - buffer.remaining() / RECORD_BYTES) * RECORD_BYTES;
+        try {
+            FileChannel log = open();
+            while (buffer.hasRemaining()) {
+                position += log.write(buffer, position);
+            }
+            log.force(false);
+        } catch (IOException e) {
+            // the index already has the records, so it is rebuilt from what was written
+            try {
+                load();
+            } catch (IOException reloadException) {
+                e.addSuppressed(reloadException);
+            }
+            throw e;
+        }
+    }
+
+    private void readRecord(ByteBuffer buffer, int record) throws IOException {
+        buffer.clear();
+        readFully(buffer, (long) record * RECORD_BYTES);
+    }
+
+    private int readFully(ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        FileChannel log = open();
+        while (buffer.hasRemaining()) {
+            int read = log.read(buffer, position + total);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + path);
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    private static Change toChange(ByteBuffer record) {
+        return new Change(record.getLong(0), new UUID(record.getLong(8), record.getLong(16)),
+                record.get(24), record.get(25));
+    }
+
+    private FileChannel open() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+}
@@ -0,0 +1,374 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.util.Arrays;
+import java.util.UUID;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A compact hash table from player UUIDs to keep inventory preferences.
+ * <p>
+ * Entries are keyed only by the two <code>long</code>s of the UUID and are stored in parallel
+ * arrays using open addressing with linear probing, so there are no per-entry objects besides the
+ * player's name. The preference is stored as one of {@link #DEFAULT}, {@link #KEEP}, or
+ * {@link #DROP}, along with when the player was last seen.
+ * <p>
+ * With compressed references, each slot of the table takes 29 bytes: the UUID, the last seen
+ * time, the state, and a reference to the name. The table is kept at most three quarters full. A
+ * <code>HashMap</code> of profiles instead needs a node, a <code>GameProfile</code> with its UUID
+ * and property map, and an <code>Optional</code> for every entry.
+ * <code>PreferenceIndexFootprintBenchmark</code> in src/jmh measures both.
+ */
+public class PreferenceIndex {
+    /** The player follows the "keepInventory" gamerule. */
+    public static final byte DEFAULT = 0;
+    /** The player keeps their inventory when they die. */
+    public static final byte KEEP = 1;
+    /** The player drops their inventory when they die. */
+    public static final byte DROP = 2;
+    /** Returned by {@link #lookup} for players without an entry. */
+    public static final byte ABSENT = -1;
+
+    /** Set in <code>states</code> for slots that hold an entry. Empty slots are <code>0</code>. */
+    private static final byte OCCUPIED = 0x4;
+    private static final byte PREFERENCE_MASK = 0x3;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mostSigBits;
+    private long[] leastSigBits;
+    private byte[] states;
+    private String[] names;
+    /** When each player was last seen, in milliseconds since the epoch. */
+    private long[] lastSeen;
+    /** The number of entries. */
+    private int size;
+    /** The capacity minus one. The capacity is always a power of two. */
+    private int mask;
+
+    public PreferenceIndex() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * Creates an index that can hold <code>expectedSize</code> entries without resizing.
+     * 
+     * @param expectedSize The expected number of entries.
+     */
+    public PreferenceIndex(int expectedSize) {
+        allocate(capacityFor(expectedSize));
+    }
+
+    private PreferenceIndex(PreferenceIndex other) {
+        this.mostSigBits = other.mostSigBits.clone();
+        this.leastSigBits = other.leastSigBits.clone();
+        this.states = other.states.clone();
+        this.names = other.names.clone();
+        this.lastSeen = other.lastSeen.clone();
+        this.size = other.size;
+        this.mask = other.mask;
+    }
+
+    /**
+     * Creates a copy of this index that can be changed without affecting this one.
+     * <p>
+     * This only clones the backing arrays, so it is much cheaper than re-inserting every entry.
+     */
+    public PreferenceIndex copy() {
+        return new PreferenceIndex(this);
+    }
+
+    /**
+     * Receives the entries of an index.
+     * 
+     * @param <E> The type of exception the consumer may throw.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer<E extends Exception> {
+        void accept(long mostSigBits, long leastSigBits, String name, byte preference) throws E;
+    }
+
+    /**
+     * Receives the entries of an index along with when each player was last seen.
+     * 
+     * @param <E> The type of exception the consumer may throw.
+     */
+    @FunctionalInterface
+    public interface TimedEntryConsumer<E extends Exception> {
+        void accept(long mostSigBits, long leastSigBits, String name, byte preference,
+                long lastSeen) throws E;
+    }
+
+    /** Gets the number of entries. */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the preference of a player.
+     * 
+     * @param id The UUID of the player.
+     * @return The player's preference, or {@link #DEFAULT} if they have no entry.
+     */
+    public byte get(UUID id) {
+        return get(id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
+    /**
+     * Gets the preference of the player with the UUID made up of <code>mostSigBits</code> and
+     * <code>leastSigBits</code>.
+     * 
+     * @return The player's preference, or {@link #DEFAULT} if they have no entry.
+     */
+    public byte get(long mostSigBits, long leastSigBits) {
+        int slot = find(mostSigBits, leastSigBits);
+        return slot < 0 ? DEFAULT : (byte) (states[slot] & PREFERENCE_MASK);
+    }
+
+    /**
+     * Gets the preference of the player with the UUID made up of <code>mostSigBits</code> and
+     * <code>leastSigBits</code>, distinguishing players without an entry from players on the
+     * default.
+     * 
+     * @return The player's preference, or {@link #ABSENT} if they have no entry.
+     */
+    public byte lookup(long mostSigBits, long leastSigBits) {
+        int slot = find(mostSigBits, leastSigBits);
+        return slot < 0 ? ABSENT : (byte) (states[slot] & PREFERENCE_MASK);
+    }
+
+    /** Returns whether the player has an entry. */
+    public boolean contains(UUID id) {
+        return find(id.getMostSignificantBits(), id.getLeastSignificantBits()) >= 0;
+    }
+
+    /**
+     * Gets the name that was last saved for a player.
+     * 
+     * @param id The UUID of the player.
+     * @return The player's name, or <code>null</code> if they have no entry.
+     */
+    @Nullable
+    public String getName(UUID id) {
+        int slot = find(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        return slot < 0 ? null : names[slot];
+    }
+
+    /**
+     * Gets when the player with the UUID made up of <code>mostSigBits</code> and
+     * <code>leastSigBits</code> was last seen.
+     * 
+     * @return The time in milliseconds since the epoch, or <code>0</code> if they have no entry.
+     */
+    public long getLastSeen(long mostSigBits, long leastSigBits) {
+        int slot = find(mostSigBits, leastSigBits);
+        return slot < 0 ? 0 : lastSeen[slot];
+    }
+
+    /**
+     * Adds or updates the entry for a player.
+     * <p>
+     * Entries are matched by UUID only, so an existing entry is updated with the new name when a
+     * player has been renamed. An existing entry keeps the time its player was last seen, and a
+     * new entry counts its player as seen now.
+     * 
+     * @param id The UUID of the player.
+     * @param name The player's current name.
+     * @param preference One of {@link #DEFAULT}, {@link #KEEP}, or {@link #DROP}.
+     * @return Whether an entry for the player already existed.
+     */
+    public boolean put(UUID id, String name, byte preference) {
+        return put(id.getMostSignificantBits(), id.getLeastSignificantBits(), name, preference);
+    }
+
+    /** @see #put(UUID, String, byte) */
+    public boolean put(long mostSigBits, long leastSigBits, String name, byte preference) {
+        return put(mostSigBits, leastSigBits, name, preference, -1);
+    }
+
+    /**
+     * Adds or updates the entry for a player, along with when they were last seen.
+     * 
+     * @param id The UUID of the player.
+     * @param name The player's current name.
+     * @param preference One of {@link #DEFAULT}, {@link #KEEP}, or {@link #DROP}.
+     * @param lastSeen When the player was last seen, in milliseconds since the epoch.
+     * @return Whether an entry for the player already existed.
+     */
+    public boolean put(UUID id, String name, byte preference, long lastSeen) {
+        return put(id.getMostSignificantBits(), id.getLeastSignificantBits(), name, preference,
+                lastSeen);
+    }
+
+    /**
+     * Adds or updates the entry for the player with the UUID made up of <code>mostSigBits</code>
+     * and <code>leastSigBits</code>.
+     * 
+     * @param lastSeen When the player was last seen, or <code>-1</code> to keep the time of an
+     *        existing entry and count a new entry's player as seen now.
+     * @see #put(UUID, String, byte, long)
+     */
+    public boolean put(long mostSigBits, long leastSigBits, String name, byte preference,
+            long lastSeen) {
+        if (preference < DEFAULT || preference > DROP) {
+            throw new IllegalArgumentException("Invalid preference: " + preference);
+        }
+        int slot = find(mostSigBits, leastSigBits);
+        if (slot >= 0) {
+            states[slot] = (byte) (OCCUPIED | preference);
+            names[slot] = name;
+            if (lastSeen >= 0) {
+                this.lastSeen[slot] = lastSeen;
+            }
+            return true;
+        }
+        if ((size + 1) * 4L > (mask + 1) * 3L) {
+            rehash((mask + 1) * 2);
+        }
+        insert(mostSigBits, leastSigBits, name, preference,
+                lastSeen >= 0 ? lastSeen : System.currentTimeMillis());
+        size++;
+        return false;
+    }
+
+    /**
+     * Removes the entry for a player.
+     * 
+     * @param id The UUID of the player.
+     * @return Whether there was an entry to remove.
+     */
+    public boolean remove(UUID id) {
+        int slot = find(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        if (slot < 0) {
+            return false;
+        }
+        // Shift later entries of the probe sequence back so lookups never hit a gap early.
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (states[next] != 0) {
+            int home = slotFor(mostSigBits[next], leastSigBits[next]);
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                mostSigBits[gap] = mostSigBits[next];
+                leastSigBits[gap] = leastSigBits[next];
+                states[gap] = states[next];
+                names[gap] = names[next];
+                lastSeen[gap] = lastSeen[next];
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        states[gap] = 0;
+        names[gap] = null;
+        size--;
+        return true;
+    }
+
+    /** Removes every entry. */
+    public void clear() {
+        Arrays.fill(states, (byte) 0);
+        Arrays.fill(names, null);
+        size = 0;
+    }
+
+    /** Calls <code>consumer</code> with every entry, in no particular order. */
+    public <E extends Exception> void forEach(EntryConsumer<E> consumer) throws E {
+        for (int slot = 0; slot <= mask; slot++) {
+            if (states[slot] != 0) {
+                consumer.accept(mostSigBits[slot], leastSigBits[slot], names[slot],
+                        (byte) (states[slot] & PREFERENCE_MASK));
+            }
+        }
+    }
+
+    /** Calls <code>consumer</code> with every entry and when its player was last seen. */
+    public <E extends Exception> void forEachTimed(TimedEntryConsumer<E> consumer) throws E {
+        for (int slot = 0; slot <= mask; slot++) {
+            if (states[slot] != 0) {
+                consumer.accept(mostSigBits[slot], leastSigBits[slot], names[slot],
+                        (byte) (states[slot] & PREFERENCE_MASK), lastSeen[slot]);
+            }
+        }
+    }
+
+    /**
+     * Estimates the number of bytes used by this index, including the names of the players but
+     * not strings shared with other objects.
+     */
+    public long estimateMemoryBytes() {
+        long tableBytes = (mask + 1L) * (Long.BYTES * 3 + 1 + 4) + 5 * 16;
+        long nameBytes = 0;
+        for (int slot = 0; slot <= mask; slot++) {
+            if (names[slot] != null) {
+                nameBytes += 40 + names[slot].length();
+            }
+        }
+        return tableBytes + nameBytes;
+    }
+
+    private int find(long mostSigBits, long leastSigBits) {
+        int slot = slotFor(mostSigBits, leastSigBits);
+        while (states[slot] != 0) {
+            if (this.mostSigBits[slot] == mostSigBits && this.leastSigBits[slot] == leastSigBits) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void insert(long mostSigBits, long leastSigBits, String name, byte preference,
+            long lastSeen) {
+        int slot = slotFor(mostSigBits, leastSigBits);
+        while (states[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        this.mostSigBits[slot] = mostSigBits;
+        this.leastSigBits[slot] = leastSigBits;
+        this.states[slot] = (byte) (OCCUPIED | preference);
+        this.names[slot] = name;
+        this.lastSeen[slot] = lastSeen;
+    }
+
+    private int slotFor(long mostSigBits, long leastSigBits) {
+        return hash(mostSigBits, leastSigBits) & mask;
+    }
+
+    /** Hashes a UUID for a table with open addressing, like this one or {@link UuidLongMap}. */
+    static int hash(long mostSigBits, long leastSigBits) {
+        // finalizer from MurmurHash3, since the bits of version 3 UUIDs aren't evenly distributed
+        long hash = mostSigBits * 31 + leastSigBits;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldMostSigBits = mostSigBits;
+        long[] oldLeastSigBits = leastSigBits;
+        byte[] oldStates = states;
+        String[] oldNames = names;
+        long[] oldLastSeen = lastSeen;
+        allocate(capacity);
+        for (int slot = 0; slot < oldStates.length; slot++) {
+            if (oldStates[slot] != 0) {
+                insert(oldMostSigBits[slot], oldLeastSigBits[slot], oldNames[slot],
+                        (byte) (oldStates[slot] & PREFERENCE_MASK), oldLastSeen[slot]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mostSigBits = new long[capacity];
+        leastSigBits = new long[capacity];
+        states = new byte[capacity];
+        names = new String[capacity];
+        lastSeen = new long[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        long needed = Math.max(MIN_CAPACITY, expectedSize * 4L / 3 + 1);
+        return (int) Math.min(1 << 30, Long.highestOneBit(needed - 1) << 1);
+    }
+}
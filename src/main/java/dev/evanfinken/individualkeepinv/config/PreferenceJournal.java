@@ -0,0 +1,254 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.mojang.authlib.GameProfile;
+
+/**
+ * An append-only log of keep inventory preference changes that haven't been folded into the
+ * config file yet.
+ * <p>
+ * Each change is appended as a single line containing the same JSON object that is saved for the
+ * player in the config's "players" array. {@link #append} only writes the line, which is enough
+ * for it to survive the server process crashing. Forcing it to disk is left to
+ * {@link #scheduleSync}, which runs a single force on the writer thread for every change appended
+ * before it starts, so the thread making the change never waits for the disk. A power loss or an
+ * operating system crash can therefore lose the changes made in the moment before it, and can only
+ * ever leave the last line partially written. That line is skipped when replaying, even if it ends
+ * in the middle of a character.
+ * <p>
+ * Compacting the journal happens in two steps. {@link #beginCompaction()} moves the journal aside
+ * so that new changes go to a fresh file, and once the config has been saved,
+ * {@link #finishCompaction()} deletes the moved file. If the server crashes in between, both files
+ * are replayed on the next load, which is harmless because replaying a change is idempotent.
+ */
+public class PreferenceJournal {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    private static final Gson GSON = new Gson();
+
+    /** The journal that new changes are appended to. */
+    private final Path path;
+    /** Where the journal is moved while its changes are being saved to the config file. */
+    private final Path compactingPath;
+    /** The open journal, or <code>null</code> if it hasn't been opened yet. */
+    private FileChannel channel;
+    /** The size of the journal in bytes. */
+    private long size = 0;
+    /** How many bytes of the journal are known to be on disk. */
+    private long syncedSize = 0;
+    /** Whether a force has been scheduled that hasn't started yet. */
+    private final AtomicBoolean syncScheduled = new AtomicBoolean();
+
+    /**
+     * Creates the journal for a config file.
+     * 
+     * @param configPath The path of the config file. The journal is stored next to it.
+     */
+    public PreferenceJournal(Path configPath) {
+        this.path = Config.siblingPath(configPath, ".journal");
+        this.compactingPath = Config.siblingPath(configPath, ".journal.compacting");
+    }
+
+    /** Gets the <code>Path</code> to the journal file. */
+    public Path getPath() {
+        return path;
+    }
+
+    /** Gets the size of the journal in bytes. */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Appends a preference change to the journal, returning once it has been written but before it
+     * has been forced to disk.
+     * 
+     * @param profile The profile of the player whose preference changed.
+     * @param keepInventory The player's new preference.
+     * @throws IOException
+     */
+    public synchronized void append(GameProfile profile, Optional<Boolean> keepInventory)
+            throws IOException {
+        String line = GSON.toJson(KeepInvList.entryToJson(profile, keepInventory)) + "\n";
+        var buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+        FileChannel channel = open();
+        while (buffer.hasRemaining()) {
+            size += channel.write(buffer);
+        }
+    }
+
+    /**
+     * Forces the changes appended so far to disk on <code>executor</code>, unless a force that
+     * will include them is already waiting to run.
+     * 
+     * @param executor The executor to force the journal on, usually the writer thread.
+     */
+    public void scheduleSync(Executor executor) {
+        if (syncScheduled.compareAndSet(false, true)) {
+            executor.execute(this::sync);
+        }
+    }
+
+    /**
+     * Forces every change appended so far to disk, without holding the journal's lock while
+     * waiting for it so that changes can still be appended.
+     */
+    public void sync() {
+        syncScheduled.set(false);
+        FileChannel forced;
+        long target;
+        synchronized (this) {
+            if (channel == null || syncedSize >= size) {
+                return;
+            }
+            forced = channel;
+            target = size;
+        }
+        try {
+            forced.force(false);
+            synchronized (this) {
+                if (channel == forced) {
+                    syncedSize = Math.max(syncedSize, target);
+                }
+            }
+        } catch (ClosedChannelException e) {
+            // closed by a compaction, which saves these changes to the config file instead
+        } catch (IOException e) {
+            LOGGER.warn("Failed to force the journal to disk.", e);
+        }
+    }
+
+    /**
+     * Moves the current journal aside so the changes in it can be saved to the config file.
+     * <p>
+     * This must be called while the state being saved can't change, so that every change is
+     * either in the saved state or in the new journal.
+     * 
+     * @throws IOException
+     */
+    public synchronized void beginCompaction() throws IOException {
+        close();
+        size = 0;
+        syncedSize = 0;
+        if (Files.notExists(path)) {
+            return;
+        }
+        if (Files.exists(compactingPath)) {
+            // an earlier compaction failed, so keep its changes in front of the newer ones
+            try (var target = FileChannel.open(compactingPath, StandardOpenOption.APPEND);
+                    var source = FileChannel.open(path, StandardOpenOption.READ)) {
+                source.transferTo(0, source.size(), target);
+            }
+            Files.delete(path);
+        } else {
+            Files.move(path, compactingPath);
+        }
+    }
+
+    /**
+     * Deletes the journal that was moved aside by {@link #beginCompaction()}.
+     * <p>
+     * This must only be called after the config file containing its changes has been saved.
+     * 
+     * @throws IOException
+     */
+    public synchronized void finishCompaction() throws IOException {
+        Files.deleteIfExists(compactingPath);
+    }
+
+    /**
+     * Applies every change in the journal to <code>keepInvList</code>, oldest first.
+     * 
+     * @param keepInvList The list to apply the changes to.
+     * @return The number of changes that were applied.
+     * @throws IOException
+     */
+    public synchronized int replay(KeepInvList keepInvList) throws IOException {
+        close();
+        size = Files.exists(path) ? Files.size(path) : 0;
+        syncedSize = size;
+        return replayFile(compactingPath, keepInvList) + replayFile(path, keepInvList);
+    }
+
+    /** Closes the journal file. It is reopened the next time a change is appended. */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private int replayFile(Path file, KeepInvList keepInvList) throws IOException {
+        if (Files.notExists(file)) {
+            return 0;
+        }
+        byte[] bytes = Files.readAllBytes(file);
+        int end = bytes.length;
+        while (end > 0 && bytes[end - 1] != '\n') {
+            end--;
+        }
+        if (end < bytes.length) {
+            LOGGER.warn("Skipping the partially written last line of {}.", file);
+        }
+        // decoding replaces malformed bytes, so a damaged line fails to parse on its own
+        String[] lines = new String(bytes, 0, end, StandardCharsets.UTF_8).split("\n");
+        int count = 0;
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                JsonElement element = JsonParser.parseString(line);
+                if (element.isJsonObject() && keepInvList.putFromJson(element.getAsJsonObject())) {
+                    count++;
+                }
+            } catch (JsonParseException | IllegalStateException e) {
+                LOGGER.warn("Skipping unreadable line {} of {}.", i + 1, file, e);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Opens the journal for appending, first cutting off a partially written last line left behind
+     * by a crash so that the next change doesn't get appended to it.
+     */
+    private FileChannel open() throws IOException {
+        if (channel != null) {
+            return channel;
+        }
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long end = channel.size();
+        var oneByte = ByteBuffer.allocate(1);
+        while (end > 0) {
+            oneByte.clear();
+            channel.read(oneByte, end - 1);
+            if (oneByte.get(0) == '\n') {
+                break;
+            }
+            end--;
+        }
+        channel.truncate(end);
+        channel.position(end);
+        size = end;
+        syncedSize = end;
+        return channel;
+    }
+}
@@ -0,0 +1,23 @@
+package dev.evanfinken.individualkeepinv.config;
+
+/**
+ * Notified by a {@link Config} after its preferences change.
+ * <p>
+ * Listeners are called on whichever thread made the change, after the new state was published
+ * and outside of the config's locks, so they must be thread-safe and shouldn't block.
+ */
+public interface PreferenceListener {
+    /**
+     * Called after the preferences of some players changed.
+     * 
+     * @param changes The players whose preference changed and their new preferences. Must not be
+     *        modified.
+     */
+    void onPreferencesChanged(KeepInvList changes);
+
+    /**
+     * Called after any player's preference may have changed, for example because the config was
+     * reloaded, every preference was reset, or the mod was enabled or disabled.
+     */
+    void onAllPreferencesChanged();
+}
@@ -0,0 +1,165 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.UnaryOperator;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Where the keep inventory preferences of a {@link Config} are stored.
+ * <p>
+ * A storage is either eager or on demand. Eager storages keep every player's preference in the
+ * config's {@link KeepInvList} and are written by the config's background save. On-demand
+ * storages only keep the preferences of online players in memory: a player's preference is loaded
+ * by {@link #load} when they join and dropped from the list when they leave, and each change is
+ * written on its own by {@link #write}.
+ * <p>
+ * A storage is selected by the "storage" property of the config file using its
+ * {@link #getName() name}.
+ */
+public interface PreferenceStorage {
+    /** Gets the name of this storage, as used in the config file. */
+    String getName();
+
+    /** Returns whether the preferences are saved in the "players" array of the config file. */
+    default boolean storesPlayersInConfig() {
+        return false;
+    }
+
+    /** Returns whether only the preferences of online players are kept in memory. */
+    default boolean isOnDemand() {
+        return false;
+    }
+
+    /**
+     * Opens this storage when the config is loaded.
+     * <p>
+     * This may be called again on the same storage when the config is reloaded.
+     * 
+     * @param configPlayers The players found in the "players" array of the config file. Storages
+     *        that don't store players in the config file take them over.
+     * @return The list to publish in the config's state. On-demand storages return an empty list.
+     * @throws IOException
+     */
+    KeepInvList open(KeepInvList configPlayers) throws IOException;
+
+    /**
+     * Saves the preferences in <code>snapshot</code>. This is called from the config's background
+     * save, before the config file is written.
+     * 
+     * @param snapshot The preferences being saved.
+     * @return A function that makes the config's current list use what was saved, or
+     *         <code>null</code> if the current list doesn't need to change.
+     * @throws IOException
+     */
+    @Nullable
+    default UnaryOperator<KeepInvList> save(KeepInvList snapshot) throws IOException {
+        return null;
+    }
+
+    /**
+     * Loads the preference of a single player in the background. Only used by on-demand storages.
+     * 
+     * @param id The UUID of the player.
+     * @return A future of the player's preference, or of {@link PreferenceIndex#ABSENT} if they
+     *         have never set one.
+     */
+    default CompletableFuture<Byte> load(UUID id) {
+        return CompletableFuture.completedFuture(PreferenceIndex.ABSENT);
+    }
+
+    /**
+     * Loads every stored preference, for example to export them. Eager storages already have
+     * every preference in <code>resident</code>.
+     * 
+     * @param resident The preferences kept in memory.
+     * @return A list containing every stored preference.
+     * @throws IOException
+     */
+    default KeepInvList loadAll(KeepInvList resident) throws IOException {
+        return resident;
+    }
+
+    /**
+     * Writes a single player's preference in the background. Only used by on-demand storages.
+     * <p>
+     * Writes are applied in the order they were made, and this never blocks on I/O.
+     * 
+     * @param id The UUID of the player.
+     * @param name The player's current name.
+     * @param preference The player's new preference.
+     */
+    default void write(UUID id, String name, byte preference) {}
+
+    /**
+     * Writes every entry of <code>changes</code> in the background as a single batch. Only used
+     * by on-demand storages.
+     * 
+     * @param changes The players and their new preferences. Must not be modified afterwards.
+     */
+    default void writeAll(KeepInvList changes) {
+        changes.forEachEntry((mostSigBits, leastSigBits, name, preference) -> write(
+                new UUID(mostSigBits, leastSigBits), name, preference));
+    }
+
+    /**
+     * Records in the background when a player was last seen. Only used by on-demand storages;
+     * eager storages save it with the rest of the entry.
+     * 
+     * @param id The UUID of the player.
+     * @param lastSeen When the player was seen, in milliseconds since the epoch.
+     */
+    default void touch(UUID id, long lastSeen) {}
+
+    /**
+     * Removes the preferences of the players that weren't seen recently enough, blocking until
+     * they have been removed. Only used by on-demand storages; eager storages are compacted by
+     * the config's background save once the players are evicted from memory.
+     * 
+     * @param cutoff The time in milliseconds since the epoch before which players are removed.
+     * @param maxPlayers The most players to keep, removing the players seen longest ago first, or
+     *        <code>0</code> for no limit.
+     * @return The number of players that were removed.
+     * @throws IOException
+     */
+    default int evict(long cutoff, int maxPlayers) throws IOException {
+        return 0;
+    }
+
+    /**
+     * Removes every stored preference in the background. Only used by on-demand storages; eager
+     * storages are cleared by saving an empty list.
+     */
+    default void clear() {}
+
+    /** Blocks until every write made so far has been applied. */
+    default void flush() {}
+
+    /** Flushes and releases this storage once another storage has replaced it. */
+    default void close() {}
+
+    /**
+     * Creates the storage with the given name.
+     * 
+     * @param name The name from the config file.
+     * @param configPath The path of the config file, which other files are stored next to.
+     * @return The storage.
+     * @throws IOException If there is no storage with that name.
+     */
+    static PreferenceStorage create(String name, Path configPath) throws IOException {
+        switch (name) {
+            case JsonPreferenceStorage.NAME:
+                return new JsonPreferenceStorage();
+            case BinaryPreferenceStorage.NAME:
+                return new BinaryPreferenceStorage(Config.siblingPath(configPath, ".bin"));
+            case SqlPreferenceStorage.NAME:
+                return new SqlPreferenceStorage(Config.siblingPath(configPath, ""));
+            case ShardedPreferenceStorage.NAME:
+                return new ShardedPreferenceStorage(Config.siblingPath(configPath, ".players"));
+            default:
+                throw new IOException("Unknown storage: " + name);
+        }
+    }
+}
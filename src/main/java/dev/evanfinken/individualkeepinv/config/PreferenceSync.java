@@ -0,0 +1,476 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Shares preference changes between several servers through a directory they can all reach, such
+ * as servers behind the same proxy on one machine.
+ * <p>
+ * Every change made on a server is appended as a delta to a log in the shared directory, as a
+ * single line with the same JSON object as a journal entry plus when it was made and by which
+ * server. Each server follows the log from where it last stopped reading, woken up by a
+ * {@link ConfigWatcher} on the log and polling every {@value #POLL_SECONDS} seconds in case the
+ * file system doesn't report changes, and applies the new deltas to its config as a batch. The
+ * whole log is only read when syncing starts.
+ * <p>
+ * Servers take an exclusive lock on a lock file next to the log to append to it, and a shared
+ * lock to read it. When the log grows past {@value #COMPACT_BYTES} bytes, the server appending
+ * to it replaces it with only the latest delta of each player. Readers notice the new file and
+ * read it again from the start, which is harmless because applying a delta twice changes nothing.
+ * <p>
+ * Conflicting changes are resolved by the last write: a delta is only applied if it was made
+ * after the latest change this server knows of for the player, with ties broken by the server's
+ * ID so that every server picks the same winner. The ID is kept in a file next to the config, so
+ * that a restarted server still recognizes its own deltas. Before the whole log is read, the
+ * latest change of each player is filled in from this server's own deltas and its
+ * {@link PreferenceHistory}, so that deltas this server already applied or overrode before it
+ * restarted don't replace what it has now. A copied world must have its ID file deleted, or the
+ * copy ignores the deltas of the original.
+ */
+public class PreferenceSync implements Closeable {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    /** The name of the log of deltas in the shared directory. */
+    public static final String LOG_NAME = "preferences.log";
+    /** The name of the file locked while reading or appending to the log. */
+    public static final String LOCK_NAME = "preferences.lock";
+    /** The size in bytes at which the log is compacted. */
+    private static final long COMPACT_BYTES = 4 * 1024 * 1024;
+    /** How often the log is read even if no change was reported. */
+    private static final long POLL_SECONDS = 5;
+    /** The extension of the file next to the config that keeps the server's ID. */
+    private static final String ID_EXTENSION = ".sync-id";
+    private static final Gson GSON = new Gson();
+
+    /** A change of a player's preference. */
+    private static final class Delta {
+        final UUID id;
+        final String name;
+        final byte preference;
+        final long updatedAt;
+        final String origin;
+
+        Delta(UUID id, String name, byte preference, long updatedAt, String origin) {
+            this.id = id;
+            this.name = name;
+            this.preference = preference;
+            this.updatedAt = updatedAt;
+            this.origin = origin;
+        }
+
+        /** Returns whether this change wins over <code>other</code>. */
+        boolean isNewerThan(@Nullable Delta other) {
+            if (other == null) {
+                return true;
+            }
+            if (updatedAt != other.updatedAt) {
+                return updatedAt > other.updatedAt;
+            }
+            return origin.compareTo(other.origin) > 0;
+        }
+    }
+
+    private final Config config;
+    private final Path directory;
+    private final Path logPath;
+    private final Path lockPath;
+    /** Called with the changes applied from other servers, on the sync thread. */
+    private final Consumer<KeepInvList> onChange;
+    /** Identifies this server's deltas in the log, across restarts. */
+    private final String serverId;
+    /**
+     * When the latest change this server knows of for each player was made, whether it was made
+     * here or read from the log. This has an entry for every player changed since syncing
+     * started, so only the time is kept, without a per-player object. Guarded by the config's
+     * lock along with <code>latestOrigins</code> and <code>origins</code>, so that a delta from
+     * the log can't be applied between a local change and its recording here.
+     */
+    private final UuidLongMap latestTimes = new UuidLongMap();
+    /** The index in <code>origins</code> of the server that made each player's latest change. */
+    private final UuidLongMap latestOrigins = new UuidLongMap();
+    /** The IDs of the servers that made the latest changes, which are only a few. */
+    private final List<String> origins = new ArrayList<>();
+    /** Appends and reads the log, so that only one thread touches it. */
+    private final ScheduledExecutorService executor;
+    private final ConfigWatcher watcher;
+    /** How far the log has been read. Only used on the sync thread. */
+    private long readOffset = 0;
+    /** The identity of the log file that was read, to notice when it is replaced. */
+    @Nullable
+    private Object readFileKey;
+    /** Whether the latest changes were filled in from this server's history. */
+    private boolean seeded = false;
+
+    /**
+     * Starts syncing a config's preferences through a shared directory, first applying every
+     * change already in its log.
+     * 
+     * @param config The config to sync.
+     * @param directory The shared directory, which is created if it doesn't exist.
+     * @param onChange Called on the sync thread with the changes applied from other servers.
+     * @throws IOException If the directory couldn't be created or watched, or the server's ID
+     *         couldn't be saved.
+     */
+    public PreferenceSync(Config config, Path directory, Consumer<KeepInvList> onChange)
+            throws IOException {
+        this.config = config;
+        this.serverId = loadServerId(Config.siblingPath(config.getPath(), ID_EXTENSION));
+        this.directory = directory;
+        this.logPath = directory.resolve(LOG_NAME);
+        this.lockPath = directory.resolve(LOCK_NAME);
+        this.onChange = onChange;
+        Files.createDirectories(directory);
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "Individual KeepInv Sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::poll, 0, POLL_SECONDS, TimeUnit.SECONDS);
+        this.watcher = new ConfigWatcher(logPath, () -> executor.execute(this::poll));
+    }
+
+    /** Reads the server's ID from <code>path</code>, creating it if there isn't a valid one. */
+    private static String loadServerId(Path path) throws IOException {
+        try {
+            return UUID.fromString(Files.readString(path, StandardCharsets.UTF_8).strip())
+                    .toString();
+        } catch (NoSuchFileException e) {
+            // first sync of this config
+        } catch (IOException | IllegalArgumentException e) {
+            LOGGER.warn("Replacing the unreadable server ID in {}.", path, e);
+        }
+        String id = UUID.randomUUID().toString();
+        AtomicFiles.writeString(path, id);
+        return id;
+    }
+
+    /** Gets the shared directory. */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Records changes made on this server and appends them to the log in the background.
+     * <p>
+     * This must be called while holding the config's lock, right after the changes were
+     * published, so that it is ordered with the changes applied from the log.
+     * 
+     * @param changes The players and their new preferences.
+     */
+    void publish(KeepInvList changes) {
+        long now = System.currentTimeMillis();
+        List<Delta> deltas = new ArrayList<>(changes.size());
+        changes.forEachEntry((mostSigBits, leastSigBits, name, preference) -> {
+            var delta = new Delta(new UUID(mostSigBits, leastSigBits), name, preference, now,
+                    serverId);
+            setLatest(delta);
+            deltas.add(delta);
+        });
+        executor.execute(() -> {
+            try {
+                append(deltas);
+            } catch (IOException e) {
+                LOGGER.warn("Failed to share {} preference changes with the other servers.",
+                        deltas.size(), e);
+            }
+        });
+    }
+
+    /** @see #publish(KeepInvList) */
+    void publish(UUID id, String name, byte preference) {
+        var delta = new Delta(id, name, preference, System.currentTimeMillis(), serverId);
+        setLatest(delta);
+        executor.execute(() -> {
+            try {
+                append(List.of(delta));
+            } catch (IOException e) {
+                LOGGER.warn("Failed to share {}'s preference change with the other servers.",
+                        name, e);
+            }
+        });
+    }
+
+    private void append(List<Delta> deltas) throws IOException {
+        var builder = new StringBuilder();
+        for (Delta delta : deltas) {
+            builder.append(toJson(delta)).append('\n');
+        }
+        var buffer = ByteBuffer.wrap(builder.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel lockChannel = openLock(); FileLock lock = lockChannel.lock()) {
+            long size;
+            try (FileChannel channel = FileChannel.open(logPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                size = channel.size();
+            }
+            if (size >= COMPACT_BYTES) {
+                compact();
+            }
+        }
+    }
+
+    /** Replaces the log with the latest delta of each player. Must hold the exclusive lock. */
+    private void compact() throws IOException {
+        Map<UUID, Delta> compacted = new HashMap<>();
+        byte[] bytes = Files.readAllBytes(logPath);
+        for (Delta delta : parse(bytes, bytes.length, logPath)) {
+            if (delta.isNewerThan(compacted.get(delta.id))) {
+                compacted.put(delta.id, delta);
+            }
+        }
+        AtomicFiles.write(logPath, writer -> {
+            for (Delta delta : compacted.values()) {
+                writer.write(toJson(delta));
+                writer.write('\n');
+            }
+        });
+        LOGGER.info("Compacted the shared preference log to {} players.", compacted.size());
+    }
+
+    /** Reads the deltas appended to the log since it was last read and applies them. */
+    private void poll() {
+        try {
+            List<Delta> deltas = readNewDeltas();
+            if (!deltas.isEmpty()) {
+                apply(deltas);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Failed to read the shared preference log.", e);
+        }
+    }
+
+    private List<Delta> readNewDeltas() throws IOException {
+        try (FileChannel lockChannel = openLock();
+                FileLock lock = lockChannel.lock(0, Long.MAX_VALUE, true);
+                FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ)) {
+            Object fileKey = Files.readAttributes(logPath, BasicFileAttributes.class).fileKey();
+            long size = channel.size();
+            if (!Objects.equals(fileKey, readFileKey) || size < readOffset) {
+                // the log was compacted or replaced
+                readFileKey = fileKey;
+                readOffset = 0;
+            }
+            if (size == readOffset) {
+                return List.of();
+            }
+            var buffer = ByteBuffer.allocate(Math.toIntExact(size - readOffset));
+            while (buffer.hasRemaining()
+                    && channel.read(buffer, readOffset + buffer.position()) >= 0) {
+                // keep reading until the end that was seen
+            }
+            byte[] bytes = buffer.array();
+            int end = bytes.length;
+            while (end > 0 && bytes[end - 1] != '\n') {
+                end--;
+            }
+            if (end == 0) {
+                return List.of();
+            }
+            List<Delta> deltas = parse(bytes, end, logPath);
+            readOffset += end;
+            return deltas;
+        } catch (NoSuchFileException e) {
+            return List.of();
+        }
+    }
+
+    /**
+     * Applies the deltas from other servers that are newer than what this server knows, as a
+     * single batch.
+     */
+    private void apply(List<Delta> deltas) {
+        List<Delta> known = seeded ? List.of() : readHistory(deltas);
+        seeded = true;
+        var changes = new KeepInvList();
+        synchronized (config) {
+            // this server's own deltas are already in the config, but are only known as the
+            // latest if they were made since syncing started
+            for (Delta delta : known) {
+                remember(delta);
+            }
+            for (Delta delta : deltas) {
+                if (delta.origin.equals(serverId)) {
+                    remember(delta);
+                }
+            }
+            for (Delta delta : deltas) {
+                if (delta.origin.equals(serverId) || !isLatest(delta)) {
+                    continue;
+                }
+                setLatest(delta);
+                changes.getIndex().put(delta.id, delta.name, delta.preference);
+            }
+            if (changes.size() > 0) {
+                config.applyChanges(changes, false);
+            }
+        }
+        if (changes.size() > 0) {
+            config.firePreferencesChanged(changes);
+            onChange.accept(changes);
+        }
+    }
+
+    /** Records <code>delta</code> as the latest change of its player if it is. */
+    private void remember(Delta delta) {
+        if (isLatest(delta)) {
+            setLatest(delta);
+        }
+    }
+
+    /**
+     * Returns whether <code>delta</code> wins over the latest change known for its player, the
+     * same way {@link Delta#isNewerThan} does.
+     */
+    private boolean isLatest(Delta delta) {
+        long mostSigBits = delta.id.getMostSignificantBits();
+        long leastSigBits = delta.id.getLeastSignificantBits();
+        long updatedAt = latestTimes.get(mostSigBits, leastSigBits, Long.MIN_VALUE);
+        if (delta.updatedAt != updatedAt) {
+            return delta.updatedAt > updatedAt;
+        }
+        String origin = origins.get((int) latestOrigins.get(mostSigBits, leastSigBits, 0));
+        return delta.origin.compareTo(origin) > 0;
+    }
+
+    /** Records <code>delta</code> as the latest change of its player. */
+    private void setLatest(Delta delta) {
+        long mostSigBits = delta.id.getMostSignificantBits();
+        long leastSigBits = delta.id.getLeastSignificantBits();
+        int origin = origins.indexOf(delta.origin);
+        if (origin < 0) {
+            origin = origins.size();
+            origins.add(delta.origin);
+        }
+        latestTimes.put(mostSigBits, leastSigBits, delta.updatedAt);
+        latestOrigins.put(mostSigBits, leastSigBits, origin);
+    }
+
+    /**
+     * Reads the last change recorded in this server's history for each player with a delta from
+     * another server, including the changes made while syncing was stopped.
+     * 
+     * @param deltas The deltas read from the log.
+     * @return The last changes, as this server's deltas.
+     */
+    private List<Delta> readHistory(List<Delta> deltas) {
+        PreferenceHistory history = config.getHistory();
+        Map<UUID, Delta> known = new HashMap<>();
+        try {
+            for (Delta delta : deltas) {
+                if (delta.origin.equals(serverId) || known.containsKey(delta.id)) {
+                    continue;
+                }
+                List<PreferenceHistory.Change> last = history.getChanges(delta.id, 1);
+                known.put(delta.id, last.isEmpty() ? null
+                        : new Delta(delta.id, delta.name, last.get(0).newPreference(),
+                                last.get(0).timeMillis(), serverId));
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Failed to read the history, so the shared log may override changes "
+                    + "made before the server restarted.", e);
+        }
+        List<Delta> changes = new ArrayList<>(known.size());
+        for (Delta delta : known.values()) {
+            if (delta != null) {
+                changes.add(delta);
+            }
+        }
+        return changes;
+    }
+
+    private FileChannel openLock() throws IOException {
+        return FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    private static String toJson(Delta delta) {
+        JsonObject json = KeepInvList.entryToJson(delta.id, delta.name, delta.preference);
+        json.addProperty("updatedAt", delta.updatedAt);
+        json.addProperty("origin", delta.origin);
+        return GSON.toJson(json);
+    }
+
+    /**
+     * Parses the complete lines of the log in <code>bytes</code>, skipping unreadable ones.
+     * 
+     * @param bytes The bytes read from the log.
+     * @param length How many of the bytes to parse.
+     * @param file The log, for warnings.
+     * @return The deltas, oldest first.
+     */
+    private static List<Delta> parse(byte[] bytes, int length, Path file) {
+        String text = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        List<Delta> deltas = new ArrayList<>();
+        for (String line : text.split("\n")) {
+            if (line.isBlank()) {
+                continue;
+            }
+            try {
+                JsonElement element = JsonParser.parseString(line);
+                if (!element.isJsonObject()) {
+                    continue;
+                }
+                JsonObject json = element.getAsJsonObject();
+                if (!json.has("uuid") || !json.has("updatedAt") || !json.has("origin")) {
+                    throw new JsonParseException("Missing uuid, updatedAt, or origin");
+                }
+                JsonElement keepInventory = json.get("keepInventory");
+                byte preference = keepInventory == null || keepInventory.isJsonNull()
+                        ? PreferenceIndex.DEFAULT
+                        : keepInventory.getAsBoolean() ? PreferenceIndex.KEEP
+                                : PreferenceIndex.DROP;
+                JsonElement name = json.get("name");
+                deltas.add(new Delta(UUID.fromString(json.get("uuid").getAsString()),
+                        name == null || name.isJsonNull() ? "" : name.getAsString(), preference,
+                        json.get("updatedAt").getAsLong(), json.get("origin").getAsString()));
+            } catch (JsonParseException | IllegalStateException | IllegalArgumentException
+                    | UnsupportedOperationException e) {
+                LOGGER.warn("Skipping an unreadable line of {}.", file, e);
+            }
+        }
+        return deltas;
+    }
+
+    /** Stops syncing, after appending the changes that are still waiting to be shared. */
+    @Override
+    public void close() throws IOException {
+        watcher.close();
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                LOGGER.warn("Gave up waiting to share the last preference changes.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Reads and writes lists of preferences for importing and exporting them in bulk.
+ * <p>
+ * Files ending in <code>.csv</code> have a <code>uuid,name,keepInventory</code> header followed by
+ * one line per player, where <code>keepInventory</code> is <code>true</code>, <code>false</code>,
+ * or <code>default</code>. Any other file is JSON: either an array in the same format as the
+ * "players" array of the config file, or an object with a "players" array such as an exported
+ * config.
+ */
+public final class PreferenceTransfer {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    private static final String CSV_HEADER = "uuid,name,keepInventory";
+
+    private PreferenceTransfer() {}
+
+    /** Returns whether <code>path</code> is read and written as CSV. */
+    public static boolean isCsv(Path path) {
+        return path.getFileName().toString().endsWith(".csv");
+    }
+
+    /**
+     * Reads the preferences in a file.
+     * 
+     * @param path The file to read.
+     * @return A list of the preferences in the file.
+     * @throws IOException
+     */
+    public static KeepInvList read(Path path) throws IOException {
+        var list = new KeepInvList();
+        if (isCsv(path)) {
+            readCsv(path, list);
+            return list;
+        }
+        try (var reader = new JsonReader(Files.newBufferedReader(path))) {
+            reader.setLenient(true);
+            if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                list.readJson(reader);
+            } else {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("players")
+                            && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        list.readJson(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Writes the preferences in <code>list</code> to a file, replacing it if it exists.
+     * 
+     * @param path The file to write.
+     * @param list The preferences to write.
+     * @throws IOException
+     */
+    public static void write(Path path, KeepInvList list) throws IOException {
+        AtomicFiles.write(path, fileWriter -> {
+            if (isCsv(path)) {
+                fileWriter.write(CSV_HEADER);
+                fileWriter.write('\n');
+                list.forEachEntry((mostSigBits, leastSigBits, name, preference) -> {
+                    fileWriter.write(new UUID(mostSigBits, leastSigBits).toString());
+                    fileWriter.write(',');
+                    fileWriter.write(name == null ? "" : name);
+                    fileWriter.write(',');
+                    fileWriter.write(preferenceToCsv(preference));
+                    fileWriter.write('\n');
+                });
+            } else {
+                var writer = new JsonWriter(fileWriter);
+                writer.setIndent("  ");
+                list.writeJson(writer);
+                writer.flush();
+            }
+        });
+    }
+
+    private static void readCsv(Path path, KeepInvList list) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isBlank() || (lineNumber == 1 && line.startsWith("uuid"))) {
+                    continue;
+                }
+                String[] fields = line.split(",", -1);
+                try {
+                    if (fields.length != 3) {
+                        throw new IllegalArgumentException("Expected 3 fields");
+                    }
+                    list.getIndex().put(UUID.fromString(fields[0].trim()), fields[1].trim(),
+                            preferenceFromCsv(fields[2].trim()));
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warn("Skipping invalid line {} of {}.", lineNumber, path, e);
+                }
+            }
+        }
+    }
+
+    private static String preferenceToCsv(byte preference) {
+        switch (preference) {
+            case PreferenceIndex.KEEP:
+                return "true";
+            case PreferenceIndex.DROP:
+                return "false";
+            default:
+                return "default";
+        }
+    }
+
+    private static byte preferenceFromCsv(String value) {
+        switch (value.toLowerCase()) {
+            case "true":
+                return PreferenceIndex.KEEP;
+            case "false":
+                return PreferenceIndex.DROP;
+            case "default":
+            case "":
+                return PreferenceIndex.DEFAULT;
+            default:
+                throw new IllegalArgumentException("Invalid preference: " + value);
+        }
+    }
+}
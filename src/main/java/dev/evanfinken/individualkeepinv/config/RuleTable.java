@@ -0,0 +1,166 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.jetbrains.annotations.Nullable;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.InvalidIdentifierException;
+
+/**
+ * A list of {@link KeepInvRule}s compiled into a flat lookup table.
+ * <p>
+ * Every dimension, team, and cause named by any rule is given a small ID, with <code>0</code>
+ * standing for every one that isn't named. The table holds the outcome for every combination of
+ * those IDs and whether the death was PvP, worked out once when the config is loaded by finding
+ * the first rule that matches the combination. Dimensions and causes are keyed by their
+ * <code>Identifier</code>, so a death can be looked up with the identifiers the game already holds.
+ * Evaluating the rules for a death is then three map lookups and an array read, no matter how many
+ * rules there are, and allocates nothing.
+ */
+public final class RuleTable {
+    /** A table without rules, which always returns {@link PreferenceIndex#DEFAULT}. */
+    public static final RuleTable EMPTY = compile(List.of());
+    /** The most combinations a table may have, so a config can't use up the server's memory. */
+    private static final int MAX_CELLS = 1 << 24;
+    /** The ID a rule has for a condition it leaves out, which matches any ID. */
+    private static final int ANY = -1;
+
+    private final List<KeepInvRule> rules;
+    private final Map<Identifier, Integer> dimensionIds;
+    private final Map<String, Integer> teamIds;
+    private final Map<Identifier, Integer> causeIds;
+    /** The outcomes, indexed by {@link #cellFor}. */
+    private final byte[] table;
+
+    private RuleTable(List<KeepInvRule> rules, Map<Identifier, Integer> dimensionIds,
+            Map<String, Integer> teamIds, Map<Identifier, Integer> causeIds, byte[] table) {
+        this.rules = rules;
+        this.dimensionIds = dimensionIds;
+        this.teamIds = teamIds;
+        this.causeIds = causeIds;
+        this.table = table;
+    }
+
+    /**
+     * Compiles a list of rules. Earlier rules take priority over later ones.
+     * 
+     * @param rules The rules, in the order they appear in the config file.
+     * @return The compiled table.
+     * @throws IllegalArgumentException If a rule's dimension or cause isn't a valid identifier, or
+     *         if the rules name so many dimensions, teams, and causes that the table would be too
+     *         large.
+     */
+    public static RuleTable compile(List<KeepInvRule> rules) {
+        Map<Identifier, Integer> dimensionIds = new HashMap<>();
+        Map<String, Integer> teamIds = new HashMap<>();
+        Map<Identifier, Integer> causeIds = new HashMap<>();
+        // the IDs each rule matches, in the same order as the rules
+        var ruleIds = new int[rules.size() * 3];
+        for (int i = 0; i < rules.size(); i++) {
+            KeepInvRule rule = rules.get(i);
+            ruleIds[i * 3] = assignId(dimensionIds, parseId(rule.dimension));
+            ruleIds[i * 3 + 1] = assignId(teamIds, rule.team);
+            ruleIds[i * 3 + 2] = assignId(causeIds, parseId(rule.cause));
+        }
+        int dimensions = dimensionIds.size() + 1;
+        int teams = teamIds.size() + 1;
+        int causes = causeIds.size() + 1;
+        long cells = (long) dimensions * teams * causes * 2;
+        if (cells > MAX_CELLS) {
+            throw new IllegalArgumentException("The rules have too many combinations: " + cells);
+        }
+        var table = new byte[(int) cells];
+        for (int dimension = 0; dimension < dimensions; dimension++) {
+            for (int team = 0; team < teams; team++) {
+                for (int cause = 0; cause < causes; cause++) {
+                    for (int pvp = 0; pvp < 2; pvp++) {
+                        int cell = ((dimension * teams + team) * causes + cause) * 2 + pvp;
+                        table[cell] = firstMatch(rules, ruleIds, dimension, team, cause,
+                                pvp == 1);
+                    }
+                }
+            }
+        }
+        return new RuleTable(List.copyOf(rules), dimensionIds, teamIds, causeIds, table);
+    }
+
+    /** Gets the rules this table was compiled from. */
+    public List<KeepInvRule> getRules() {
+        return rules;
+    }
+
+    /** Returns whether there are no rules, in which case every death follows the gamerule. */
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /**
+     * Gets the outcome of the rules for a death.
+     * 
+     * @param dimension The ID of the dimension the player died in.
+     * @param team The name of the player's team, or <code>null</code> if they aren't on one.
+     * @param cause The ID of the damage type that killed the player, or <code>null</code>.
+     * @param pvp Whether the player was killed by another player.
+     * @return One of {@link PreferenceIndex#DEFAULT} if no rule decides, or
+     *         {@link PreferenceIndex#KEEP} or {@link PreferenceIndex#DROP}.
+     */
+    public byte evaluate(@Nullable Identifier dimension, @Nullable String team,
+            @Nullable Identifier cause, boolean pvp) {
+        return table[cellFor(idOf(dimensionIds, dimension), idOf(teamIds, team),
+                idOf(causeIds, cause), pvp)];
+    }
+
+    private int cellFor(int dimension, int team, int cause, boolean pvp) {
+        int teams = teamIds.size() + 1;
+        int causes = causeIds.size() + 1;
+        return ((dimension * teams + team) * causes + cause) * 2 + (pvp ? 1 : 0);
+    }
+
+    private static byte firstMatch(List<KeepInvRule> rules, int[] ruleIds, int dimension,
+            int team, int cause, boolean pvp) {
+        for (int i = 0; i < rules.size(); i++) {
+            KeepInvRule rule = rules.get(i);
+            if ((ruleIds[i * 3] == ANY || ruleIds[i * 3] == dimension)
+                    && (ruleIds[i * 3 + 1] == ANY || ruleIds[i * 3 + 1] == team)
+                    && (ruleIds[i * 3 + 2] == ANY || ruleIds[i * 3 + 2] == cause)
+                    && (rule.pvp == null || rule.pvp == pvp)) {
+                return rule.preference;
+            }
+        }
+        return PreferenceIndex.DEFAULT;
+    }
+
+    @Nullable
+    private static Identifier parseId(@Nullable String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return Identifier.of(name);
+        } catch (InvalidIdentifierException e) {
+            throw new IllegalArgumentException("Invalid identifier in a rule: " + name, e);
+        }
+    }
+
+    /** Gets the ID of <code>key</code>, giving it the next one if it doesn't have one yet. */
+    private static <K> int assignId(Map<K, Integer> ids, @Nullable K key) {
+        if (key == null) {
+            return ANY;
+        }
+        Integer id = ids.get(key);
+        if (id == null) {
+            id = ids.size() + 1;
+            ids.put(key, id);
+        }
+        return id;
+    }
+
+    private static <K> int idOf(Map<K, Integer> ids, @Nullable K key) {
+        if (key == null) {
+            return 0;
+        }
+        Integer id = ids.get(key);
+        return id == null ? 0 : id;
+    }
+}
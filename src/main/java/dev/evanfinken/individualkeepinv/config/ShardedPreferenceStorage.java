@@ -0,0 +1,342 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * Stores each player's preference in its own small file, similar to the "playerdata" folder of a
+ * world.
+ * <p>
+ * The files are named after the player's UUID and spread over 256 subdirectories by the first two
+ * hex digits of the UUID, so no directory grows too large. Each file holds the same JSON object
+ * as an entry of the config file's "players" array. Players on the default have no file. The
+ * modification time of a file is when its player was last seen or last changed their preference,
+ * which stale files are evicted by.
+ * <p>
+ * This is an on-demand storage: a player's file is only read when they join, so neither startup
+ * time nor memory use depends on how many players have ever set a preference. Files are read and
+ * written on a single background thread, in the order the reads and writes were made. A file that
+ * fails to be written is kept pending and tried again, so its change isn't lost.
+ */
+public class ShardedPreferenceStorage implements PreferenceStorage {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    public static final String NAME = "sharded";
+    /** How long to wait before trying to write failed files again. */
+    private static final long RETRY_SECONDS = 5;
+
+    /** The directory holding the subdirectories of player files. */
+    private final Path directory;
+    private final ScheduledExecutorService executor;
+    /**
+     * The changes whose files haven't been written yet, with the newest change of each player.
+     * Only used on the storage thread.
+     */
+    private KeepInvList pending = new KeepInvList();
+    /** Whether writing the pending files is scheduled to be tried again. */
+    private boolean retryScheduled = false;
+
+    public ShardedPreferenceStorage(Path directory) {
+        this.directory = directory;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "Individual KeepInv Storage");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isOnDemand() {
+        return true;
+    }
+
+    /** Writes a file for each player in the config file. */
+    @Override
+    public KeepInvList open(KeepInvList configPlayers) throws IOException {
+        if (configPlayers.size() > 0) {
+            call(() -> {
+                configPlayers.forEachEntry((mostSigBits, leastSigBits, name, preference) -> {
+                    writeFile(new UUID(mostSigBits, leastSigBits), name, preference);
+                });
+                return null;
+            });
+            LOGGER.info("Migrated {} players to {}.", configPlayers.size(), directory);
+        }
+        return new KeepInvList();
+    }
+
+    @Override
+    public CompletableFuture<Byte> load(UUID id) {
+        return CompletableFuture.supplyAsync(() -> {
+            byte preference =
+                    pending.lookup(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            if (preference != PreferenceIndex.ABSENT) {
+                // a player on the default has no file
+                return preference == PreferenceIndex.DEFAULT ? PreferenceIndex.ABSENT : preference;
+            }
+            Path file = pathFor(id);
+            if (Files.notExists(file)) {
+                return PreferenceIndex.ABSENT;
+            }
+            var list = new KeepInvList();
+            try {
+                readFile(file, list);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return list.getIndex().lookup(id.getMostSignificantBits(),
+                    id.getLeastSignificantBits());
+        }, executor);
+    }
+
+    /** Reads every player file. This takes time and memory proportional to all the players. */
+    @Override
+    public KeepInvList loadAll(KeepInvList resident) throws IOException {
+        return call(() -> {
+            writePending();
+            var list = new KeepInvList();
+            if (Files.notExists(directory)) {
+                return list;
+            }
+            for (Path file : listFiles()) {
+                readFile(file, list);
+                UUID id = idOf(file);
+                PreferenceIndex index = list.getIndex();
+                if (id != null && index.contains(id)) {
+                    index.put(id, index.getName(id), index.get(id),
+                            Files.getLastModifiedTime(file).toMillis());
+                }
+            }
+            return list;
+        });
+    }
+
+    @Override
+    public void write(UUID id, String name, byte preference) {
+        executor.execute(() -> {
+            pending.getIndex().put(id, name, preference);
+            writePending();
+        });
+    }
+
+    @Override
+    public void touch(UUID id, long lastSeen) {
+        executor.execute(() -> {
+            Path file = pathFor(id);
+            try {
+                if (Files.exists(file)) {
+                    Files.setLastModifiedTime(file, FileTime.fromMillis(lastSeen));
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to save when {} was last seen.", id, e);
+            }
+        });
+    }
+
+    /** Deletes the files that weren't modified recently enough. */
+    @Override
+    public int evict(long cutoff, int maxPlayers) throws IOException {
+        return call(() -> {
+            writePending();
+            List<Path> kept = new ArrayList<>();
+            Map<Path, FileTime> modifiedTimes = new HashMap<>();
+            int evicted = 0;
+            for (Path file : listFiles()) {
+                FileTime modified = Files.getLastModifiedTime(file);
+                if (modified.toMillis() < cutoff) {
+                    Files.deleteIfExists(file);
+                    evicted++;
+                } else {
+                    kept.add(file);
+                    modifiedTimes.put(file, modified);
+                }
+            }
+            if (maxPlayers > 0 && kept.size() > maxPlayers) {
+                kept.sort(Comparator.comparing(modifiedTimes::get, Comparator.reverseOrder()));
+                for (Path file : kept.subList(maxPlayers, kept.size())) {
+                    Files.deleteIfExists(file);
+                    evicted++;
+                }
+            }
+            return evicted;
+        });
+    }
+
+    /** Deletes every player file. */
+    @Override
+    public void clear() {
+        executor.execute(() -> {
+            pending = new KeepInvList();
+            if (Files.notExists(directory)) {
+                return;
+            }
+            try (Stream<Path> files = Files.walk(directory)) {
+                // children sort after their directories, so they are deleted first
+                Iterable<Path> reversed = files.sorted(Comparator.reverseOrder())::iterator;
+                for (Path file : reversed) {
+                    Files.delete(file);
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Failed to reset the keep inventory preferences.", e);
+            }
+        });
+    }
+
+    @Override
+    public void flush() {
+        try {
+            call(() -> {
+                writePending();
+                return null;
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Failed to flush the player preference files.", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        try {
+            call(() -> {
+                if (pending.size() > 0) {
+                    LOGGER.warn("Couldn't save the keep inventory preferences of {} players.",
+                            pending.size());
+                }
+                pending = new KeepInvList();
+                return null;
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close the player preference files.", e);
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * Gets the path of a player's file.
+     * 
+     * @param id The UUID of the player.
+     * @return <code>directory/ab/abcdef01-...json</code>
+     */
+    Path pathFor(UUID id) {
+        String name = id.toString();
+        return directory.resolve(name.substring(0, 2)).resolve(name + ".json");
+    }
+
+    /** Lists every player file. Only called on the storage thread. */
+    private List<Path> listFiles() throws IOException {
+        List<Path> files = new ArrayList<>();
+        if (Files.notExists(directory)) {
+            return files;
+        }
+        try (Stream<Path> paths = Files.walk(directory, 2)) {
+            paths.filter(file -> file.getFileName().toString().endsWith(".json"))
+                    .forEach(files::add);
+        }
+        return files;
+    }
+
+    /** Gets the UUID a player file is named after, or <code>null</code> if it isn't one. */
+    @Nullable
+    private static UUID idOf(Path file) {
+        String name = file.getFileName().toString();
+        try {
+            return UUID.fromString(name.substring(0, name.length() - ".json".length()));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the file of each pending change. The ones that fail stay pending and are tried again
+     * after {@value #RETRY_SECONDS} seconds. Only called on the storage thread.
+     */
+    private void writePending() {
+        if (pending.size() == 0) {
+            return; // nothing to write, or closed while a retry was scheduled
+        }
+        var failed = new KeepInvList();
+        IOException[] error = {null};
+        pending.forEachEntry((mostSigBits, leastSigBits, name, preference) -> {
+            var id = new UUID(mostSigBits, leastSigBits);
+            try {
+                writeFile(id, name, preference);
+            } catch (IOException e) {
+                failed.getIndex().put(id, name, preference);
+                error[0] = e;
+            }
+        });
+        pending = failed;
+        if (error[0] == null) {
+            return;
+        }
+        LOGGER.warn("Failed to save the keep inventory preferences of {} players, trying again in "
+                + "{} seconds.", failed.size(), RETRY_SECONDS, error[0]);
+        if (!retryScheduled) {
+            retryScheduled = true;
+            executor.schedule(() -> {
+                retryScheduled = false;
+                writePending();
+            }, RETRY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    private void writeFile(UUID id, String name, byte preference) throws IOException {
+        Path file = pathFor(id);
+        if (preference == PreferenceIndex.DEFAULT) {
+            Files.deleteIfExists(file);
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        AtomicFiles.writeString(file, KeepInvList.entryToJson(id, name, preference).toString());
+    }
+
+    private static void readFile(Path file, KeepInvList list) throws IOException {
+        try {
+            JsonElement element = JsonParser.parseString(Files.readString(file));
+            if (!element.isJsonObject() || !list.putFromJson(element.getAsJsonObject())) {
+                LOGGER.warn("Skipping invalid player file {}.", file);
+            }
+        } catch (JsonParseException | IllegalStateException e) {
+            LOGGER.warn("Skipping unreadable player file {}.", file, e);
+        }
+    }
+
+    /** Runs <code>task</code> on the storage thread and waits for it to finish. */
+    private <T> T call(Callable<T> task) throws IOException {
+        try {
+            return executor.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the player preference files", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to access the player preference files", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores the preferences in an embedded H2 database file next to the config file.
+ * <p>
+ * This is an on-demand storage: a player's preference is read from the database when they join,
+ * and each change is written as a single-row upsert, so neither startup time nor memory use
+ * depends on how many players have ever set a preference. Each row also records when the player
+ * was last seen or last changed their preference, which stale rows are evicted by.
+ * <p>
+ * The connection is only used from a single background thread, so statements run in the order
+ * they were submitted and never block the server thread. Changes that fail to be written are kept
+ * and tried again along with any later ones, so a database that is briefly unavailable doesn't
+ * lose them.
+ */
+public class SqlPreferenceStorage implements PreferenceStorage {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    public static final String NAME = "sql";
+    /** How long to wait before trying to write failed changes again. */
+    private static final long RETRY_SECONDS = 5;
+
+    /** The path of the database, without the <code>.mv.db</code> extension H2 adds. */
+    private final Path path;
+    private final ScheduledExecutorService executor;
+    /** The connection to the database. Only used on <code>executor</code>'s thread. */
+    private Connection connection;
+    /**
+     * The changes that haven't been written yet, with the newest change of each player. Only used
+     * on <code>executor</code>'s thread.
+     */
+    private KeepInvList pending = new KeepInvList();
+    /** Whether writing the pending changes is scheduled to be tried again. */
+    private boolean retryScheduled = false;
+    private PreparedStatement upsertStatement;
+    private PreparedStatement selectStatement;
+    private PreparedStatement touchStatement;
+
+    public SqlPreferenceStorage(Path path) {
+        this.path = path;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "Individual KeepInv Storage");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isOnDemand() {
+        return true;
+    }
+
+    /**
+     * Connects to the database, creating it if it doesn't exist, and migrates the players in the
+     * config file to it.
+     */
+    @Override
+    public KeepInvList open(KeepInvList configPlayers) throws IOException {
+        call(() -> {
+            connect();
+            if (configPlayers.size() > 0) {
+                migrate(configPlayers);
+            }
+            return null;
+        });
+        return new KeepInvList();
+    }
+
+    @Override
+    public CompletableFuture<Byte> load(UUID id) {
+        return CompletableFuture.supplyAsync(() -> {
+            byte preference =
+                    pending.lookup(id.getMostSignificantBits(), id.getLeastSignificantBits());
+            if (preference != PreferenceIndex.ABSENT) {
+                return preference;
+            }
+            try {
+                selectStatement.setObject(1, id);
+                try (ResultSet result = selectStatement.executeQuery()) {
+                    return result.next() ? result.getByte(1) : PreferenceIndex.ABSENT;
+                }
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    @Override
+    public KeepInvList loadAll(KeepInvList resident) throws IOException {
+        return call(() -> {
+            writePending();
+            var list = new KeepInvList();
+            try (Statement statement = connection.createStatement();
+                    ResultSet result = statement.executeQuery(
+                            "SELECT uuid, name, preference, last_seen FROM preferences")) {
+                while (result.next()) {
+                    list.getIndex().put(result.getObject(1, UUID.class), result.getString(2),
+                            result.getByte(3), result.getLong(4));
+                }
+            }
+            return list;
+        });
+    }
+
+    @Override
+    public void write(UUID id, String name, byte preference) {
+        executor.execute(() -> {
+            pending.getIndex().put(id, name, preference, System.currentTimeMillis());
+            writePending();
+        });
+    }
+
+    /** Writes the changes in a single transaction. */
+    @Override
+    public void writeAll(KeepInvList changes) {
+        executor.execute(() -> {
+            changes.forEachTimedEntry(pending.getIndex()::put);
+            writePending();
+        });
+    }
+
+    @Override
+    public void touch(UUID id, long lastSeen) {
+        executor.execute(() -> {
+            try {
+                touchStatement.setLong(1, lastSeen);
+                touchStatement.setObject(2, id);
+                touchStatement.executeUpdate();
+            } catch (SQLException e) {
+                LOGGER.warn("Failed to save when {} was last seen.", id, e);
+            }
+        });
+    }
+
+    @Override
+    public int evict(long cutoff, int maxPlayers) throws IOException {
+        return call(() -> {
+            writePending();
+            int evicted = 0;
+            try (PreparedStatement statement = connection
+                    .prepareStatement("DELETE FROM preferences WHERE last_seen < ?")) {
+                statement.setLong(1, cutoff);
+                evicted += statement.executeUpdate();
+            }
+            if (maxPlayers > 0) {
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "DELETE FROM preferences WHERE uuid NOT IN (SELECT uuid FROM preferences "
+                                + "ORDER BY last_seen DESC FETCH FIRST ? ROWS ONLY)")) {
+                    statement.setInt(1, maxPlayers);
+                    evicted += statement.executeUpdate();
+                }
+            }
+            return evicted;
+        });
+    }
+
+    @Override
+    public void clear() {
+        executor.execute(() -> {
+            pending = new KeepInvList();
+            try (Statement statement = connection.createStatement()) {
+                statement.executeUpdate("DELETE FROM preferences");
+            } catch (SQLException e) {
+                LOGGER.warn("Failed to reset the keep inventory preferences.", e);
+            }
+        });
+    }
+
+    @Override
+    public void flush() {
+        try {
+            call(() -> {
+                writePending();
+                return null;
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Failed to flush the preference database.", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            call(() -> {
+                writePending();
+                if (pending.size() > 0) {
+                    LOGGER.warn("Couldn't save the keep inventory preferences of {} players.",
+                            pending.size());
+                }
+                if (connection != null) {
+                    connection.close();
+                    connection = null;
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            LOGGER.warn("Failed to close the preference database.", e);
+        }
+        executor.shutdown();
+    }
+
+    private void connect() throws SQLException {
+        if (connection != null) {
+            return;
+        }
+        // the driver is used directly, since DriverManager can't see drivers in nested jars
+        connection = new org.h2.Driver().connect("jdbc:h2:" + path.toAbsolutePath(),
+                new Properties());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS preferences (uuid UUID PRIMARY KEY, "
+                    + "name VARCHAR, preference TINYINT NOT NULL, last_seen BIGINT)");
+            statement.execute("ALTER TABLE preferences ADD COLUMN IF NOT EXISTS last_seen BIGINT");
+        }
+        // players from before last_seen was added count as seen now
+        try (PreparedStatement statement = connection
+                .prepareStatement("UPDATE preferences SET last_seen = ? WHERE last_seen IS NULL")) {
+            statement.setLong(1, System.currentTimeMillis());
+            statement.executeUpdate();
+        }
+        upsertStatement = connection.prepareStatement("MERGE INTO preferences "
+                + "(uuid, name, preference, last_seen) KEY (uuid) VALUES (?, ?, ?, ?)");
+        selectStatement =
+                connection.prepareStatement("SELECT preference FROM preferences WHERE uuid = ?");
+        touchStatement =
+                connection.prepareStatement("UPDATE preferences SET last_seen = ? WHERE uuid = ?");
+    }
+
+    private void migrate(KeepInvList players) throws SQLException {
+        upsertAll(players);
+        LOGGER.info("Migrated {} players to {}.", players.size(), path);
+    }
+
+    private void upsertAll(KeepInvList players) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            players.forEachTimedEntry((mostSigBits, leastSigBits, name, preference, lastSeen) -> {
+                bindUpsert(new UUID(mostSigBits, leastSigBits), name, preference, lastSeen);
+                upsertStatement.addBatch();
+            });
+            upsertStatement.executeBatch();
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+    }
+
+    /**
+     * Writes the pending changes in a single transaction. If that fails, they stay pending and are
+     * tried again after {@value #RETRY_SECONDS} seconds.
+     */
+    private void writePending() {
+        if (pending.size() == 0 || connection == null) {
+            return; // nothing to write, or closed while a retry was scheduled
+        }
+        try {
+            upsertAll(pending);
+            pending = new KeepInvList();
+        } catch (SQLException e) {
+            LOGGER.warn("Failed to save the keep inventory preferences of {} players, trying again "
+                    + "in {} seconds.", pending.size(), RETRY_SECONDS, e);
+            if (!retryScheduled) {
+                retryScheduled = true;
+                executor.schedule(() -> {
+                    retryScheduled = false;
+                    writePending();
+                }, RETRY_SECONDS, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    private void bindUpsert(UUID id, String name, byte preference, long lastSeen)
+            throws SQLException {
+        upsertStatement.setObject(1, id);
+        upsertStatement.setString(2, name);
+        upsertStatement.setByte(3, preference);
+        upsertStatement.setLong(4, lastSeen);
+    }
+
+    /** Runs <code>task</code> on the database thread and waits for it to finish. */
+    private <T> T call(Callable<T> task) throws IOException {
+        try {
+            return executor.submit(task).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the preference database", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to access the preference database", e.getCause());
+        }
+    }
+}
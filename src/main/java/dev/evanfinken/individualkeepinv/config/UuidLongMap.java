@@ -0,0 +1,110 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.util.Arrays;
+
+/**
+ * A compact hash table from player UUIDs to <code>long</code>s.
+ * <p>
+ * Like {@link PreferenceIndex}, entries are keyed only by the two <code>long</code>s of the UUID
+ * and are stored in parallel arrays using open addressing with linear probing, so there are no
+ * per-entry objects. Each slot takes 25 bytes, where a <code>HashMap</code> needs a node, a
+ * <code>UUID</code>, and a boxed value for every entry. Entries can't be removed one at a time.
+ * <p>
+ * This isn't thread-safe.
+ */
+final class UuidLongMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mostSigBits;
+    private long[] leastSigBits;
+    private long[] values;
+    private boolean[] occupied;
+    /** The number of entries. */
+    private int size;
+    /** The capacity minus one. The capacity is always a power of two. */
+    private int mask;
+
+    UuidLongMap() {
+        allocate(MIN_CAPACITY);
+    }
+
+    /** Gets the number of entries. */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Gets the value of the player with the UUID made up of <code>mostSigBits</code> and
+     * <code>leastSigBits</code>.
+     * 
+     * @param missing The value to return if the player has no entry.
+     * @return The player's value, or <code>missing</code>.
+     */
+    long get(long mostSigBits, long leastSigBits, long missing) {
+        int slot = PreferenceIndex.hash(mostSigBits, leastSigBits) & mask;
+        while (occupied[slot]) {
+            if (this.mostSigBits[slot] == mostSigBits && this.leastSigBits[slot] == leastSigBits) {
+                return values[slot];
+            }
+            slot = (slot + 1) & mask;
+        }
+        return missing;
+    }
+
+    /** Sets the value of a player, adding an entry if they don't have one. */
+    void put(long mostSigBits, long leastSigBits, long value) {
+        int slot = PreferenceIndex.hash(mostSigBits, leastSigBits) & mask;
+        while (occupied[slot]) {
+            if (this.mostSigBits[slot] == mostSigBits && this.leastSigBits[slot] == leastSigBits) {
+                values[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        if ((size + 1) * 4L > (mask + 1) * 3L) {
+            rehash((mask + 1) * 2);
+            put(mostSigBits, leastSigBits, value);
+            return;
+        }
+        this.mostSigBits[slot] = mostSigBits;
+        this.leastSigBits[slot] = leastSigBits;
+        values[slot] = value;
+        occupied[slot] = true;
+        size++;
+    }
+
+    /** Removes every entry. */
+    void clear() {
+        Arrays.fill(occupied, false);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldMostSigBits = mostSigBits;
+        long[] oldLeastSigBits = leastSigBits;
+        long[] oldValues = values;
+        boolean[] oldOccupied = occupied;
+        allocate(capacity);
+        for (int slot = 0; slot < oldOccupied.length; slot++) {
+            if (oldOccupied[slot]) {
+                int newSlot = PreferenceIndex.hash(oldMostSigBits[slot], oldLeastSigBits[slot])
+                        & mask;
+                while (occupied[newSlot]) {
+                    newSlot = (newSlot + 1) & mask;
+                }
+                mostSigBits[newSlot] = oldMostSigBits[slot];
+                leastSigBits[newSlot] = oldLeastSigBits[slot];
+                values[newSlot] = oldValues[slot];
+                occupied[newSlot] = true;
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        mostSigBits = new long[capacity];
+        leastSigBits = new long[capacity];
+        values = new long[capacity];
+        occupied = new boolean[capacity];
+        mask = capacity - 1;
+    }
+}
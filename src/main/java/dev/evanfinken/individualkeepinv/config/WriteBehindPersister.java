@@ -0,0 +1,141 @@
+package dev.evanfinken.individualkeepinv.config;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Saves a config on a dedicated background thread instead of the thread that changed it.
+ * <p>
+ * Changes only mark the config as dirty. The first change schedules a write after a short delay,
+ * and any other changes made before that write runs are coalesced into it, so a burst of changes
+ * results in a single write. A write that fails leaves the config dirty and is tried again after
+ * the same delay.
+ */
+public class WriteBehindPersister {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+
+    /** The action that actually writes the config. */
+    @FunctionalInterface
+    public interface SaveAction {
+        void save() throws IOException;
+    }
+
+    private final SaveAction action;
+    /** How long to wait after the first change before writing. */
+    private final long delayMillis;
+    private final ScheduledExecutorService executor;
+    /** Whether there are changes that haven't been written yet. Guarded by <code>this</code>. */
+    private boolean dirty = false;
+    /** When the scheduled write will run, in <code>System.nanoTime()</code> units. */
+    private long deadlineNanos;
+    /** The number of writes that have been completed. */
+    private final AtomicLong writeCount = new AtomicLong();
+    /** The number of changes that were folded into an already scheduled write. */
+    private final AtomicLong coalescedCount = new AtomicLong();
+
+    public WriteBehindPersister(SaveAction action, long delayMillis) {
+        this.action = action;
+        this.delayMillis = delayMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "Individual KeepInv Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Marks the config as changed, scheduling a write if one isn't already scheduled.
+     * <p>
+     * This never blocks on I/O and is safe to call from any thread.
+     */
+    public void markDirty() {
+        markDirty(delayMillis);
+    }
+
+    /**
+     * Marks the config as changed, making sure a write happens within <code>delayMillis</code>.
+     * <p>
+     * If a write is already scheduled to happen before then, the change is coalesced into it.
+     * Otherwise, a write is scheduled for the earlier deadline.
+     * 
+     * @param delayMillis The longest the change may wait before being written.
+     */
+    public synchronized void markDirty(long delayMillis) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        if (dirty && deadlineNanos - deadline <= 0) {
+            coalescedCount.incrementAndGet();
+            return;
+        }
+        dirty = true;
+        deadlineNanos = deadline;
+        executor.schedule(this::writeIfDirty, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes any pending changes immediately, blocking until the write has finished.
+     * <p>
+     * This should be called when the server stops so that no changes are lost.
+     */
+    public void flush() {
+        try {
+            executor.submit(this::writeIfDirty).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted while flushing the config file.", e);
+        } catch (ExecutionException e) {
+            LOGGER.warn("Failed to flush the config file.", e.getCause());
+        }
+    }
+
+    /**
+     * Runs another background write on the writer thread, in the order it was submitted and never
+     * at the same time as a save.
+     * 
+     * @param task The write to run.
+     */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /** Gets the number of writes that have been completed. */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /** Gets the number of changes that didn't need their own write. */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    private void writeIfDirty() {
+        synchronized (this) {
+            if (!dirty) {
+                return; // already written by an earlier scheduled write or a flush
+            }
+            dirty = false;
+        }
+        try {
+            action.save();
+            writeCount.incrementAndGet();
+        } catch (IOException e) {
+            LOGGER.warn("Failed to save the config file, trying again in {} ms.", delayMillis, e);
+            retry();
+        }
+    }
+
+    /** Marks the config as dirty again after a failed write, without counting it as coalesced. */
+    private synchronized void retry() {
+        if (dirty) {
+            return; // a change made during the write already scheduled another one
+        }
+        dirty = true;
+        deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis);
+        executor.schedule(this::writeIfDirty, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
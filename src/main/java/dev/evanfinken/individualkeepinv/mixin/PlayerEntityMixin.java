@@ -1,11 +1,10 @@
 package dev.evanfinken.individualkeepinv.mixin;
 
 import org.spongepowered.asm.mixin.Mixin;
-import org.spongepowered.asm.mixin.Shadow;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Redirect;
-import com.mojang.authlib.GameProfile;
 import dev.evanfinken.individualkeepinv.IndividualKeepInv;
+import dev.evanfinken.individualkeepinv.stats.InterceptSource;
 import net.minecraft.entity.EntityType;
 import net.minecraft.entity.LivingEntity;
 import net.minecraft.entity.player.PlayerEntity;
@@ -14,9 +13,6 @@ import net.minecraft.world.World;
 
 @Mixin(PlayerEntity.class)
 public abstract class PlayerEntityMixin extends LivingEntity {
-    @Shadow
-    public abstract GameProfile getGameProfile();
-
     public PlayerEntityMixin(EntityType<? extends LivingEntity> entityType, World world) {
         super(entityType, world);
     }
@@ -28,7 +24,8 @@ public abstract class PlayerEntityMixin extends LivingEntity {
     @Redirect(method = "dropInventory", at = @At(value = "INVOKE",
             target = "net/minecraft/world/GameRules.getBoolean(Lnet/minecraft/world/GameRules$Key;)Z"))
     public boolean onDropInventory(GameRules rules, GameRules.Key<GameRules.BooleanRule> key) {
-        return IndividualKeepInv.interceptGetKeepInventory(getGameProfile(), rules, key);
+        return IndividualKeepInv.interceptGetKeepInventory((PlayerEntity) (Object) this, rules,
+                key, InterceptSource.DROP_INVENTORY);
     }
 
     /**
@@ -37,6 +34,7 @@ public abstract class PlayerEntityMixin extends LivingEntity {
     @Redirect(method = "getExperienceToDrop", at = @At(value = "INVOKE",
             target = "net/minecraft/world/GameRules.getBoolean(Lnet/minecraft/world/GameRules$Key;)Z"))
     public boolean onGetExperienceToDrop(GameRules rules, GameRules.Key<GameRules.BooleanRule> key) {
-        return IndividualKeepInv.interceptGetKeepInventory(getGameProfile(), rules, key);
+        return IndividualKeepInv.interceptGetKeepInventory((PlayerEntity) (Object) this, rules,
+                key, InterceptSource.GET_EXPERIENCE_TO_DROP);
     }
 }
@@ -1,10 +1,18 @@
 package dev.evanfinken.individualkeepinv.mixin;
 
 import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.Unique;
 import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.Redirect;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import com.mojang.authlib.GameProfile;
 import dev.evanfinken.individualkeepinv.IndividualKeepInv;
+import dev.evanfinken.individualkeepinv.KeepInvPlayer;
+import dev.evanfinken.individualkeepinv.config.KeepMask;
+import dev.evanfinken.individualkeepinv.config.PreferenceIndex;
+import dev.evanfinken.individualkeepinv.stats.InterceptSource;
+import net.minecraft.entity.damage.DamageSource;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.util.math.BlockPos;
@@ -12,11 +20,84 @@ import net.minecraft.world.GameRules;
 import net.minecraft.world.World;
 
 @Mixin(ServerPlayerEntity.class)
-public abstract class ServerPlayerEntityMixin extends PlayerEntity {
+public abstract class ServerPlayerEntityMixin extends PlayerEntity implements KeepInvPlayer {
+    /** The player's keep inventory preference, cached so deaths don't need to look it up. */
+    @Unique
+    private byte individualkeepinv$cachedPreference = KeepInvPlayer.UNRESOLVED;
+    /** The outcome of the config's rules for the player's last death. */
+    @Unique
+    private byte individualkeepinv$deathRule = PreferenceIndex.DEFAULT;
+    /** The {@link KeepMask} that applied to the player when they last died. */
+    @Unique
+    private long individualkeepinv$deathKeptSlots = KeepMask.NONE;
+    /** Whether the experience copied from the old player in {@link #copyFrom} is dropped. */
+    @Unique
+    private boolean individualkeepinv$experienceDropped = false;
+
     public ServerPlayerEntityMixin(World world, BlockPos pos, float yaw, GameProfile gameProfile) {
         super(world, pos, yaw, gameProfile);
     }
 
+    @Override
+    public byte individualkeepinv$getCachedPreference() {
+        if (individualkeepinv$cachedPreference == KeepInvPlayer.UNRESOLVED) {
+            individualkeepinv$cachedPreference =
+                    IndividualKeepInv.CONFIG.getPreference(getGameProfile());
+        }
+        return individualkeepinv$cachedPreference;
+    }
+
+    @Override
+    public void individualkeepinv$setCachedPreference(byte preference) {
+        individualkeepinv$cachedPreference = preference;
+    }
+
+    @Override
+    public byte individualkeepinv$getDeathRule() {
+        return individualkeepinv$deathRule;
+    }
+
+    @Override
+    public void individualkeepinv$setDeathRule(byte outcome) {
+        individualkeepinv$deathRule = outcome;
+    }
+
+    @Override
+    public long individualkeepinv$getDeathKeptSlots() {
+        return individualkeepinv$deathKeptSlots;
+    }
+
+    @Override
+    public void individualkeepinv$setDeathKeptSlots(long keptSlots) {
+        individualkeepinv$deathKeptSlots = keptSlots;
+    }
+
+    /**
+     * Evaluates the config's rules and works out the player's kept slots for the death before the
+     * inventory and experience are dropped.
+     */
+    @Inject(method = "onDeath", at = @At("HEAD"))
+    private void onDeathHead(DamageSource damageSource, CallbackInfo ci) {
+        ServerPlayerEntity player = (ServerPlayerEntity) (Object) this;
+        individualkeepinv$deathRule = IndividualKeepInv.evaluateRules(player, damageSource);
+        individualkeepinv$deathKeptSlots = IndividualKeepInv.getKeptSlots(player);
+    }
+
+    /**
+     * Carries the cached preference, the outcome of the rules, and the kept slots over to the new
+     * player entity
+     * created when respawning, before the "keepInventory" gamerule is checked in
+     * {@link ServerPlayerEntity#copyFrom}.
+     */
+    @Inject(method = "copyFrom", at = @At("HEAD"))
+    private void onCopyFromHead(ServerPlayerEntity oldPlayer, boolean alive, CallbackInfo ci) {
+        KeepInvPlayer oldKeepInvPlayer = (KeepInvPlayer) oldPlayer;
+        individualkeepinv$cachedPreference =
+                oldKeepInvPlayer.individualkeepinv$getCachedPreference();
+        individualkeepinv$deathRule = oldKeepInvPlayer.individualkeepinv$getDeathRule();
+        individualkeepinv$deathKeptSlots = oldKeepInvPlayer.individualkeepinv$getDeathKeptSlots();
+    }
+
     /**
      * Intercepts the call in {@link ServerPlayerEntity#copyFrom} to get the "keepInventory"
      * gamerule.
@@ -24,6 +105,25 @@ public abstract class ServerPlayerEntityMixin extends PlayerEntity {
     @Redirect(method = "copyFrom", at = @At(value = "INVOKE",
             target = "net/minecraft/world/GameRules.getBoolean(Lnet/minecraft/world/GameRules$Key;)Z"))
     public boolean onCopyFrom(GameRules rules, GameRules.Key<GameRules.BooleanRule> key) {
-        return IndividualKeepInv.interceptGetKeepInventory(getGameProfile(), rules, key);
+        long keptSlots = IndividualKeepInv.interceptKeptSlots((KeepInvPlayer) this, rules, key,
+                InterceptSource.COPY_FROM);
+        individualkeepinv$experienceDropped = (keptSlots & KeepMask.XP) == 0;
+        return keptSlots != KeepMask.NONE;
+    }
+
+    /**
+     * Takes away the experience copied along with the kept part of the inventory in
+     * {@link ServerPlayerEntity#copyFrom}, if the player's kept slots don't include it. It was
+     * already dropped when they died.
+     */
+    @Inject(method = "copyFrom", at = @At("TAIL"))
+    private void onCopyFromTail(ServerPlayerEntity oldPlayer, boolean alive, CallbackInfo ci) {
+        if (individualkeepinv$experienceDropped && !oldPlayer.isSpectator()) {
+            experienceLevel = 0;
+            totalExperience = 0;
+            experienceProgress = 0;
+            setScore(0);
+        }
+        individualkeepinv$experienceDropped = false;
     }
 }
@@ -0,0 +1,43 @@
+package dev.evanfinken.individualkeepinv.stats;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event for a load of the config file, recorded by
+ * <code>Config.load</code>.
+ */
+@Name("dev.evanfinken.individualkeepinv.ConfigLoad")
+@Label("Config Load")
+@Category("Individual KeepInv")
+@Description("The config file was loaded or reloaded")
+@StackTrace(false)
+public final class ConfigLoadEvent extends Event {
+    @Label("Path")
+    public String path;
+
+    @Label("Storage")
+    @Description("The name of the preference storage the config uses")
+    public String storage;
+
+    @Label("Reload")
+    @Description("Whether the config had already been loaded before")
+    public boolean reload;
+
+    @Label("Entries")
+    @Description("The number of preferences in memory after the load")
+    public int entries;
+
+    @Label("Replayed")
+    @Description("The number of changes replayed from the journal")
+    public int replayed;
+
+    @Label("Bytes Read")
+    @DataAmount
+    public long bytes;
+}
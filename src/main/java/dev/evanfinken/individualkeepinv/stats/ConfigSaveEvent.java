@@ -0,0 +1,36 @@
+package dev.evanfinken.individualkeepinv.stats;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * A Java Flight Recorder event for a save of the config, recorded by <code>Config.save</code>.
+ * Its duration includes saving the preferences to the storage and compacting the journal.
+ */
+@Name("dev.evanfinken.individualkeepinv.ConfigSave")
+@Label("Config Save")
+@Category("Individual KeepInv")
+@Description("The config and the preferences were saved")
+@StackTrace(false)
+public final class ConfigSaveEvent extends Event {
+    @Label("Path")
+    public String path;
+
+    @Label("Storage")
+    @Description("The name of the preference storage the config uses")
+    public String storage;
+
+    @Label("Entries")
+    @Description("The number of preferences in memory that were saved")
+    public int entries;
+
+    @Label("Bytes Written")
+    @Description("The size of the config file, plus the binary preference file if it was rewritten")
+    @DataAmount
+    public long bytes;
+}
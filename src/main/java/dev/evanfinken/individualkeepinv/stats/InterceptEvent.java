@@ -0,0 +1,48 @@
+package dev.evanfinken.individualkeepinv.stats;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * A Java Flight Recorder event for an intercepted check of the "keepInventory" gamerule.
+ * <p>
+ * These checks are on the death path, so callers check {@link #isTypeEnabled()} before creating
+ * an event, and nothing is allocated while no recording has the event enabled. Recordings can
+ * set a threshold to only keep the slow checks.
+ */
+@Name("dev.evanfinken.individualkeepinv.Intercept")
+@Label("Keep Inventory Intercept")
+@Category("Individual KeepInv")
+@Description("A check of the keepInventory gamerule was answered for a player")
+@StackTrace(false)
+@Threshold("0 ns")
+public final class InterceptEvent extends Event {
+    private static final EventType TYPE = EventType.getEventType(InterceptEvent.class);
+
+    @Label("Player")
+    @Description("The UUID of the player who died")
+    public String player;
+
+    @Label("Source")
+    @Description("The vanilla method the gamerule was checked in")
+    public String source;
+
+    @Label("Outcome")
+    @Description("keep, drop, or partial")
+    public String outcome;
+
+    @Label("Kept Slots")
+    @Description("The slots kept by a partial outcome")
+    public String keptSlots;
+
+    /** Returns whether any recording has this event enabled. This doesn't allocate. */
+    public static boolean isTypeEnabled() {
+        return TYPE.isEnabled();
+    }
+}
@@ -0,0 +1,22 @@
+package dev.evanfinken.individualkeepinv.stats;
+
+/** The vanilla methods whose check of the "keepInventory" gamerule is intercepted. */
+public enum InterceptSource {
+    /** <code>PlayerEntity.dropInventory</code>, which drops the player's items. */
+    DROP_INVENTORY("dropInventory"),
+    /** <code>PlayerEntity.getExperienceToDrop</code>, which drops the player's experience. */
+    GET_EXPERIENCE_TO_DROP("getExperienceToDrop"),
+    /** <code>ServerPlayerEntity.copyFrom</code>, which copies the items to the respawned player. */
+    COPY_FROM("copyFrom");
+
+    private final String methodName;
+
+    InterceptSource(String methodName) {
+        this.methodName = methodName;
+    }
+
+    /** Gets the name of the intercepted method. */
+    public String getMethodName() {
+        return methodName;
+    }
+}
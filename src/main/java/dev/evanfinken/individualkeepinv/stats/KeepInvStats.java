@@ -0,0 +1,184 @@
+package dev.evanfinken.individualkeepinv.stats;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import dev.evanfinken.individualkeepinv.config.Config;
+import dev.evanfinken.individualkeepinv.config.KeepInvList;
+import dev.evanfinken.individualkeepinv.config.MappedPreferenceFile;
+
+/**
+ * Runtime statistics about the mod: how often the "keepInventory" gamerule is intercepted and how
+ * long that takes, and how long the config takes to save and load.
+ * <p>
+ * The intercept counters are recorded on the death path, so they are striped
+ * <code>LongAdder</code>s that never take a lock. The save and load statistics are recorded by
+ * the {@link Config} itself and only read from here.
+ */
+public class KeepInvStats implements KeepInvStatsMXBean {
+    public static final String OBJECT_NAME = "dev.evanfinken.individualkeepinv:type=Stats";
+    private static final double NANOS_PER_MILLI = 1_000_000.0;
+
+    private final Config config;
+    /** Two counters per source: overrides at even indices, gamerule fallbacks at odd ones. */
+    private final LongAdder[] interceptCounts = new LongAdder[InterceptSource.values().length * 2];
+    private final LatencyHistogram[] interceptTimes =
+            new LatencyHistogram[InterceptSource.values().length];
+
+    public KeepInvStats(Config config) {
+        this.config = config;
+        for (int i = 0; i < interceptCounts.length; i++) {
+            interceptCounts[i] = new LongAdder();
+        }
+        for (int i = 0; i < interceptTimes.length; i++) {
+            interceptTimes[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Publishes these statistics as an MBean on the platform MBean server.
+     * 
+     * @throws JMException If the MBean couldn't be registered.
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                new ObjectName(OBJECT_NAME));
+    }
+
+    /**
+     * Records an intercepted check of the "keepInventory" gamerule.
+     * 
+     * @param source The method the check was made in.
+     * @param override Whether the player's preference was used instead of the gamerule.
+     * @param nanos How long the check took.
+     */
+    public void recordIntercept(InterceptSource source, boolean override, long nanos) {
+        interceptCounts[source.ordinal() * 2 + (override ? 0 : 1)].increment();
+        interceptTimes[source.ordinal()].record(nanos);
+    }
+
+    /**
+     * Gets the number of intercepted checks made in <code>source</code>.
+     * 
+     * @param source The method the checks were made in.
+     * @param override Whether to count checks that used the player's preference, or checks that
+     *        fell back to the gamerule.
+     * @return The number of checks.
+     */
+    public long getInterceptCount(InterceptSource source, boolean override) {
+        return interceptCounts[source.ordinal() * 2 + (override ? 0 : 1)].sum();
+    }
+
+    /** Gets the durations of the intercepted checks made in <code>source</code>. */
+    public LatencyHistogram getInterceptTimes(InterceptSource source) {
+        return interceptTimes[source.ordinal()];
+    }
+
+    @Override
+    public Map<String, Long> getInterceptCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (InterceptSource source : InterceptSource.values()) {
+            counts.put(source.getMethodName() + ".override", getInterceptCount(source, true));
+            counts.put(source.getMethodName() + ".gamerule", getInterceptCount(source, false));
+        }
+        return counts;
+    }
+
+    @Override
+    public long getInterceptCount() {
+        long count = 0;
+        for (LongAdder adder : interceptCounts) {
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    @Override
+    public double getInterceptMeanNanos() {
+        long count = 0;
+        long totalNanos = 0;
+        for (LatencyHistogram histogram : interceptTimes) {
+            count += histogram.getCount();
+            totalNanos += histogram.getTotalNanos();
+        }
+        return count == 0 ? 0 : (double) totalNanos / count;
+    }
+
+    @Override
+    public long getInterceptP99Nanos() {
+        long p99 = 0;
+        for (LatencyHistogram histogram : interceptTimes) {
+            p99 = Math.max(p99, histogram.getPercentileNanos(99));
+        }
+        return p99;
+    }
+
+    @Override
+    public long getInterceptMaxNanos() {
+        long max = 0;
+        for (LatencyHistogram histogram : interceptTimes) {
+            max = Math.max(max, histogram.getMaxNanos());
+        }
+        return max;
+    }
+
+    @Override
+    public long getSaveCount() {
+        return config.getSaveTimes().getCount();
+    }
+
+    @Override
+    public double getSaveMeanMillis() {
+        return config.getSaveTimes().getMeanNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getSaveMaxMillis() {
+        return config.getSaveTimes().getMaxNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return config.getBytesWritten();
+    }
+
+    @Override
+    public long getCoalescedSaveCount() {
+        return config.getCoalescedSaveCount();
+    }
+
+    @Override
+    public long getLoadCount() {
+        return config.getLoadTimes().getCount();
+    }
+
+    @Override
+    public double getLoadMeanMillis() {
+        return config.getLoadTimes().getMeanNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getLoadMaxMillis() {
+        return config.getLoadTimes().getMaxNanos() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public int getIndexSize() {
+        return config.getState().getKeepInvList().getResidentSize();
+    }
+
+    @Override
+    public long getIndexMemoryBytes() {
+        return config.getState().getKeepInvList().estimateMemoryBytes();
+    }
+
+    @Override
+    public int getMappedFileSize() {
+        KeepInvList list = config.getState().getKeepInvList();
+        MappedPreferenceFile base = list.getBase();
+        return base == null ? 0 : base.size();
+    }
+}
@@ -0,0 +1,60 @@
+package dev.evanfinken.individualkeepinv.stats;
+
+import java.util.Map;
+
+/**
+ * The attributes of {@link KeepInvStats} published over JMX, under
+ * {@value KeepInvStats#OBJECT_NAME}.
+ */
+public interface KeepInvStatsMXBean {
+    /**
+     * Gets the number of intercepted gamerule checks, keyed by the intercepted method and outcome,
+     * for example <code>"dropInventory.override"</code> or <code>"copyFrom.gamerule"</code>.
+     */
+    Map<String, Long> getInterceptCounts();
+
+    /** Gets the total number of intercepted gamerule checks. */
+    long getInterceptCount();
+
+    /** Gets the mean duration of an intercepted gamerule check in nanoseconds. */
+    double getInterceptMeanNanos();
+
+    /** Gets an upper bound of the 99th percentile duration of an intercepted check. */
+    long getInterceptP99Nanos();
+
+    /** Gets the longest duration of an intercepted gamerule check in nanoseconds. */
+    long getInterceptMaxNanos();
+
+    /** Gets the number of times the config has been saved. */
+    long getSaveCount();
+
+    /** Gets the mean duration of a save in milliseconds. */
+    double getSaveMeanMillis();
+
+    /** Gets the longest duration of a save in milliseconds. */
+    double getSaveMaxMillis();
+
+    /** Gets the number of bytes written by saves. */
+    long getBytesWritten();
+
+    /** Gets the number of changes that were saved as part of another change's write. */
+    long getCoalescedSaveCount();
+
+    /** Gets the number of times the config has been loaded. */
+    long getLoadCount();
+
+    /** Gets the mean duration of a load in milliseconds. */
+    double getLoadMeanMillis();
+
+    /** Gets the longest duration of a load in milliseconds. */
+    double getLoadMaxMillis();
+
+    /** Gets the number of entries in the in-memory preference index. */
+    int getIndexSize();
+
+    /** Gets the estimated memory used by the in-memory preference index in bytes. */
+    long getIndexMemoryBytes();
+
+    /** Gets the number of records in the memory-mapped preference file, if one is used. */
+    int getMappedFileSize();
+}
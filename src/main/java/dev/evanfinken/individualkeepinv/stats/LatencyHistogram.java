@@ -0,0 +1,88 @@
+package dev.evanfinken.individualkeepinv.stats;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of durations with one bucket per power of two.
+ * <p>
+ * Recording only increments striped counters, so it never takes a lock and threads recording at
+ * the same time don't contend on a single counter. Percentiles are only as precise as the
+ * buckets: they are reported as the upper bound of the bucket they fall in.
+ */
+public class LatencyHistogram {
+    /** Bucket <code>i</code> holds durations below <code>2^i</code> and at least half that. */
+    private static final int BUCKETS = Long.SIZE + 1;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a duration.
+     * 
+     * @param nanos The duration in nanoseconds.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0; // nanoTime isn't guaranteed to be monotonic on every platform
+        }
+        buckets[Long.SIZE - Long.numberOfLeadingZeros(nanos)].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /** Gets the number of recorded durations. */
+    public long getCount() {
+        return count.sum();
+    }
+
+    /** Gets the sum of the recorded durations in nanoseconds. */
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    /** Gets the mean of the recorded durations in nanoseconds, or <code>0</code> if none. */
+    public double getMeanNanos() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) getTotalNanos() / count;
+    }
+
+    /** Gets the longest recorded duration in nanoseconds. */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Gets an upper bound of a percentile of the recorded durations.
+     * 
+     * @param percentile The percentile, between <code>0</code> and <code>100</code>.
+     * @return The upper bound of the bucket the percentile falls in, in nanoseconds.
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] counts = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            total += counts[i];
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                long upperBound = i == Long.SIZE ? Long.MAX_VALUE : (1L << i) - 1;
+                return Math.min(getMaxNanos(), upperBound);
+            }
+        }
+        return 0;
+    }
+}
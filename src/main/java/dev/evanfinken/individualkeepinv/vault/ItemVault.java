@@ -0,0 +1,309 @@
+package dev.evanfinken.individualkeepinv.vault;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import net.minecraft.item.ItemStack;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtElement;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtSizeTracker;
+import net.minecraft.registry.RegistryWrapper;
+
+/**
+ * Stores the items players drop when they die, so that they can claim them later instead of the
+ * items being spawned as entities.
+ * <p>
+ * Players are spread over {@value #REGIONS} {@link VaultRegionFile}s by a hash of their UUID.
+ * Each slot of a region file holds the gzipped NBT of the vaults of the players hashed to it,
+ * which is almost always a single player.
+ * <p>
+ * Deaths only serialize the items to NBT on the server thread. The region files are read and
+ * written on a single background thread, which writes the deposits made within
+ * {@value #BATCH_MILLIS} milliseconds of each other as one batch, touching each slot once and
+ * forcing each region file to the disk once.
+ */
+public class ItemVault implements Closeable {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    /** The number of region files the players are spread over. */
+    private static final int REGIONS = 16;
+    /** How long deposits are collected before they are written as a batch. */
+    private static final long BATCH_MILLIS = 1000;
+
+    /** Items waiting to be stored, with the player they belong to. */
+    private record Deposit(UUID id, NbtList items) {}
+
+    private final Path directory;
+    private final ScheduledExecutorService writer =
+            Executors.newSingleThreadScheduledExecutor(runnable -> {
+                var thread = new Thread(runnable, "Individual KeepInv Vault");
+                thread.setDaemon(true);
+                return thread;
+            });
+    /** The deposits that haven't been written yet. */
+    private final ConcurrentLinkedQueue<Deposit> pending = new ConcurrentLinkedQueue<>();
+    /** Whether a batch is scheduled to write {@link #pending}. */
+    private final AtomicBoolean batchScheduled = new AtomicBoolean();
+    /** The open region files, by index. Only used on the writer thread. */
+    private final VaultRegionFile[] regions = new VaultRegionFile[REGIONS];
+
+    /**
+     * Creates a vault. Nothing is read or created until the first deposit or claim.
+     * 
+     * @param directory The directory to store the region files in.
+     */
+    public ItemVault(Path directory) {
+        this.directory = directory;
+    }
+
+    /** Gets the directory the region files are stored in. */
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Adds items to a player's vault.
+     * <p>
+     * The items are serialized right away, so they may be changed or discarded afterwards, and
+     * written in the background with the next batch.
+     * 
+     * @param id The UUID of the player.
+     * @param stacks The items to store. Empty stacks are skipped.
+     * @param registries The registries to serialize the items with.
+     */
+    public void deposit(UUID id, List<ItemStack> stacks, RegistryWrapper.WrapperLookup registries) {
+        var items = new NbtList();
+        for (ItemStack stack : stacks) {
+            if (!stack.isEmpty()) {
+                items.add(stack.toNbt(registries));
+            }
+        }
+        deposit(id, items);
+    }
+
+    /**
+     * Adds items that were already serialized, for example by {@link #claim}, to a player's vault.
+     * 
+     * @param id The UUID of the player.
+     * @param items The serialized items.
+     */
+    public void deposit(UUID id, NbtList items) {
+        if (items.isEmpty()) {
+            return;
+        }
+        pending.add(new Deposit(id, items));
+        if (batchScheduled.compareAndSet(false, true)) {
+            writer.schedule(this::writeBatch, BATCH_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Takes every item out of a player's vault, including items deposited but not yet written.
+     * 
+     * @param id The UUID of the player.
+     * @return A future of the serialized items, which is empty if the vault was. Deserialize them
+     *         with {@link #toStacks}.
+     */
+    public CompletableFuture<NbtList> claim(UUID id) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                writePending();
+                int hash = hash(id);
+                VaultRegionFile region = region(hash);
+                int slot = hash & (VaultRegionFile.SLOTS - 1);
+                NbtCompound vaults = readSlot(region, slot);
+                NbtList items = vaults.getList(id.toString(), NbtElement.COMPOUND_TYPE);
+                if (!items.isEmpty()) {
+                    vaults.remove(id.toString());
+                    writeSlot(region, slot, vaults);
+                    region.force();
+                }
+                return items;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, writer);
+    }
+
+    /**
+     * Deserializes items returned by {@link #claim}. This should be called on the server thread.
+     * Items that can no longer be read, for example because their mod was removed, are skipped.
+     * 
+     * @param items The serialized items.
+     * @param registries The registries to deserialize the items with.
+     * @return The items.
+     */
+    public static List<ItemStack> toStacks(NbtList items,
+            RegistryWrapper.WrapperLookup registries) {
+        var stacks = new ArrayList<ItemStack>(items.size());
+        for (NbtElement item : items) {
+            ItemStack.fromNbt(registries, item).ifPresent(stacks::add);
+        }
+        return stacks;
+    }
+
+    /**
+     * Writes any pending deposits and closes the region files, blocking until they have been
+     * written. This should be called when the server stops.
+     */
+    @Override
+    public void close() {
+        try {
+            writer.submit(() -> {
+                writePending();
+                for (int i = 0; i < REGIONS; i++) {
+                    if (regions[i] != null) {
+                        regions[i].close();
+                        regions[i] = null;
+                    }
+                }
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            LOGGER.warn("Failed to close the item vault.", e.getCause());
+        }
+        writer.shutdown();
+    }
+
+    private void writeBatch() {
+        batchScheduled.set(false);
+        try {
+            writePending();
+        } catch (RuntimeException e) {
+            // the deposits are kept in memory, so the next batch tries them again
+            LOGGER.warn("Failed to write to the item vault.", e);
+        }
+    }
+
+    /**
+     * Writes every pending deposit, grouped so that each slot is read and written once.
+     * <p>
+     * Each slot is written on its own, so a slot that fails doesn't hold back the others. Its
+     * deposits are put back in {@link #pending} to be written with the next batch, and the rest
+     * are removed once their region files have been forced. Only called on the writer thread.
+     */
+    private void writePending() {
+        List<Deposit> batch = new ArrayList<>(pending);
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Deposit> failed = new ArrayList<>();
+        Map<Integer, List<Deposit>> bySlot = new HashMap<>();
+        for (Deposit deposit : batch) {
+            bySlot.computeIfAbsent(hash(deposit.id()) & (REGIONS * VaultRegionFile.SLOTS - 1),
+                    key -> new ArrayList<>()).add(deposit);
+        }
+        var touched = new boolean[REGIONS];
+        for (Map.Entry<Integer, List<Deposit>> entry : bySlot.entrySet()) {
+            int hash = entry.getKey();
+            int slot = hash & (VaultRegionFile.SLOTS - 1);
+            try {
+                VaultRegionFile region = region(hash);
+                NbtCompound vaults = readSlot(region, slot);
+                for (Deposit deposit : entry.getValue()) {
+                    String key = deposit.id().toString();
+                    NbtList items = vaults.getList(key, NbtElement.COMPOUND_TYPE);
+                    items.addAll(deposit.items());
+                    vaults.put(key, items);
+                }
+                writeSlot(region, slot, vaults);
+                touched[regionIndex(hash)] = true;
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warn("Failed to write slot {} of the item vault region {}, keeping its {} "
+                        + "deposits for the next batch.", slot, regionIndex(hash),
+                        entry.getValue().size(), e);
+                failed.addAll(entry.getValue());
+            }
+        }
+        for (int i = 0; i < REGIONS; i++) {
+            if (touched[i]) {
+                // the slots are already written, so writing their deposits again would copy them
+                try {
+                    regions[i].force();
+                } catch (IOException e) {
+                    LOGGER.warn("Failed to force the item vault region {} to the disk.", i, e);
+                }
+            }
+        }
+        // only this thread removes deposits, so the batch is still at the head of the queue
+        for (int i = 0; i < batch.size(); i++) {
+            pending.poll();
+        }
+        pending.addAll(failed);
+    }
+
+    private VaultRegionFile region(int hash) throws IOException {
+        int index = regionIndex(hash);
+        if (regions[index] == null) {
+            Files.createDirectories(directory);
+            regions[index] = new VaultRegionFile(directory.resolve("r." + index + ".vault"));
+        }
+        return regions[index];
+    }
+
+    /**
+     * Reads the vaults in a slot. A payload that can't be decoded is moved to a file next to the
+     * region file, so that it can be recovered by hand, and the slot is treated as empty.
+     */
+    private static NbtCompound readSlot(VaultRegionFile region, int slot) throws IOException {
+        byte[] payload = region.read(slot);
+        if (payload == null) {
+            return new NbtCompound();
+        }
+        try {
+            return NbtIo.readCompressed(new ByteArrayInputStream(payload),
+                    NbtSizeTracker.ofUnlimitedBytes());
+        } catch (IOException | RuntimeException e) {
+            Path quarantine = region.getPath().resolveSibling(region.getPath().getFileName() + "."
+                    + slot + "." + System.currentTimeMillis() + ".corrupt");
+            Files.write(quarantine, payload);
+            region.write(slot, null);
+            LOGGER.warn("Moved the unreadable slot {} of {} to {}.", slot, region.getPath(),
+                    quarantine, e);
+            return new NbtCompound();
+        }
+    }
+
+    private static void writeSlot(VaultRegionFile region, int slot, NbtCompound vaults)
+            throws IOException {
+        if (vaults.isEmpty()) {
+            region.write(slot, null);
+            return;
+        }
+        var bytes = new ByteArrayOutputStream();
+        NbtIo.writeCompressed(vaults, bytes);
+        region.write(slot, bytes.toByteArray());
+    }
+
+    /** Spreads a UUID over the regions and their slots. */
+    private static int hash(UUID id) {
+        long bits = id.getMostSignificantBits() ^ id.getLeastSignificantBits();
+        int hash = (int) (bits ^ (bits >>> 32));
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int regionIndex(int hash) {
+        return (hash >>> 10) & (REGIONS - 1);
+    }
+}
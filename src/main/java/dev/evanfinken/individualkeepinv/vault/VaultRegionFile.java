@@ -0,0 +1,204 @@
+package dev.evanfinken.individualkeepinv.vault;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A file of payloads laid out like the game's region files: a header with an entry for each of
+ * {@value #SLOTS} slots, followed by the payloads in {@value #SECTOR_BYTES}-byte sectors.
+ * <p>
+ * Each header entry holds the first sector and the length of its slot's payload, or zeros if the
+ * slot is empty. A new payload is written to free sectors, and its header entry is only pointed at
+ * it by {@link #force()}, once the payloads have been forced to the disk. The old payload's
+ * sectors stay reserved until the header has been forced as well, so a crash at any point leaves
+ * each slot with either its old or its new payload. Free sectors at the end of the file are
+ * truncated when it is closed.
+ * <p>
+ * This isn't thread-safe. It is only used from the {@link ItemVault}'s writer thread.
+ */
+final class VaultRegionFile implements Closeable {
+    public static final Logger LOGGER = LoggerFactory.getLogger("individual-keepinv");
+    /** The number of slots in a region file. */
+    static final int SLOTS = 1024;
+    private static final int SECTOR_BYTES = 4096;
+    private static final int ENTRY_BYTES = 8;
+    private static final int HEADER_SECTORS = SLOTS * ENTRY_BYTES / SECTOR_BYTES;
+
+    private final Path path;
+    private final FileChannel channel;
+    /** The first sector of each slot's payload, or <code>0</code> if the slot is empty. */
+    private final int[] offsets = new int[SLOTS];
+    /** The length in bytes of each slot's payload. */
+    private final int[] lengths = new int[SLOTS];
+    /** The sectors used by the header and the payloads, including the released ones. */
+    private final BitSet usedSectors = new BitSet();
+    /**
+     * The sectors of replaced payloads, which are kept in use until the header entries that
+     * pointed at them on the disk have been overwritten and forced.
+     */
+    private final BitSet releasedSectors = new BitSet();
+    /** The slots whose header entries haven't been written since their payload changed. */
+    private final BitSet dirtySlots = new BitSet();
+
+    /**
+     * Opens a region file, creating it if it doesn't exist.
+     * 
+     * @param path The path of the file.
+     * @throws IOException
+     */
+    VaultRegionFile(Path path) throws IOException {
+        this.path = path;
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        usedSectors.set(0, HEADER_SECTORS);
+        long fileSectors = (channel.size() + SECTOR_BYTES - 1) / SECTOR_BYTES;
+        if (fileSectors < HEADER_SECTORS) {
+            channel.write(ByteBuffer.allocate(HEADER_SECTORS * SECTOR_BYTES), 0);
+            return;
+        }
+        var header = ByteBuffer.allocate(HEADER_SECTORS * SECTOR_BYTES);
+        readFully(header, 0);
+        header.flip();
+        for (int slot = 0; slot < SLOTS; slot++) {
+            int offset = header.getInt();
+            int length = header.getInt();
+            if (offset == 0) {
+                continue;
+            }
+            int sectors = sectors(length);
+            if (offset < HEADER_SECTORS || length <= 0 || offset + sectors > fileSectors
+                    || usedSectors.get(offset, offset + sectors).cardinality() > 0) {
+                LOGGER.warn("Ignoring the invalid slot {} in {}.", slot, path);
+                continue;
+            }
+            offsets[slot] = offset;
+            lengths[slot] = length;
+            usedSectors.set(offset, offset + sectors);
+        }
+    }
+
+    /** Gets the path of the file. */
+    Path getPath() {
+        return path;
+    }
+
+    /**
+     * Reads the payload in a slot.
+     * 
+     * @param slot The slot to read.
+     * @return The payload, or <code>null</code> if the slot is empty.
+     * @throws IOException
+     */
+    @Nullable
+    byte[] read(int slot) throws IOException {
+        if (offsets[slot] == 0) {
+            return null;
+        }
+        var buffer = ByteBuffer.allocate(lengths[slot]);
+        readFully(buffer, (long) offsets[slot] * SECTOR_BYTES);
+        return buffer.array();
+    }
+
+    /**
+     * Replaces the payload in a slot. The new payload can be read right away, but the header entry
+     * isn't pointed at it until {@link #force()}.
+     * 
+     * @param slot The slot to write.
+     * @param payload The new payload, or <code>null</code> to empty the slot.
+     * @throws IOException
+     */
+    void write(int slot, @Nullable byte[] payload) throws IOException {
+        int offset = 0;
+        int length = 0;
+        if (payload != null && payload.length > 0) {
+            length = payload.length;
+            int sectors = sectors(length);
+            offset = allocate(sectors);
+            var buffer = ByteBuffer.wrap(payload);
+            long position = (long) offset * SECTOR_BYTES;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            usedSectors.set(offset, offset + sectors);
+        }
+        if (offsets[slot] != 0) {
+            releasedSectors.set(offsets[slot], offsets[slot] + sectors(lengths[slot]));
+        }
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        dirtySlots.set(slot);
+    }
+
+    /**
+     * Forces the payloads written so far to the disk, then points the header entries at them and
+     * forces the header, after which the sectors of the replaced payloads can be reused.
+     */
+    void force() throws IOException {
+        if (dirtySlots.isEmpty()) {
+            return;
+        }
+        channel.force(false);
+        var entry = ByteBuffer.allocate(ENTRY_BYTES);
+        for (int slot = dirtySlots.nextSetBit(0); slot >= 0;
+                slot = dirtySlots.nextSetBit(slot + 1)) {
+            entry.clear();
+            entry.putInt(offsets[slot]).putInt(lengths[slot]).flip();
+            long position = (long) slot * ENTRY_BYTES;
+            while (entry.hasRemaining()) {
+                position += channel.write(entry, position);
+            }
+        }
+        channel.force(false);
+        dirtySlots.clear();
+        usedSectors.andNot(releasedSectors);
+        releasedSectors.clear();
+    }
+
+    /** Forces any remaining writes, truncates the free sectors at the end and closes the file. */
+    @Override
+    public void close() throws IOException {
+        try {
+            force();
+            long end = (long) usedSectors.length() * SECTOR_BYTES;
+            if (channel.size() > end) {
+                channel.truncate(end);
+            }
+        } finally {
+            channel.close();
+        }
+    }
+
+    /** Finds the first run of <code>count</code> free sectors, which may be past the end. */
+    private int allocate(int count) {
+        int start = usedSectors.nextClearBit(HEADER_SECTORS);
+        while (true) {
+            int end = usedSectors.nextSetBit(start);
+            if (end < 0 || end - start >= count) {
+                return start;
+            }
+            start = usedSectors.nextClearBit(end);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of " + path);
+            }
+            position += read;
+        }
+    }
+
+    private static int sectors(int length) {
+        return (length + SECTOR_BYTES - 1) / SECTOR_BYTES;
+    }
+}